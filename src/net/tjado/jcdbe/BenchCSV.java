@@ -0,0 +1,148 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ini4j.Ini;
+
+/**
+ * Benchmark of the CSV output (sync vs. async vs. partitioned by thread with/without merge) or JSON
+ * Lines with many producers
+ * 
+ * Every database streams a generated result into the output (temporary file). The time the
+ * database threads were blocked on a monitor (synchronized) or waiting (queue lock, full queue) is
+ * taken from the ThreadMXBean. Partitioned by thread, every database thread has its own file.
+ * 
+ */
+public class BenchCSV {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 4 && args.length != 5) {
+      BenchUtil.usage(BenchCSV.class, "<sync|async|partition|merge|jsonlines> <databases> <rows> "
+          + "<columns> [none|gzip]");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        args.length == 5 ? args[4] : "none");
+    System.exit(0);
+  }
+
+  private static void run(String mode, int databases, final int rows, final int columns,
+      String compression) throws Exception {
+
+    File file = File.createTempFile("jcdbe-bench-", ".csv");
+    file.deleteOnExit();
+
+    Ini ini = new Ini();
+    ini.put("output:csv", "async", String.valueOf(mode.equals("async")));
+    ini.put("output:csv", "compression", compression);
+    if (mode.equals("partition") || mode.equals("merge")) {
+      ini.put("output:csv", "partition", "thread");
+      ini.put("output:csv", "partitions", String.valueOf(databases));
+      ini.put("output:csv", "merge", String.valueOf(mode.equals("merge")));
+    }
+    Output selected = OutputCSV.getInstance();
+    if (mode.equals("jsonlines")) {
+      selected = OutputJsonLines.getInstance();
+    }
+    final OutputStreaming output = (OutputStreaming) selected;
+    BenchUtil.initOutput(selected, file.getPath(), ini);
+
+    final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    mx.setThreadContentionMonitoringEnabled(true);
+    final AtomicLong blocked = new AtomicLong(0);
+    final AtomicLong waited = new AtomicLong(0);
+
+    ExecutorService threads = Executors.newFixedThreadPool(databases);
+    final CountDownLatch done = new CountDownLatch(databases);
+
+    long start = System.currentTimeMillis();
+
+    for (int i = 1; i <= databases; i++) {
+      final Integer id = i;
+      threads.execute(new Runnable() {
+        public void run() {
+          String thread = Thread.currentThread().getName();
+          ThreadInfo before = getThreadInfo(mx, thread);
+          try {
+            new DatabaseOracle().streamResultSet(id, 1, BenchUtil.generateResultSet(rows, columns),
+                output);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+          ThreadInfo after = getThreadInfo(mx, thread);
+          blocked.addAndGet(after.getBlockedTime() - before.getBlockedTime());
+          waited.addAndGet(after.getWaitedTime() - before.getWaitedTime());
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+    selected.close();
+    long time = System.currentTimeMillis() - start;
+    threads.shutdown();
+
+    System.out.println("Output:          " + mode + " (compression: " + compression + ")");
+    System.out.println("Databases:       " + databases);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+    System.out.println("Wall clock:      " + time + " ms");
+    System.out.println("Throughput:      " + (long) databases * rows * 1000 / Math.max(1, time)
+        + " rows/s");
+    System.out.println("Blocked (lock):  " + blocked.get() + " ms (" + blocked.get() / databases
+        + " ms per database)");
+    System.out.println("Waited (queue):  " + waited.get() + " ms (" + waited.get() / databases
+        + " ms per database)");
+
+    // partition files (<name>.<key>.csv) and compressed files (.gz)
+    long size = file.length();
+    String prefix = file.getName().substring(0, file.getName().length() - 4) + ".";
+    for (File partition : file.getParentFile().listFiles()) {
+      if (partition.getName().startsWith(prefix) && !partition.equals(file)) {
+        size += partition.length();
+        partition.delete();
+      }
+    }
+    System.out.println("File size:       " + size / 1024 / 1024 + " MB");
+  }
+
+  // thread info of a pool thread by its name (Thread.getId is deprecated since java 19)
+  private static ThreadInfo getThreadInfo(ThreadMXBean mx, String name) {
+    for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+      if (info != null && info.getThreadName().equals(name)) {
+        return info;
+      }
+    }
+    throw new IllegalStateException("Thread not found: " + name);
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.File;
+import java.io.FileReader;
+
+import org.ini4j.Ini;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Benchmark of the file size and scan time of CSV vs. columnar output
+ * 
+ * The same generated results are written with OutputCSV and OutputColumnar, the scan sums up the
+ * NUMBER column COL2 of all rows.
+ * 
+ */
+public class BenchColumnar {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 3 && args.length != 4) {
+      BenchUtil.usage(BenchColumnar.class, "<databases> <rows> <columns> [none|deflate]");
+    }
+
+    run(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+        args.length == 4 ? args[3] : "none");
+    System.exit(0);
+  }
+
+  private static void run(int databases, int rows, int columns, String compression)
+      throws Exception {
+
+    File csvFile = File.createTempFile("jcdbe-bench-", ".csv");
+    csvFile.deleteOnExit();
+    File base = File.createTempFile("jcdbe-bench-", "");
+    base.delete();
+    File columnarFile = new File(base.getPath() + ".q1" + OutputColumnar.SUFFIX);
+    columnarFile.deleteOnExit();
+
+    OutputCSV csv = OutputCSV.getInstance();
+    BenchUtil.initOutput(csv, csvFile.getPath(), new Ini());
+
+    OutputColumnar columnar = OutputColumnar.getInstance();
+    Ini ini = new Ini();
+    ini.put("output:columnar", "compression", compression);
+    BenchUtil.initOutput(columnar, base.getPath(), ini);
+
+    for (int i = 1; i <= databases; i++) {
+      new DatabaseOracle().streamResultSet(i, 1, BenchUtil.generateResultSet(rows, columns), csv);
+      new DatabaseOracle().streamResultSet(i, 1, BenchUtil.generateResultSet(rows, columns),
+          columnar);
+    }
+    csv.close();
+    columnar.close();
+
+    // CSV: parse every line, the numbers are strings
+    long start = System.nanoTime();
+    long csvSum = 0;
+    long csvRows = 0;
+    CSVReader reader = new CSVReader(new FileReader(csvFile), ',');
+    reader.readNext();
+    String[] line = null;
+    while ((line = reader.readNext()) != null) {
+      csvSum += Long.parseLong(line[2]);
+      csvRows++;
+    }
+    reader.close();
+    long csvTime = (System.nanoTime() - start) / 1000000;
+
+    // columnar: typed column of every row group
+    start = System.nanoTime();
+    long columnarSum = 0;
+    ColumnarReader columnarReader = new ColumnarReader(columnarFile.getPath());
+    for (int group = 0; group < columnarReader.getRowGroupCount(); group++) {
+      RowBatch batch = columnarReader.read(group);
+      for (int row = 0; row < batch.size(); row++) {
+        columnarSum += batch.getLong(row, 3);
+      }
+    }
+    long columnarRows = columnarReader.getRows();
+    columnarReader.close();
+    long columnarTime = (System.nanoTime() - start) / 1000000;
+
+    System.out.println("Databases:       " + databases);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+    System.out.println("CSV:             " + csvFile.length() / 1024 + " KB, scan " + csvTime
+        + " ms (" + csvRows + " rows, sum " + csvSum + ")");
+    System.out.println("Columnar (" + compression + "): " + columnarFile.length() / 1024
+        + " KB, scan " + columnarTime + " ms (" + columnarRows + " rows, sum " + columnarSum + ")");
+  }
+
+}
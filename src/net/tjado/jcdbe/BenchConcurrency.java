@@ -0,0 +1,128 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the connection limit (static vs. adaptive) with a simulated latency profile
+ * 
+ * Up to <capacity> parallel logins take connectMs, above the login time grows quadratic with the
+ * load and logins longer than 10 * connectMs fail with a timeout. The finished and failed databases
+ * are printed every second (throughput curve).
+ * 
+ */
+public class BenchConcurrency {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 7) {
+      BenchUtil.usage(BenchConcurrency.class, "<static|adaptive> <databases> <connectMs> "
+          + "<queryMs> <capacity> <connectionMin> <connectionMax>");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        Integer.parseInt(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+    System.exit(0);
+  }
+
+  private static void run(String type, int databases, final int connectMs, final int queryMs,
+      final int capacity, int connectionMin, int connectionMax) throws Exception {
+
+    ExecutorService threads = jcdbe.createExecutor("virtual", connectionMax, connectionMax, 10);
+    final ConnectionLimiter limiter =
+        new ConnectionLimiter(threads, new DatabaseList(), connectionMax, 0, 0);
+    if (type.equals("adaptive")) {
+      limiter.setController(new ConcurrencyController(connectionMin, connectionMax));
+    }
+
+    final CountDownLatch done = new CountDownLatch(databases);
+    final AtomicInteger connecting = new AtomicInteger(0);
+    final AtomicInteger finished = new AtomicInteger(0);
+    final AtomicInteger failed = new AtomicInteger(0);
+    final long timeout = 10L * connectMs;
+
+    long start = System.currentTimeMillis();
+
+    for (int i = 1; i <= databases; i++) {
+      final Integer id = i;
+      limiter.submit(id, "localhost:1521", null, new Runnable() {
+        public void run() {
+          boolean connected = false;
+          long login = 0;
+          try {
+            double load = (double) connecting.incrementAndGet() / capacity;
+            login = (long) (connectMs * Math.max(1.0, load * load));
+            connected = login <= timeout;
+
+            Thread.sleep(Math.min(login, timeout));
+            connecting.decrementAndGet();
+
+            if (connected) {
+              Thread.sleep(queryMs);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+
+          if (connected) {
+            finished.incrementAndGet();
+          } else {
+            failed.incrementAndGet();
+          }
+          limiter.release(id, connected, login, queryMs);
+          done.countDown();
+        }
+      });
+    }
+
+    // throughput curve: finished databases per second
+    System.out.println("Second  Finished  Failed  Limit");
+    int second = 0;
+    int lastFinished = 0;
+    int lastFailed = 0;
+    while (done.getCount() > 0) {
+      done.await(1000, TimeUnit.MILLISECONDS);
+      second++;
+      System.out.println(String.format("%6d  %8d  %6d  %5d", second, finished.get() - lastFinished,
+          failed.get() - lastFailed, limiter.getLimit()));
+      lastFinished = finished.get();
+      lastFailed = failed.get();
+    }
+
+    long time = System.currentTimeMillis() - start;
+    threads.shutdown();
+
+    System.out.println("Concurrency:     " + type);
+    System.out.println("Databases:       " + databases);
+    System.out.println("Connect/Query:   " + connectMs + " ms / " + queryMs + " ms");
+    System.out.println("Login capacity:  " + capacity);
+    System.out.println("Wall clock:      " + time + " ms");
+    System.out.println("Finished:        " + finished.get());
+    System.out.println("Failed:          " + failed.get());
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.sql.ResultSet;
+
+/**
+ * Benchmark of the conversion of a result (CachedRowSet vs. RowBatch) on one thread
+ * 
+ * The first iterations warm up the JIT, the average of the measured iterations is printed.
+ * 
+ */
+public class BenchConvert {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 3) {
+      BenchUtil.usage(BenchConvert.class, "<rowset|batch> <rows> <columns>");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    System.exit(0);
+  }
+
+  private static void run(String mode, int rows, int columns) throws Exception {
+    final int warmup = 5;
+    final int iterations = 10;
+
+    DatabaseOracle db = new DatabaseOracle();
+    OutputDummy output = OutputDummy.getInstance();
+    long time = 0;
+
+    for (int i = 0; i < warmup + iterations; i++) {
+      ResultSet rs = BenchUtil.generateResultSet(rows, columns);
+
+      long start = System.nanoTime();
+      if (mode.equals("batch")) {
+        db.streamResultSet(1, 1, rs, output);
+      } else {
+        output.saveResult(db.convertToCachedRowSet(1, rs), 1, 1);
+      }
+
+      if (i >= warmup) {
+        time += System.nanoTime() - start;
+      }
+    }
+
+    System.out.println("Conversion:      " + mode);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+    System.out.println("Time per result: " + time / iterations / 1000000 + " ms");
+    System.out.println("Time per row:    " + time / iterations / rows + " ns");
+  }
+
+}
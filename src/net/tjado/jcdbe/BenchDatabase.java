@@ -0,0 +1,126 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ini4j.Ini;
+
+/**
+ * Benchmark of OutputDatabase with different batch sizes
+ * 
+ * Every database streams a generated result into the table JCDBE_BENCH of the JDBC URL (e.g. an
+ * embedded database with its driver jar in the classpath, or jdbc:jcdbe:bench:<name> of the
+ * BenchDriver with bench.rttMs per round trip), the table is created before and dropped after the
+ * benchmark.
+ * 
+ */
+public class BenchDatabase {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 5) {
+      BenchUtil.usage(BenchDatabase.class,
+          "<jdbc url> <databases> <rows> <columns> <batch size,...>");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        args[4]);
+    System.exit(0);
+  }
+
+  private static void run(String url, int databases, final int rows, final int columns,
+      String batchSizes) throws Exception {
+
+    // stand-in driver for jdbc:jcdbe:bench:<name>
+    BenchDriver.register();
+
+    Connection connection = DriverManager.getConnection(url);
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute("DROP TABLE JCDBE_BENCH");
+    } catch (SQLException e) {
+      // first run
+    }
+
+    StringBuilder ddl = new StringBuilder("CREATE TABLE JCDBE_BENCH (DATABASE_NAME_JCDBE "
+        + "VARCHAR(100)");
+    for (int i = 1; i <= columns; i++) {
+      ddl.append(", COL" + i + (i % 2 == 0 ? " NUMERIC(20)" : " VARCHAR(30)"));
+    }
+    statement.execute(ddl.append(")").toString());
+
+    System.out.println("Databases:       " + databases);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+
+    for (String batchSize : batchSizes.split(",")) {
+      statement.execute("DELETE FROM JCDBE_BENCH");
+
+      Ini ini = new Ini();
+      ini.put("output:database", "url", url);
+      ini.put("output:database", "table", "JCDBE_BENCH");
+      ini.put("output:database", "batchSize", batchSize);
+      final OutputDatabase output = OutputDatabase.getInstance();
+      BenchUtil.initOutput(output, null, ini);
+
+      ExecutorService threads = Executors.newFixedThreadPool(databases);
+      final CountDownLatch done = new CountDownLatch(databases);
+
+      long start = System.currentTimeMillis();
+
+      for (int i = 1; i <= databases; i++) {
+        final Integer id = i;
+        threads.execute(new Runnable() {
+          public void run() {
+            try {
+              new DatabaseOracle().streamResultSet(id, 1,
+                  BenchUtil.generateResultSet(rows, columns), output);
+            } catch (Exception e) {
+              e.printStackTrace();
+            }
+            done.countDown();
+          }
+        });
+      }
+
+      done.await();
+      output.close();
+      long time = System.currentTimeMillis() - start;
+      threads.shutdown();
+
+      System.out.println("Batch size " + batchSize + ": " + time + " ms, "
+          + (long) databases * rows * 1000 / Math.max(1, time) + " rows/s");
+    }
+
+    statement.execute("DROP TABLE JCDBE_BENCH");
+    statement.close();
+    connection.close();
+  }
+
+}
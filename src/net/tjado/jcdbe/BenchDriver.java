@@ -0,0 +1,455 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import oracle.jdbc.OracleCallableStatement;
+import oracle.jdbc.OracleConnection;
+import oracle.jdbc.OracleStatement;
+
+/**
+ * Stand-in JDBC driver for the benchmarks: simulated databases with network latency
+ * 
+ * URL: jdbc:jcdbe:bench:<name> (the input file can contain this URL instead of a connect
+ * descriptor). The driver is only registered in the DriverManager by the benchmarks (register,
+ * e.g. BenchRun for a whole run), JCDBE connects it like every other JDBC URL. The connections
+ * implement OracleConnection, so the whole database thread (connect, queries in statement or block
+ * mode, fetch, logoff) runs without an Oracle database. As target of OutputDatabase the inserts are
+ * only counted.
+ * 
+ * Every round trip sleeps bench.rttMs and is counted (getRoundTrips, printed at the end of the run
+ * if bench.report = true):
+ * - connect: bench.connectMs and 2 round trips (login handshake)
+ * - setAutoCommit, commit, rollback, setSavepoint, close: 1 round trip
+ * - executeQuery: bench.queryMs and 1 round trip, the first fetchSize rows come with the execute
+ * - execute (PL/SQL block, DDL): bench.queryMs and 1 round trip; a REF CURSOR of a block has no
+ *   prefetched rows, its first rows need their own round trip
+ * - fetch: 1 round trip per fetchSize rows (and one for the end of the result)
+ * - executeBatch: 1 round trip
+ * 
+ * Every result has bench.rows rows and bench.cols columns: VARCHAR2 (odd columns,
+ * "value_<row>_<column>") and NUMBER (even columns, row * column).
+ * 
+ * The name in the URL can contain markers for failures:
+ * - SLOW: connect takes bench.slowFactor (default 10) times longer, HANG: connect takes one hour
+ * - FLAKY: the first two connects fail with ORA-12519
+ * - FAIL12519, FAIL01017: every connect fails with ORA-12519 (transient) or ORA-01017
+ * - SLOWQ: the queries take bench.slowFactor times longer
+ * - FAILFETCH: the fetch fails with ORA-03113 after bench.failAfter rows (default bench.rows / 2)
+ * - FAILINSERT: an executeBatch fails with ORA-01438 once the statement has inserted
+ *   bench.failAfter rows
+ * 
+ * Thread-safe
+ * 
+ */
+public class BenchDriver implements Driver {
+
+  public static final String URL_PREFIX = "jdbc:jcdbe:bench:";
+
+  // counted round trips of all connections
+  private static final AtomicLong roundTrips = new AtomicLong(0);
+
+  // connects per URL (FLAKY)
+  private static final Map<String, Integer> connects = new HashMap<String, Integer>();
+
+  private static boolean registered = false;
+
+  // registers the driver in the DriverManager (only once)
+  public static synchronized void register() throws SQLException {
+    if (registered) {
+      return;
+    }
+    DriverManager.registerDriver(new BenchDriver());
+    registered = true;
+
+    if (Boolean.getBoolean("bench.report")) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          System.err.println("[BENCH] Round trips: " + roundTrips.get());
+        }
+      });
+    }
+  }
+
+  public static long getRoundTrips() {
+    return roundTrips.get();
+  }
+
+  private static long getSetting(String name, long defaultValue) {
+    return Long.getLong("bench." + name, defaultValue);
+  }
+
+  private static void sleep(long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void roundTrip() {
+    roundTrips.incrementAndGet();
+    sleep(getSetting("rttMs", 0));
+  }
+
+  // return value of the methods which are not simulated
+  private static Object getDefault(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+    Class<?> type = method.getReturnType();
+
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    } else if (name.equals("equals")) {
+      return proxy == args[0];
+    } else if (name.equals("toString")) {
+      return "BenchDriver" + proxy.getClass().getInterfaces()[0].getSimpleName();
+    } else if (name.equals("isWrapperFor")) {
+      return ((Class<?>) args[0]).isInstance(proxy);
+    } else if (name.equals("unwrap")) {
+      return proxy;
+    } else if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    } else if (type == String.class) {
+      return "";
+    } else if (type == int[].class) {
+      return new int[0];
+    }
+    return null;
+  }
+
+  private static Object createProxy(Class<?>[] interfaces, InvocationHandler handler) {
+    return Proxy.newProxyInstance(BenchDriver.class.getClassLoader(), interfaces, handler);
+  }
+
+  public boolean acceptsURL(String url) {
+    return url != null && url.startsWith(URL_PREFIX);
+  }
+
+  public Connection connect(String url, Properties info) throws SQLException {
+    if (!acceptsURL(url)) {
+      return null;
+    }
+    return connect(url);
+  }
+
+  // connection of a simulated database
+  private static OracleConnection connect(String url) throws SQLException {
+    long connectMs = getSetting("connectMs", 0);
+    if (url.replace("SLOWQ", "").contains("SLOW")) {
+      connectMs *= getSetting("slowFactor", 10);
+    }
+    if (url.contains("HANG")) {
+      connectMs = 3600000;
+    }
+    sleep(connectMs);
+    roundTrip();
+    roundTrip();
+
+    if (url.contains("FLAKY")) {
+      int count = 0;
+      synchronized (connects) {
+        count = connects.containsKey(url) ? connects.get(url) + 1 : 1;
+        connects.put(url, count);
+      }
+      if (count <= 2) {
+        throw new SQLException("Listener refused the connection with the following error: "
+            + "ORA-12519, TNS:no appropriate service handler found", "66000", 12519);
+      }
+    }
+    if (url.contains("FAIL12519")) {
+      throw new SQLException("Listener refused the connection with the following error: "
+          + "ORA-12519, TNS:no appropriate service handler found", "66000", 12519);
+    }
+    if (url.contains("FAIL01017")) {
+      throw new SQLException("ORA-01017: invalid username/password; logon denied", "72000", 1017);
+    }
+
+    final long queryMs = getSetting("queryMs", 0) * (url.contains("SLOWQ")
+        ? getSetting("slowFactor", 10) : 1);
+    final boolean failFetch = url.contains("FAILFETCH");
+    final boolean failInsert = url.contains("FAILINSERT");
+
+    return (OracleConnection) createProxy(new Class<?>[] {OracleConnection.class},
+        new InvocationHandler() {
+          private volatile boolean closed = false;
+
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("isClosed")) {
+              return closed;
+            } else if (name.equals("close")) {
+              closed = true;
+              roundTrip();
+              return null;
+            } else if (name.equals("abort")) {
+              closed = true;
+              return null;
+            } else if (name.equals("createStatement") || name.equals("prepareStatement")
+                || name.equals("prepareCall")) {
+              return createStatement(queryMs, failFetch, failInsert);
+            } else if (name.equals("setAutoCommit") || name.equals("commit")
+                || name.equals("rollback")) {
+              roundTrip();
+              return null;
+            } else if (name.equals("setSavepoint")) {
+              roundTrip();
+              return createProxy(new Class<?>[] {Savepoint.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                  return getDefault(proxy, method, args);
+                }
+              });
+            } else if (name.equals("getMetaData")) {
+              return createMetaData();
+            }
+            return getDefault(proxy, method, args);
+          }
+        });
+  }
+
+  // statement, prepared statement and callable statement (block mode) of a connection
+  // metadata of a connection: quoted identifiers and savepoints (OutputDatabase)
+  private static DatabaseMetaData createMetaData() {
+    return (DatabaseMetaData) createProxy(new Class<?>[] {DatabaseMetaData.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getIdentifierQuoteString")) {
+              return "\"";
+            } else if (name.equals("supportsSavepoints")) {
+              return true;
+            }
+            return getDefault(proxy, method, args);
+          }
+        });
+  }
+
+  private static Object createStatement(final long queryMs, final boolean failFetch,
+      final boolean failInsert) {
+    return createProxy(new Class<?>[] {OracleStatement.class, PreparedStatement.class,
+        CallableStatement.class, OracleCallableStatement.class}, new InvocationHandler() {
+          private int fetchSize = 10;
+          private int timeout = 0;
+          private int batch = 0;
+          private long inserted = 0;
+
+          public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            String name = method.getName();
+            if (name.equals("setFetchSize")) {
+              fetchSize = (Integer) args[0];
+              return null;
+            } else if (name.equals("getFetchSize")) {
+              return fetchSize;
+            } else if (name.equals("setQueryTimeout")) {
+              timeout = (Integer) args[0];
+              return null;
+            } else if (name.equals("executeQuery")) {
+              execute();
+              return createResultSet(fetchSize, true, failFetch);
+            } else if (name.equals("execute")) {
+              execute();
+              return false;
+            } else if (name.equals("getObject")) {
+              // REF CURSOR of a PL/SQL block: no rows with the execute
+              return createResultSet(fetchSize, false, failFetch);
+            } else if (name.equals("getString")) {
+              // no error message of a query in the block
+              return null;
+            } else if (name.equals("addBatch")) {
+              batch++;
+              return null;
+            } else if (name.equals("clearBatch")) {
+              batch = 0;
+              return null;
+            } else if (name.equals("executeBatch")) {
+              roundTrip();
+              int[] counts = new int[batch];
+              batch = 0;
+              if (failInsert && inserted >= getSetting("failAfter", 0)) {
+                throw new SQLException("ORA-01438: value larger than specified precision allowed "
+                    + "for this column", "22003", 1438);
+              }
+              inserted += counts.length;
+              return counts;
+            }
+            return getDefault(proxy, method, args);
+          }
+
+          // a query longer than the query timeout is cancelled (ORA-01013)
+          private void execute() throws SQLException {
+            if (timeout > 0 && queryMs > timeout * 1000L) {
+              sleep(timeout * 1000L);
+              throw new SQLException("ORA-01013: user requested cancel of current operation",
+                  "72000", 1013);
+            }
+            sleep(queryMs);
+            roundTrip();
+          }
+        });
+  }
+
+  // result with generated rows, prefetched: the first fetchSize rows came with the execute
+  private static ResultSet createResultSet(final int fetchSize, final boolean prefetched,
+      final boolean failFetch) {
+    final long rows = getSetting("rows", 3);
+    final int columns = (int) getSetting("cols", 3);
+    final long failAfter = getSetting("failAfter", rows / 2);
+
+    final ResultSetMetaData metaData = (ResultSetMetaData) createProxy(
+        new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            boolean number = args != null && (Integer) args[0] % 2 == 0;
+            if (name.equals("getColumnCount")) {
+              return columns;
+            } else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+              return "COL" + args[0];
+            } else if (name.equals("getColumnType")) {
+              return number ? Types.NUMERIC : Types.VARCHAR;
+            } else if (name.equals("getColumnTypeName")) {
+              return number ? "NUMBER" : "VARCHAR2";
+            } else if (name.equals("getColumnClassName")) {
+              return number ? BigDecimal.class.getName() : String.class.getName();
+            } else if (name.equals("getColumnDisplaySize")) {
+              return number ? 22 : 30;
+            } else if (name.equals("getPrecision")) {
+              return 10;
+            } else if (name.equals("isNullable")) {
+              return ResultSetMetaData.columnNullable;
+            }
+            return getDefault(proxy, method, args);
+          }
+        });
+
+    return (ResultSet) createProxy(new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+      private long row = 0;
+      private int fetch = fetchSize;
+      private long buffered = prefetched ? fetchSize : 0;
+      private boolean end = false;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+        String name = method.getName();
+        int column = args != null && args.length > 0 && args[0] instanceof Integer
+            ? (Integer) args[0] : 1;
+
+        if (name.equals("next")) {
+          return next();
+        } else if (name.equals("getMetaData")) {
+          return metaData;
+        } else if (name.equals("setFetchSize")) {
+          fetch = (Integer) args[0];
+          return null;
+        } else if (name.equals("getFetchSize")) {
+          return fetch;
+        } else if (name.equals("getObject")) {
+          return column % 2 == 0 ? (Object) new BigDecimal(row * column) : getString(column);
+        } else if (name.equals("getBigDecimal")) {
+          return new BigDecimal(row * column);
+        } else if (name.equals("getString")) {
+          return column % 2 == 0 ? String.valueOf(row * column) : getString(column);
+        } else if (name.equals("getLong")) {
+          return row * column;
+        } else if (name.equals("getInt")) {
+          return (int) (row * column);
+        } else if (name.equals("getDouble")) {
+          return (double) (row * column);
+        }
+        return getDefault(proxy, method, args);
+      }
+
+      private String getString(int column) {
+        return "value_" + row + "_" + column;
+      }
+
+      // a round trip every fetch rows (the end of the result is detected by an empty fetch)
+      private boolean next() throws SQLException {
+        if (failFetch && row >= failAfter) {
+          throw new SQLException("ORA-03113: end-of-file on communication channel", "08000",
+              3113);
+        }
+
+        if (row < rows || (row == rows && !end)) {
+          if (buffered == 0) {
+            roundTrip();
+            buffered = Math.max(1, fetch);
+          }
+          if (row == rows) {
+            end = true;
+          } else {
+            buffered--;
+          }
+        }
+        return ++row <= rows;
+      }
+    });
+  }
+
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  public boolean jdbcCompliant() {
+    return false;
+  }
+
+  public Logger getParentLogger() {
+    return null;
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Benchmark of the thread executor (pool vs. virtual) with a simulated slow-target inventory
+ * 
+ * Every simulated database sleeps for its connect and query time, like a thread blocked in the JDBC
+ * login and network waits.
+ * 
+ */
+public class BenchExecutor {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 6) {
+      BenchUtil.usage(BenchExecutor.class,
+          "<pool|virtual> <databases> <connectMs> <queryMs> <threadRun> <connectionMax>");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+    System.exit(0);
+  }
+
+  private static void run(String type, int databases, final int connectMs, final int queryMs,
+      int threadRun, int connectionMax) throws Exception {
+
+    ExecutorService threads = jcdbe.createExecutor(type, threadRun, threadRun, 10);
+    final ConnectionLimiter limiter =
+        new ConnectionLimiter(threads, new DatabaseList(), connectionMax, 0, 0);
+    final CountDownLatch done = new CountDownLatch(databases);
+
+    long start = System.currentTimeMillis();
+
+    for (int i = 1; i <= databases; i++) {
+      final Integer id = i;
+      limiter.submit(id, "localhost:1521", null, new Runnable() {
+        public void run() {
+          try {
+            Thread.sleep(connectMs);
+            Thread.sleep(queryMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          limiter.release(id);
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+    long time = System.currentTimeMillis() - start;
+    threads.shutdown();
+
+    System.out.println("Executor:        " + type);
+    System.out.println("Databases:       " + databases);
+    System.out.println("Connect/Query:   " + connectMs + " ms / " + queryMs + " ms");
+    System.out.println("Threads/Conns:   " + threadRun + " / " + connectionMax);
+    System.out.println("Wall clock:      " + time + " ms");
+    System.out.println("Peak threads:    "
+        + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    System.out.println("Peak RSS:        " + BenchUtil.getPeakRSS());
+  }
+
+}
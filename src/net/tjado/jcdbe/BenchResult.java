@@ -0,0 +1,115 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ini4j.Ini;
+
+/**
+ * Benchmark of the result handling (rowset vs. stream) of large results
+ * 
+ * Every database fetches a generated result in parallel into the OutputDummy or the OutputCSV
+ * (temporary file, streamed results are buffered until they are complete), either as CachedRowSet
+ * or streamed in row batches. The peak heap and the buffered bytes counted in the ResultMemory
+ * are printed.
+ * 
+ */
+public class BenchResult {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 4 && args.length != 5) {
+      BenchUtil.usage(BenchResult.class,
+          "<rowset|stream> <databases> <rows> <columns> [dummy|csv]");
+    }
+
+    run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        args.length == 5 ? args[4] : "dummy");
+    System.exit(0);
+  }
+
+  private static void run(final String mode, int databases, final int rows, final int columns,
+      String target) throws Exception {
+
+    ResultMemory memory = new ResultMemory(0);
+    ResultBuffer.setResultMemory(memory);
+
+    File file = null;
+    Output selected = OutputDummy.getInstance();
+    if (target.equals("csv")) {
+      file = File.createTempFile("jcdbe-bench-", ".csv");
+      file.deleteOnExit();
+      selected = OutputCSV.getInstance();
+      BenchUtil.initOutput(selected, file.getPath(), new Ini());
+    }
+    final Output output = selected;
+
+    ExecutorService threads = Executors.newFixedThreadPool(databases);
+    final CountDownLatch done = new CountDownLatch(databases);
+
+    long start = System.currentTimeMillis();
+
+    for (int i = 1; i <= databases; i++) {
+      final Integer id = i;
+      threads.execute(new Runnable() {
+        public void run() {
+          try {
+            DatabaseOracle db = new DatabaseOracle();
+            ResultSet rs = BenchUtil.generateResultSet(rows, columns);
+
+            if (mode.equals("stream")) {
+              db.streamResultSet(id, 1, rs, (OutputStreaming) output);
+            } else {
+              output.saveResult(db.convertToCachedRowSet(id, rs), id, 1);
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+    output.close();
+    long time = System.currentTimeMillis() - start;
+    threads.shutdown();
+
+    System.out.println("Result handling: " + mode + " (output: " + target + ")");
+    System.out.println("Databases:       " + databases);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+    System.out.println("Wall clock:      " + time + " ms");
+    System.out.println("Peak heap:       " + BenchUtil.getPeakHeap() / 1024 / 1024 + " MB");
+    System.out.println("Buffered peak:   " + memory.getPeak() / 1024 / 1024 + " MB (ResultMemory)");
+    if (file != null) {
+      System.out.println("File size:       " + file.length() / 1024 / 1024 + " MB");
+      file.delete();
+    }
+  }
+
+}
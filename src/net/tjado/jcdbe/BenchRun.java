@@ -0,0 +1,39 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+/**
+ * Whole JCDBE run against simulated databases
+ * 
+ * Registers the BenchDriver in the DriverManager and starts JCDBE with the same arguments and
+ * config/jcdbe.ini, so the input file can contain jdbc:jcdbe:bench:<name> URLs (see
+ * bench/databases.csv).
+ * 
+ */
+public class BenchRun {
+
+  public static void main(String[] args) throws Exception {
+    BenchDriver.register();
+    jcdbe.main(args);
+  }
+
+}
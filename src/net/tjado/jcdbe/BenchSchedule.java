@@ -0,0 +1,96 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Benchmark of the start order (input vs. longest first) with a skewed synthetic distribution
+ * 
+ * Log-normal durations around 2 s and 1% slow databases (1-2 min) at the end of the input, the
+ * makespan is calculated by a simulation of the connection slots (no sleeping).
+ * 
+ */
+public class BenchSchedule {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 2) {
+      BenchUtil.usage(BenchSchedule.class, "<databases> <connectionMax>");
+    }
+
+    run(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+    System.exit(0);
+  }
+
+  private static void run(int databases, int connectionMax) {
+    Random random = new Random(42);
+    DatabaseList dbList = new DatabaseList();
+    DatabaseStatistics statistics = new DatabaseStatistics(null);
+    long[] duration = new long[databases + 1];
+    long sum = 0;
+    long max = 0;
+
+    for (int i = 1; i <= databases; i++) {
+      Integer id = dbList.insert("//db" + i + ":1521/orcl", "user", "pw", null);
+      if (i > databases - databases / 100) {
+        duration[id] = 60000 + random.nextInt(60000);
+      } else {
+        duration[id] = (long) (2000 * Math.exp(random.nextGaussian()));
+      }
+      statistics.update(DatabaseStatistics.getKey(dbList.getURL(id), "user"), 0, duration[id], 0,
+          0);
+      sum += duration[id];
+      max = Math.max(max, duration[id]);
+    }
+
+    long makespanInput = simulateMakespan(dbList, duration, connectionMax);
+    long makespanLongest =
+        simulateMakespan(statistics.getSchedule(dbList, false), duration, connectionMax);
+
+    System.out.println("Databases:       " + databases);
+    System.out.println("Connections:     " + connectionMax);
+    System.out.println("Lower bound:     " + Math.max(sum / connectionMax, max) + " ms");
+    System.out.println("Input order:     " + makespanInput + " ms");
+    System.out.println("Longest first:   " + makespanLongest + " ms");
+  }
+
+  // every database starts on the connection slot which is free first
+  private static long simulateMakespan(Iterable<Integer> schedule, long[] duration, int slots) {
+    PriorityQueue<Long> free = new PriorityQueue<Long>();
+    for (int i = 0; i < slots; i++) {
+      free.add(0L);
+    }
+
+    long makespan = 0;
+    for (Integer id : schedule) {
+      long end = free.poll() + duration[id];
+      makespan = Math.max(makespan, end);
+      free.add(end);
+    }
+
+    return makespan;
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.File;
+import java.io.FileReader;
+
+import org.ini4j.Ini;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Benchmark of lookups in the store vs. CSV
+ * 
+ * The same generated results are written with OutputCSV and OutputStore (external ID = 1000 +
+ * database ID), then the rows of one external ID are looked up and the NUMBER column COL2 of all
+ * databases is summed up (aggregate).
+ * 
+ */
+public class BenchStore {
+
+  public static void main(String[] args) throws Exception {
+    BenchUtil.printBanner();
+
+    if (args.length != 3) {
+      BenchUtil.usage(BenchStore.class, "<databases> <rows> <columns>");
+    }
+
+    run(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    System.exit(0);
+  }
+
+  private static void run(int databases, int rows, int columns) throws Exception {
+
+    File csvFile = File.createTempFile("jcdbe-bench-", ".csv");
+    csvFile.deleteOnExit();
+    File base = File.createTempFile("jcdbe-bench-", "");
+    base.delete();
+    new File(base.getPath() + OutputStore.SUFFIX_DATA).deleteOnExit();
+    new File(base.getPath() + OutputStore.SUFFIX_INDEX).deleteOnExit();
+
+    DatabaseList dbList = new DatabaseList();
+    for (int i = 1; i <= databases; i++) {
+      dbList.insert("bench" + i, "bench", "bench", 1000 + i);
+    }
+
+    OutputCSV csv = OutputCSV.getInstance();
+    BenchUtil.initOutput(csv, csvFile.getPath(), new Ini());
+
+    OutputStore store = OutputStore.getInstance();
+    store.setDatabaseList(dbList);
+    BenchUtil.initOutput(store, base.getPath(), new Ini());
+
+    long start = System.nanoTime();
+    for (int i = 1; i <= databases; i++) {
+      new DatabaseOracle().streamResultSet(i, 1, BenchUtil.generateResultSet(rows, columns), csv);
+    }
+    csv.close();
+    long csvWrite = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    for (int i = 1; i <= databases; i++) {
+      new DatabaseOracle().streamResultSet(i, 1, BenchUtil.generateResultSet(rows, columns),
+          store);
+    }
+    store.close();
+    long storeWrite = (System.nanoTime() - start) / 1000000;
+
+    // CSV: the rows of one database can only be found by a full scan
+    int dbID = (databases + 1) / 2;
+    start = System.nanoTime();
+    long csvLookup = 0;
+    long csvSum = 0;
+    CSVReader reader = new CSVReader(new FileReader(csvFile), ',');
+    reader.readNext();
+    String[] line = null;
+    while ((line = reader.readNext()) != null) {
+      if (line[0].equals(String.valueOf(dbID))) {
+        csvLookup++;
+      }
+      csvSum += Long.parseLong(line[2]);
+    }
+    reader.close();
+    long csvTime = (System.nanoTime() - start) / 1000000;
+
+    // store: lookup by the external ID (only its row groups are read) and aggregate
+    start = System.nanoTime();
+    StoreReader storeReader = new StoreReader(base.getPath());
+    long storeLookup = 0;
+    for (StoreReader.Entry entry : storeReader.find(null, 1000 + dbID, 1)) {
+      storeLookup += storeReader.read(entry).size();
+    }
+    long lookupTime = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    long storeSum = 0;
+    for (StoreReader.Entry entry : storeReader.find(null, null, 1)) {
+      RowBatch batch = storeReader.read(entry);
+      for (int row = 0; row < batch.size(); row++) {
+        storeSum += batch.getLong(row, 3);
+      }
+    }
+    long aggregateTime = (System.nanoTime() - start) / 1000000;
+    storeReader.close();
+
+    System.out.println("Databases:       " + databases);
+    System.out.println("Rows/Columns:    " + rows + " / " + columns);
+    System.out.println("CSV:             write " + csvWrite + " ms, scan " + csvTime + " ms ("
+        + csvLookup + " rows of one database, sum " + csvSum + ")");
+    System.out.println("Store:           write " + storeWrite + " ms, lookup " + lookupTime
+        + " ms (" + storeLookup + " rows), aggregate " + aggregateTime + " ms (sum " + storeSum
+        + ")");
+  }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.ini4j.Ini;
+
+/**
+ * Shared parts of the benchmark classes (Bench*)
+ * 
+ * No database connection is needed: the simulated databases just sleep for their connect and query
+ * time (or use the BenchDriver), results are generated ResultSets. Every run should be started in
+ * its own JVM, so the RSS/heap values are comparable.
+ * 
+ */
+public class BenchUtil {
+
+  public static void printBanner() {
+    System.out.println("--------------------");
+    System.out.println("|      BENCH       |");
+    System.out.println("--------------------");
+  }
+
+  // prints the usage of a benchmark class and exits
+  public static void usage(Class<?> bench, String arguments) {
+    System.err.println("java -classpath jcdbe.jar " + bench.getName() + " " + arguments);
+    System.exit(10);
+  }
+
+  // CLI options, parameters and init of an output (outputFile null = no -of)
+  public static void initOutput(Output output, String outputFile, Ini ini) throws Exception {
+    Options options = new Options();
+    output.setCLI(options);
+    String[] args = outputFile == null ? new String[0] : new String[] {"-of", outputFile};
+    output.validateParameters(new PosixParser().parse(options, args), ini);
+    output.init();
+  }
+
+  // ResultSet with generated rows: VARCHAR2 (odd, 100 distinct values) and NUMBER(10) (even)
+  // columns
+  public static ResultSet generateResultSet(final int rows, final int columns) {
+    final int[] row = {0};
+
+    final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+        BenchUtil.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getColumnCount")) {
+              return columns;
+            } else if (name.equals("getColumnName")) {
+              return "COL" + args[0];
+            } else if (name.equals("getColumnType")) {
+              return (Integer) args[0] % 2 == 0 ? Types.NUMERIC : Types.VARCHAR;
+            } else if (name.equals("getColumnTypeName")) {
+              return (Integer) args[0] % 2 == 0 ? "NUMBER" : "VARCHAR2";
+            } else if (name.equals("getColumnDisplaySize")) {
+              return (Integer) args[0] % 2 == 0 ? 22 : 30;
+            } else if (name.equals("getPrecision")) {
+              return 10;
+            } else if (name.equals("getScale")) {
+              return 0;
+            }
+            return null;
+          }
+        });
+
+    return (ResultSet) Proxy.newProxyInstance(BenchUtil.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("next")) {
+              return ++row[0] <= rows;
+            } else if (name.equals("getMetaData")) {
+              return metaData;
+            } else if (name.equals("getObject")) {
+              int column = (Integer) args[0];
+              if (column % 2 == 0) {
+                return new BigDecimal((long) row[0] * column);
+              }
+              return "value_" + row[0] % 100 + "_" + column;
+            } else if (name.equals("getLong")) {
+              return (long) row[0] * (Integer) args[0];
+            } else if (name.equals("getString")) {
+              return "value_" + row[0] % 100 + "_" + args[0];
+            } else if (name.equals("wasNull")) {
+              return false;
+            }
+            return null;
+          }
+        });
+  }
+
+  // sum of the peak usage of all heap memory pools
+  public static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  // peak resident set size of this JVM (Linux only)
+  public static String getPeakRSS() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("VmHWM:")) {
+            return line.substring(6).trim();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (Exception e) {
+      // no procfs
+    }
+
+    Runtime rt = Runtime.getRuntime();
+    return ((rt.totalMemory() - rt.freeMemory()) / 1024) + " kB (heap only)";
+  }
+
+}
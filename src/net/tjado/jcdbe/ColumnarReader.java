@@ -0,0 +1,200 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reader of the columnar files of OutputColumnar
+ * 
+ * The header and the footer are read when the file is opened, every row group is read on demand
+ * into the same RowBatch (the values of the previous row group are overwritten):
+ * 
+ *  ColumnarReader reader = new ColumnarReader("out.q1.jcol");
+ *  for (int group = 0; group < reader.getRowGroupCount(); group++) {
+ *    RowBatch rows = reader.read(group);
+ *    ... rows.getLong(row, 3) ...
+ *  }
+ *  reader.close();
+ * 
+ * Not thread-safe
+ * 
+ */
+public class ColumnarReader {
+
+  // buffer of a row group read
+  private static final int BUFFER = 65536;
+
+  private FileChannel channel = null;
+
+  // compression of the row groups (OutputColumnar.NONE/DEFLATE)
+  private int compression = OutputColumnar.NONE;
+
+  // columns (index 0 = column 1)
+  private String[] names = null;
+  private int[] jdbcTypes = null;
+  private int[] types = null;
+
+  // offset and rows of the row groups
+  private long[] offsets = null;
+  private int[] rows = null;
+
+  private RowBatch batch = null;
+
+  public ColumnarReader(String file) throws IOException {
+    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+
+    try {
+      readHeader();
+      readFooter();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+
+    // result columns without DATABASE_NAME_JCDBE
+    int capacity = 1;
+    for (int groupRows : rows) {
+      capacity = Math.max(capacity, groupRows);
+    }
+    int[] resultJdbcTypes = new int[types.length - 1];
+    int[] resultTypes = new int[types.length - 1];
+    System.arraycopy(jdbcTypes, 1, resultJdbcTypes, 0, resultTypes.length);
+    System.arraycopy(types, 1, resultTypes, 0, resultTypes.length);
+    batch = new RowBatch(resultJdbcTypes, resultTypes, null, capacity);
+  }
+
+  private void readHeader() throws IOException {
+    DataInputStream in = open(0);
+    if (in.readInt() != OutputColumnar.MAGIC || in.readInt() != OutputColumnar.VERSION) {
+      throw new IOException("No columnar file of version " + OutputColumnar.VERSION);
+    }
+    compression = in.readByte();
+
+    int columns = in.readInt();
+    names = new String[columns];
+    jdbcTypes = new int[columns];
+    types = new int[columns];
+    for (int i = 0; i < columns; i++) {
+      names[i] = in.readUTF();
+      jdbcTypes[i] = in.readInt();
+      types[i] = in.readByte();
+    }
+  }
+
+  private void readFooter() throws IOException {
+    ByteBuffer tail = ByteBuffer.allocate(12);
+    channel.read(tail, channel.size() - 12);
+    tail.flip();
+    long footer = tail.getLong();
+    if (tail.getInt() != OutputColumnar.MAGIC) {
+      throw new IOException("Columnar file without footer (not closed)");
+    }
+
+    DataInputStream in = open(footer);
+    int groups = in.readInt();
+    offsets = new long[groups];
+    rows = new int[groups];
+    for (int group = 0; group < groups; group++) {
+      offsets[group] = in.readLong();
+      rows[group] = in.readInt();
+    }
+  }
+
+  private DataInputStream open(long position) throws IOException {
+    channel.position(position);
+    return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER));
+  }
+
+  // amount of columns including DATABASE_NAME_JCDBE
+  public int getColumnCount() {
+    return names.length;
+  }
+
+  // column: 1...n like in JDBC
+  public String getColumnName(int column) {
+    return names[column - 1];
+  }
+
+  public int getColumnType(int column) {
+    return jdbcTypes[column - 1];
+  }
+
+  public int getRowGroupCount() {
+    return offsets.length;
+  }
+
+  public int getRows(int group) {
+    return rows[group];
+  }
+
+  public long getRows() {
+    long sum = 0;
+    for (int groupRows : rows) {
+      sum += groupRows;
+    }
+    return sum;
+  }
+
+  // rows of a row group (the returned batch is reused by the next read)
+  public RowBatch read(int group) throws IOException {
+    readRowGroup(channel, offsets[group], compression, batch);
+    return batch;
+  }
+
+  // reads the row group at the offset of the channel into the batch (OutputColumnar format)
+  static void readRowGroup(FileChannel channel, long offset, int compression, RowBatch batch)
+      throws IOException {
+    channel.position(offset);
+    if (compression == OutputColumnar.NONE) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel), BUFFER));
+      batch.setFirstColumnValue(in.readBoolean() ? in.readUTF() : null);
+      batch.read(in);
+      return;
+    }
+
+    Inflater inflater = new Inflater();
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+          Channels.newInputStream(channel), inflater, BUFFER), BUFFER));
+      batch.setFirstColumnValue(in.readBoolean() ? in.readUTF() : null);
+      batch.read(in);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
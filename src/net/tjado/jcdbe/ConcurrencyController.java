@@ -0,0 +1,156 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+/**
+ * Adaptive limit of parallel database connections (AIMD)
+ * 
+ * Every finished database thread reports its connect and query time. After every window of
+ * databases the averages are compared with the best window so far: as long as the latency stays
+ * flat and only few connects fail, the limit grows (doubling until the first congestion, then by
+ * 10% per window). If the latency or the connect error rate spikes, the limit will be halved. The
+ * databases which were already running during a decrease are not taken into account anymore, so
+ * one spike halves the limit only once.
+ * 
+ * Not thread-safe, it will only be used by the ConnectionLimiter
+ * 
+ */
+public class ConcurrencyController {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // latency factor (compared to the best window) which is regarded as congestion
+  private static final double LATENCY_TOLERANCE = 2.0;
+
+  // connect error rate of a window which is regarded as congestion
+  private static final double ERROR_RATE = 0.1;
+
+  // factor of the limit after a congestion
+  private static final double BACKOFF = 0.5;
+
+  // minimum amount of databases in a window
+  private static final int WINDOW_MIN = 5;
+
+  // growth of the limit per window after the slow start
+  private static final double INCREASE = 0.1;
+
+  // current/minimum/maximum limit
+  private int limit = 0;
+  private int limitMin = 0;
+  private int limitMax = 0;
+
+  // doubling the limit until the first congestion
+  private boolean slowStart = true;
+
+  // samples of databases which were running during the last decrease
+  private int ignore = 0;
+
+  // samples of the current window
+  private int samples = 0;
+  private int errors = 0;
+  private long sumConnect = 0;
+  private long sumQuery = 0;
+
+  // best average latency of all windows (-1 = no window yet)
+  private double baseConnect = -1;
+  private double baseQuery = -1;
+
+  public ConcurrencyController(int limitMin, int limitMax) {
+    this.limitMin = Math.max(1, Math.min(limitMin, limitMax));
+    this.limitMax = Math.max(1, limitMax);
+    this.limit = this.limitMin;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  // connected: false if the connect failed
+  public void sample(boolean connected, long connectMillis, long queryMillis) {
+    if (ignore > 0) {
+      ignore--;
+      return;
+    }
+
+    samples++;
+    if (connected) {
+      sumConnect += connectMillis;
+      sumQuery += queryMillis;
+    } else {
+      errors++;
+    }
+
+    // a window covers one "round" of the running connections
+    if (samples >= Math.max(WINDOW_MIN, limit)) {
+      evaluate();
+
+      samples = 0;
+      errors = 0;
+      sumConnect = 0;
+      sumQuery = 0;
+    }
+  }
+
+  private void evaluate() {
+    int connected = samples - errors;
+    double errorRate = (double) errors / samples;
+    boolean congestion = errorRate > ERROR_RATE;
+
+    double avgConnect = -1;
+    double avgQuery = -1;
+    if (connected > 0) {
+      avgConnect = (double) sumConnect / connected;
+      avgQuery = (double) sumQuery / connected;
+
+      if (baseConnect < 0 || avgConnect < baseConnect) {
+        baseConnect = avgConnect;
+      } else if (avgConnect > baseConnect * LATENCY_TOLERANCE) {
+        congestion = true;
+      }
+
+      if (baseQuery < 0 || avgQuery < baseQuery) {
+        baseQuery = avgQuery;
+      } else if (avgQuery > baseQuery * LATENCY_TOLERANCE) {
+        congestion = true;
+      }
+    }
+
+    int oldLimit = limit;
+    if (congestion) {
+      slowStart = false;
+      limit = Math.max(limitMin, (int) (limit * BACKOFF));
+      ignore = oldLimit;
+    } else if (slowStart) {
+      limit = Math.min(limitMax, limit * 2);
+    } else {
+      limit = Math.min(limitMax, limit + Math.max(1, (int) (limit * INCREASE)));
+    }
+
+    if (oldLimit != limit) {
+      log.debug(String.format(
+          "[QUEUE] Connection limit %d -> %d (connect avg: %.0f ms, query avg: %.0f ms, "
+              + "errors: %.0f%%)", oldLimit, limit, avgConnect, avgQuery, errorRate * 100));
+    }
+  }
+
+}
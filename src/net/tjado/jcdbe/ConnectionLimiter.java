@@ -0,0 +1,329 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the amount of parallel database connections
+ * 
+ * The thread pool limits the connections only indirectly over the amount of running threads. With
+ * virtual threads there is no such limit anymore, so every DatabaseThreadSlave is queued here and
+ * only handed over to the thread executor if a connection slot is free. The thread releases its
+ * slot after the disconnect.
+ * 
+ * Besides the global limit, the connections per listener host and per Oracle Connection Manager
+ * (first address of a SOURCE_ROUTE connect descriptor) can be limited. Databases which are waiting
+ * for a saturated host don't block the slots, they will be used by databases on other hosts.
+ * 
+ * With a ConcurrencyController the overall limit adapts to the connect/query latency and the
+ * connect error rate reported by the finished threads.
+ * 
+ * Databases with a transient connect error are queued again in the retry lane after a jittered
+ * exponential backoff. They don't hold a slot while waiting and are only started if no database of
+ * the normal queue can be started.
+ * 
+ * Thread-safe
+ * 
+ */
+public class ConnectionLimiter {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // executor of the database threads
+  private ExecutorService threads = null;
+
+  // database list, to finish databases which could not be executed
+  private DatabaseList dbList = null;
+
+  // adaptive overall limit (null = static limit)
+  private ConcurrencyController controller = null;
+
+  // maximum parallel connections (overall, per host, per CMAN), 0 = unlimited
+  private int limit = 0;
+  private int hostLimit = 0;
+  private int routeLimit = 0;
+
+  // connections which are currently in use (overall, per host, per CMAN)
+  private int active = 0;
+  private Map<String, Integer> hostActive = new HashMap<String, Integer>();
+  private Map<String, Integer> routeActive = new HashMap<String, Integer>();
+
+  // waiting databases per host and CMAN (in queue order)
+  private Map<String, ArrayDeque<Slot>> hostQueues = new HashMap<String, ArrayDeque<Slot>>();
+
+  // host queues with waiting databases, sorted by the queue position of their first database
+  private TreeMap<Long, String> hostHeads = new TreeMap<Long, String>();
+
+  // running databases
+  private Map<Integer, Slot> running = new HashMap<Integer, Slot>();
+
+  // queue position of the next database
+  private long sequence = 0;
+
+  // queue position offset of the retry lane (behind all normal databases)
+  private static final long RETRY_LANE = Long.MAX_VALUE / 2;
+
+  // retries per database (0 = no retries) and remaining retries of the whole run
+  private int retryMax = 0;
+  private int retryBudget = 0;
+
+  // backoff of the first retry and maximum backoff in ms
+  private long retryDelay = 0;
+  private long retryDelayMax = 0;
+
+  // timer for the backoff of the retry lane
+  private ScheduledThreadPoolExecutor retryTimer = null;
+
+  private Random random = new Random();
+
+  // amount of waiting databases
+  private int queued = 0;
+
+  // queued/running database
+  private static class Slot {
+    Integer dbID;
+    String host;
+    String route;
+    String queue;
+    Runnable thread;
+    long sequence;
+  }
+
+  public ConnectionLimiter(ExecutorService threads, DatabaseList dbList, int limit, int hostLimit,
+      int routeLimit) {
+    this.threads = threads;
+    this.dbList = dbList;
+    this.limit = limit;
+    this.hostLimit = hostLimit;
+    this.routeLimit = routeLimit;
+  }
+
+  // use an adaptive overall limit
+  public synchronized void setController(ConcurrencyController controller) {
+    this.controller = controller;
+    this.limit = controller.getLimit();
+  }
+
+  // retries of transient connect errors
+  public synchronized void setRetry(int retryMax, int retryBudget, long retryDelay,
+      long retryDelayMax) {
+    this.retryMax = retryMax;
+    this.retryBudget = retryBudget;
+    this.retryDelay = retryDelay;
+    this.retryDelayMax = retryDelayMax;
+
+    if (retryMax > 0 && retryTimer == null) {
+      retryTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "retry-timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+
+  // queue a database thread
+  // host: "host:port" of the database listener, route: "host:port" of the CMAN or null
+  public synchronized void submit(Integer dbID, String host, String route, Runnable thread) {
+    submit(dbID, host, route, thread, false);
+  }
+
+  // queue a database thread again after a transient connect error (attempt: 1...retryMax)
+  // returns false if no retry is left for this database or the run
+  public synchronized boolean retry(final Integer dbID, final String host, final String route,
+      final Runnable thread, int attempt) {
+    if (attempt > retryMax || retryBudget <= 0) {
+      return false;
+    }
+    retryBudget--;
+
+    // exponential backoff with jitter (50-100%), so the retries don't hit the listener together
+    long delay = Math.min(retryDelayMax, retryDelay << Math.min(attempt - 1, 20));
+    delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+    log.info(dbID, "Retry " + attempt + "/" + retryMax + " in " + delay + " ms");
+
+    retryTimer.schedule(new Runnable() {
+      public void run() {
+        submit(dbID, host, route, thread, true);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+
+    return true;
+  }
+
+  private synchronized void submit(Integer dbID, String host, String route, Runnable thread,
+      boolean retry) {
+    Slot slot = new Slot();
+    slot.dbID = dbID;
+    slot.host = host;
+    slot.route = route;
+    // a host reached directly and over a CMAN has two queues (a saturated CMAN doesn't block the
+    // direct connections), but one connection count for the host limit
+    slot.queue = (route == null ? "" : route + ">") + host;
+    slot.thread = thread;
+    slot.sequence = (retry ? RETRY_LANE : 0) + sequence++;
+
+    ArrayDeque<Slot> queue = hostQueues.get(slot.queue);
+    if (queue == null) {
+      queue = new ArrayDeque<Slot>();
+      hostQueues.put(slot.queue, queue);
+    }
+    if (queue.isEmpty()) {
+      hostHeads.put(slot.sequence, slot.queue);
+    }
+    queue.add(slot);
+    queued++;
+
+    dispatch();
+  }
+
+  // free the connection slot of a database and report its latency to the adaptive limit
+  // connected: false if the connect failed
+  public synchronized void release(Integer dbID, boolean connected, long connectMillis,
+      long queryMillis) {
+    if (controller != null && running.containsKey(dbID)) {
+      controller.sample(connected, connectMillis, queryMillis);
+      limit = controller.getLimit();
+    }
+
+    release(dbID);
+  }
+
+  // free the connection slot of a database and start the next waiting ones
+  public synchronized void release(Integer dbID) {
+    Slot slot = running.remove(dbID);
+    if (slot == null) {
+      return;
+    }
+
+    active--;
+    decrement(hostActive, slot.host);
+    if (slot.route != null) {
+      decrement(routeActive, slot.route);
+    }
+
+    dispatch();
+  }
+
+  // amount of connections which are currently in use
+  public synchronized int getActive() {
+    return active;
+  }
+
+  // amount of databases waiting for a connection slot
+  public synchronized int getQueued() {
+    return queued;
+  }
+
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  // hand over waiting databases to the executor as long as slots are free
+  private void dispatch() {
+    while (limit == 0 || active < limit) {
+      Slot slot = nextSlot();
+      if (slot == null) {
+        return;
+      }
+
+      active++;
+      increment(hostActive, slot.host);
+      if (slot.route != null) {
+        increment(routeActive, slot.route);
+      }
+      running.put(slot.dbID, slot);
+
+      try {
+        threads.execute(slot.thread);
+      } catch (RuntimeException e) {
+        jcdbe.advDebug(e);
+        log.warn(slot.dbID, "Could not start thread: " + e.getMessage());
+        release(slot.dbID);
+        dbList.setFinish(slot.dbID);
+      }
+    }
+  }
+
+  // remove and return the first waiting database whose host and CMAN are not saturated
+  private Slot nextSlot() {
+    Iterator<Map.Entry<Long, String>> it = hostHeads.entrySet().iterator();
+    while (it.hasNext()) {
+      String key = it.next().getValue();
+      ArrayDeque<Slot> queue = hostQueues.get(key);
+      Slot slot = queue.peek();
+
+      if (hostLimit > 0 && count(hostActive, slot.host) >= hostLimit) {
+        continue;
+      }
+      if (routeLimit > 0 && slot.route != null && count(routeActive, slot.route) >= routeLimit) {
+        continue;
+      }
+
+      it.remove();
+      queue.poll();
+      queued--;
+
+      if (queue.isEmpty()) {
+        hostQueues.remove(key);
+      } else {
+        hostHeads.put(queue.peek().sequence, key);
+      }
+
+      return slot;
+    }
+
+    return null;
+  }
+
+  private int count(Map<String, Integer> map, String key) {
+    Integer value = map.get(key);
+    return value == null ? 0 : value;
+  }
+
+  private void increment(Map<String, Integer> map, String key) {
+    map.put(key, count(map, key) + 1);
+  }
+
+  private void decrement(Map<String, Integer> map, String key) {
+    int value = count(map, key) - 1;
+    if (value <= 0) {
+      map.remove(key);
+    } else {
+      map.put(key, value);
+    }
+  }
+
+}
@@ -21,10 +21,13 @@
 
 package net.tjado.jcdbe;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class handles the synchronized access of the database list which also includes login
@@ -40,7 +43,14 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
       new HashMap<Integer, Map<String, Object>>();
 
   // Current number of databases in list
-  private int databaseListSize = 0;
+  private volatile int databaseListSize = 0;
+
+  // Number of databases which are already processed
+  private AtomicInteger finishedCount = new AtomicInteger(0);
+
+  // last progress time of the running databases (for the watchdog)
+  // outside of the HashMap, so the database threads don't need the lock of this list
+  private ConcurrentHashMap<Integer, Long> running = new ConcurrentHashMap<Integer, Long>();
 
   // Iterator current position of the internal id
   private int currentPosition = 0;
@@ -81,15 +91,31 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
     return newID;
   }
 
-  public synchronized boolean isFinished() {
-    for (int i = 1; i <= databaseListSize; i++) {
-      Boolean finished = (Boolean) get(i, "FINISHED");
-      if (finished == false) {
-        return false;
-      }
+  // O(1) and without lock, so it can be polled without blocking the database threads
+  public boolean isFinished() {
+    return finishedCount.get() >= databaseListSize;
+  }
+
+  public int getFinishedCount() {
+    return finishedCount.get();
+  }
+
+  // blocks until every database was set to finished
+  public synchronized void awaitFinished() throws InterruptedException {
+    while (!isFinished()) {
+      wait();
     }
+  }
 
-    return true;
+  // waits at most timeout ms, true if all databases are finished
+  public synchronized boolean awaitFinished(long timeout) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeout;
+    long wait = timeout;
+    while (!isFinished() && wait > 0) {
+      wait(wait);
+      wait = end - System.currentTimeMillis();
+    }
+    return isFinished();
   }
 
   private synchronized Object get(Integer id, String key) {
@@ -121,14 +147,57 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
     return false;
   }
 
-  public void setFinish(Integer id) {
+  public synchronized void setFinish(Integer id) {
+    // count every database only once
+    if (Boolean.TRUE.equals(get(id, "FINISHED"))) {
+      return;
+    }
+
     set(id, "FINISHED", true);
+    running.remove(id);
+
+    // wake up the waiting main thread after the last database
+    if (finishedCount.incrementAndGet() >= databaseListSize) {
+      notifyAll();
+    }
+  }
+
+  // database thread was started
+  public void setStarted(Integer id) {
+    running.put(id, System.currentTimeMillis());
+  }
+
+  // database thread is waiting (retry lane, execute queue of the pipeline), so no progress is
+  // expected
+  public void setWaiting(Integer id) {
+    running.remove(id);
+  }
+
+  // all rows of the database are fetched and the connection is closed, only its results are
+  // written (output stage), so no progress is expected from the database anymore
+  public void setFetched(Integer id) {
+    running.remove(id);
+  }
+
+  // database thread made progress (ignored if the database is not running anymore)
+  public void setProgress(Integer id) {
+    running.replace(id, System.currentTimeMillis());
+  }
+
+  // last progress time of all running databases (read-only)
+  public Map<Integer, Long> getRunning() {
+    return Collections.unmodifiableMap(running);
   }
 
   public boolean setThread(Integer id, Runnable thread) {
     return set(id, "THREAD", thread);
   }
 
+  // connect, execute, fetch and output time in ms
+  public boolean setTimings(Integer id, long connect, long execute, long fetch, long output) {
+    return set(id, "TIMINGS", new long[] {connect, execute, fetch, output});
+  }
+
   public String getURL(Integer id) {
     return (String) get(id, "URL");
   }
@@ -141,8 +210,8 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
     return (String) get(id, "PASSWORD");
   }
 
-  public Integer getLastUpdate(Integer id) {
-    return (Integer) get(id, "LAST_UPDATE");
+  public Long getLastUpdate(Integer id) {
+    return (Long) get(id, "LAST_UPDATE");
   }
 
   public Runnable getThread(Integer id) {
@@ -157,6 +226,11 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
     return (Integer) get(id, "EXTERNAL_ID");
   }
 
+  // connect, execute, fetch and output time in ms or null if not processed
+  public long[] getTimings(Integer id) {
+    return (long[]) get(id, "TIMINGS");
+  }
+
   
   public int size() {
     return databaseListSize;
@@ -181,8 +255,26 @@ public class DatabaseList implements Iterable<Integer>, Iterator<Integer> {
     return;
   }
 
+  // every call returns a new iterator, so the list can be iterated more than once
   public Iterator<Integer> iterator() {
-    return this;
+    return new Iterator<Integer>() {
+      private int position = 0;
+
+      public boolean hasNext() {
+        return position < databaseListSize;
+      }
+
+      public Integer next() {
+        if (position >= databaseListSize) throw new NoSuchElementException();
+
+        position++;
+        return position;
+      }
+
+      public void remove() {
+        return;
+      }
+    };
   }
 
 }
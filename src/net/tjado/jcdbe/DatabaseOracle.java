@@ -22,15 +22,28 @@
 package net.tjado.jcdbe;
 
 import java.io.FileInputStream;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
@@ -40,6 +53,8 @@ import javax.sql.rowset.RowSetMetaDataImpl;
 
 import oracle.jdbc.OracleConnection;
 import oracle.jdbc.OracleConnectionWrapper;
+import oracle.jdbc.OracleStatement;
+import oracle.jdbc.OracleTypes;
 import oracle.jdbc.pool.OracleDataSource;
 import oracle.jdbc.rowset.OracleCachedRowSet;
 
@@ -57,8 +72,8 @@ public class DatabaseOracle {
   // static properties for JDBC
   static private Properties properties = new Properties();
 
-  // database handle
-  private OracleConnection link = null;
+  // database handle (volatile, it will be aborted by the deadline timer)
+  private volatile OracleConnection link = null;
 
   // save last Exception
   private Exception lastException = null;
@@ -72,6 +87,63 @@ public class DatabaseOracle {
   // connection timeout
   private static int timeoutConnect = 10;
 
+  // query timeout in seconds for reporting queries (0 = unlimited)
+  private static int timeoutQuery = 0;
+
+  // read-only reporting session: no autocommit switch after the connect and no rollback before
+  // the close (two round trips less)
+  private boolean readOnly = false;
+
+  // ORA error codes of transient connect errors (e.g. listener overload), which can be retried
+  private static Set<Integer> transientErrors = new HashSet<Integer>();
+
+  // sum of the execute/fetch time of all reporting queries in ms
+  private long timeExecute = 0;
+  private long timeFetch = 0;
+
+  // last connect/execute/fetch progress (read by the watchdog)
+  private volatile long lastProgress = 0;
+
+  // result memory of the database thread (null = not accounted), fetch is waiting for memory
+  private ResultMemory.Account memory = null;
+  private volatile boolean waitingMemory = false;
+
+  // rows between two fetch progress updates
+  private static final int PROGRESS_ROWS = 1000;
+
+  // rows per batch for streaming outputs
+  private static final int ROW_BATCH = 1000;
+
+  // row prefetch of the driver and limits of the adaptive fetch size
+  private static final int FETCH_SIZE_DEFAULT = 10;
+  private static final int FETCH_SIZE_MIN = 10;
+  private static final int FETCH_SIZE_MAX = 10000;
+
+  // estimated bytes of a LOB locator and maximum bytes of a column for the adaptive fetch size
+  private static final int LOB_LOCATOR_BYTES = 100;
+  private static final int COLUMN_BYTES_MAX = 4000;
+
+  // rows per fetch round trip (queryID -> rows, null = all queries), 0 = adaptive
+  private static Map<Integer, Integer> fetchSize = new HashMap<Integer, Integer>();
+
+  // adaptive fetch size: bytes per fetch round trip
+  private static int fetchBytes = 524288;
+
+  // LOB prefetch in bytes (queryID -> bytes, null = all queries), not set = driver default
+  private static Map<Integer, Integer> lobPrefetchSize = new HashMap<Integer, Integer>();
+
+  // results larger than spillBytes are written into a spill file in spillDirectory instead of a
+  // CachedRowSet (0 = never, directory null = java.io.tmpdir)
+  private static long spillBytes = 0;
+  private static String spillDirectory = null;
+
+  // spilled results which are not taken by the database thread yet (queryID -> spill)
+  private Map<Integer, ResultSpill> spills = new ConcurrentHashMap<Integer, ResultSpill>();
+
+  // fetch statistics of all databases (queryID -> rows, estimated round trips, fetch ms,
+  // databases)
+  private static Map<Integer, long[]> fetchStatistics = new TreeMap<Integer, long[]>();
+
   public DatabaseOracle() {
     // nothing to do
   }
@@ -100,20 +172,39 @@ public class DatabaseOracle {
     }
 
     try {
-      OracleDataSource ods = new OracleDataSource();
-      ods.setURL(url);
-      ods.setUser(username);
-      ods.setPassword(password);
+      OracleConnection temp = null;
 
-      // set login timeout
-      ods.setLoginTimeout(timeoutConnect);
+      if (url.startsWith("jdbc:oracle:")) {
+        OracleDataSource ods = new OracleDataSource();
+        ods.setURL(url);
+        ods.setUser(username);
+        ods.setPassword(password);
 
-      // JDBC properties
-      ods.setConnectionProperties(properties);
+        // set login timeout
+        ods.setLoginTimeout(timeoutConnect);
 
-      OracleConnection temp = (OracleConnection) ods.getConnection();
+        // JDBC properties
+        ods.setConnectionProperties(properties);
+
+        temp = (OracleConnection) ods.getConnection();
+      } else {
+        // URL of another JDBC driver registered in the DriverManager, which must deliver Oracle
+        // connections (e.g. a proxy driver in front of the Oracle driver)
+        Properties info = new Properties();
+        info.putAll(properties);
+        info.put("user", username);
+        info.put("password", password);
+
+        Connection connection = DriverManager.getConnection(url, info);
+        if (!connection.isWrapperFor(OracleConnection.class)) {
+          connection.close();
+          throw new SQLException("Not an Oracle JDBC connection: " + url);
+        }
+        temp = connection.unwrap(OracleConnection.class);
+      }
 
       link = new OracleConnectionWrapper(temp);
+      lastProgress = System.currentTimeMillis();
 
     } catch (SQLException e) {
       // log.debug("Exception (DB->connect): " + e.getMessage());
@@ -122,6 +213,10 @@ public class DatabaseOracle {
     }
 
     if (isConnected()) {
+      if (readOnly) {
+        return true;
+      }
+
       try {
         link.setAutoCommit(false);
       } catch (SQLException e) {
@@ -145,7 +240,9 @@ public class DatabaseOracle {
     }
 
     try {
-      this.link.rollback();
+      if (!readOnly) {
+        this.link.rollback();
+      }
       this.link.close();
     } catch (Exception e) {
       log.debug("Exception (DB->disconnect): " + e.getMessage());
@@ -155,6 +252,73 @@ public class DatabaseOracle {
   }
 
 
+  // cancels the running statement on the server and closes the connection immediately
+  // (without rollback/logoff round trip), can be called from another thread
+  public void abort() {
+    OracleConnection temp = this.link;
+    if (temp == null) {
+      return;
+    }
+
+    try {
+      temp.cancel();
+    } catch (Exception e) {
+      log.debug("Exception (DB->cancel): " + e.getMessage());
+    }
+
+    try {
+      temp.abort();
+    } catch (Exception e) {
+      log.debug("Exception (DB->abort): " + e.getMessage());
+      setLastException(e);
+    }
+  }
+
+  // comma separated ORA error codes, e.g. "12516,12519,12520"
+  static public void setTransientErrors(String errors) {
+    transientErrors.clear();
+    for (String error : errors.split(",")) {
+      if (error.trim().length() > 0) {
+        transientErrors.add(Integer.parseInt(error.trim()));
+      }
+    }
+  }
+
+  // true if the (connect) exception is transient and the connect can be retried later
+  // the ORA code is checked in the vendor error code and in the messages of the causes
+  public static boolean isTransient(Exception e) {
+    Pattern patternORA = Pattern.compile("ORA-(?<CODE>[0-9]{5})");
+
+    Throwable t = e;
+    while (t != null) {
+      if (t instanceof SQLException && transientErrors.contains(((SQLException) t).getErrorCode())) {
+        return true;
+      }
+
+      if (t.getMessage() != null) {
+        Matcher m = patternORA.matcher(t.getMessage());
+        while (m.find()) {
+          if (transientErrors.contains(Integer.parseInt(m.group("CODE")))) {
+            return true;
+          }
+        }
+      }
+
+      t = t.getCause();
+    }
+
+    return false;
+  }
+
+  // true if the exception was caused by the query timeout (ORA-01013: user requested cancel)
+  public static boolean isTimeout(Exception e) {
+    if (e instanceof SQLTimeoutException) {
+      return true;
+    }
+    return e instanceof SQLException && ((SQLException) e).getErrorCode() == 1013;
+  }
+
+
   public boolean isConnected() {
 
     if (this.link == null) {
@@ -191,6 +355,84 @@ public class DatabaseOracle {
     timeoutConnect = seconds;
   }
 
+  static public void setQueryTimeout(int seconds) {
+    timeoutQuery = seconds;
+  }
+
+  // rows per fetch round trip of a query (queryID null = default of all queries), 0 = adaptive
+  static public void setFetchSize(Integer queryID, int rows) {
+    fetchSize.put(queryID, rows);
+  }
+
+  // bytes per fetch round trip of the adaptive fetch size
+  static public void setFetchBytes(int bytes) {
+    fetchBytes = bytes;
+  }
+
+  // LOB prefetch of a query in bytes (queryID null = default of all queries)
+  static public void setLobPrefetchSize(Integer queryID, int bytes) {
+    lobPrefetchSize.put(queryID, bytes);
+  }
+
+  static public void setSpill(long bytes, String directory) {
+    spillBytes = bytes;
+    spillDirectory = directory;
+  }
+
+  static public long getSpillBytes() {
+    return spillBytes;
+  }
+
+  static public String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  private static Integer getQuerySetting(Map<Integer, Integer> settings, Integer queryID) {
+    Integer value = settings.get(queryID);
+    return value != null ? value : settings.get(null);
+  }
+
+  // only for sessions without any DML (must be set before the connect)
+  public void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+  }
+
+  public long getTimeExecute() {
+    return timeExecute;
+  }
+
+  public long getTimeFetch() {
+    return timeFetch;
+  }
+
+  public long getLastProgress() {
+    return lastProgress;
+  }
+
+  public void setMemory(ResultMemory.Account memory) {
+    this.memory = memory;
+  }
+
+  // waiting for the ResultMemory is no hung session (read by the watchdog)
+  public boolean isWaitingForMemory() {
+    return waitingMemory;
+  }
+
+  // spill file of a result (getReportingResults returned null for it) or null
+  public ResultSpill removeSpill(Integer queryID) {
+    return spills.remove(queryID);
+  }
+
+  // deletes the spill files which are not taken by the database thread
+  public void deleteSpills() {
+    for (Integer queryID : spills.keySet()) {
+      ResultSpill spill = spills.remove(queryID);
+      if (spill != null) {
+        spill.delete();
+      }
+    }
+  }
+
 
 
   public OracleCachedRowSet getResults(String query, Object[] bindVars) {
@@ -220,7 +462,8 @@ public class DatabaseOracle {
   }
 
 
-  public OracleCachedRowSet getReportingResults(Integer dbID, String query) {
+  // returns null if the query failed (getLastException) or the result was spilled (removeSpill)
+  public OracleCachedRowSet getReportingResults(Integer dbID, Integer queryID, String query) {
     if (!isConnected()) {
       // log.fatal("Exception (DB->getReportingResults): no DB connection" );
       setLastException(null);
@@ -233,17 +476,33 @@ public class DatabaseOracle {
     OracleCachedRowSet crs = null;
     try {
 
+      long start = System.currentTimeMillis();
       Statement stmt = this.link.createStatement();
+      if (timeoutQuery > 0) {
+        stmt.setQueryTimeout(timeoutQuery);
+      }
+      int prefetch = prepareFetch(stmt, queryID);
       rs = stmt.executeQuery(query);
+      timeExecute += System.currentTimeMillis() - start;
+      lastProgress = System.currentTimeMillis();
 
-      crs = convertToCachedRowSet(dbID, rs);
+      start = System.currentTimeMillis();
+      int size = tuneFetch(rs, queryID, prefetch);
+      crs = convertToCachedRowSet(dbID, rs, queryID);
 
       rs.close();
       stmt.close();
+      timeFetch += System.currentTimeMillis() - start;
+
+      addFetchStatistics(dbID, queryID, getResultRows(dbID, queryID, crs), prefetch, size,
+          System.currentTimeMillis() - start);
 
     } catch (Exception e) {
       log.warn("Exception (DB->getReportingResults): " + e.getMessage());
       setLastException(e);
+      releaseMemory(queryID);
+      deleteSpills();
+      restoreInterrupt(e);
       return null;
     }
 
@@ -251,6 +510,287 @@ public class DatabaseOracle {
   }
 
 
+  // like getReportingResults, but the rows are streamed in batches into the output instead of
+  // being collected in a CachedRowSet
+  // returns the amount of rows or -1 if the query failed (getLastException)
+  public long streamReportingResults(Integer dbID, Integer queryID, String query,
+      OutputStreaming out) {
+    if (!isConnected()) {
+      setLastException(null);
+      return -1;
+    }
+
+    query = addBanner(query);
+
+    long rows = 0;
+    try {
+
+      long start = System.currentTimeMillis();
+      Statement stmt = this.link.createStatement();
+      if (timeoutQuery > 0) {
+        stmt.setQueryTimeout(timeoutQuery);
+      }
+      int prefetch = prepareFetch(stmt, queryID);
+      ResultSet rs = stmt.executeQuery(query);
+      timeExecute += System.currentTimeMillis() - start;
+      lastProgress = System.currentTimeMillis();
+
+      long fetchStart = timeFetch;
+      int size = tuneFetch(rs, queryID, prefetch);
+      rows = streamResultSet(dbID, queryID, rs, out);
+
+      rs.close();
+      stmt.close();
+
+      addFetchStatistics(dbID, queryID, rows, prefetch, size, timeFetch - fetchStart);
+
+    } catch (Exception e) {
+      log.warn("Exception (DB->streamReportingResults): " + e.getMessage());
+      setLastException(e);
+      restoreInterrupt(e);
+      return -1;
+    }
+
+    return rows;
+  }
+
+  // executes all queries in one anonymous PL/SQL block (one round trip), every query is opened as
+  // REF CURSOR, only the rows are fetched afterwards: a REF CURSOR has no rows prefetched with the
+  // execute, so its first rows need their own round trip (only the execute step is saved)
+  // returns queryID -> result or null if the block failed (getLastException), the exception of a
+  // single failed query is put into errors, spilled results are missing (removeSpill)
+  public Map<Integer, OracleCachedRowSet> getReportingResults(Integer dbID,
+      Map<Integer, String> queries, Map<Integer, Exception> errors) {
+    if (!isConnected()) {
+      setLastException(null);
+      return null;
+    }
+
+    // every query: REF CURSOR (out), query text (in), error message (out)
+    StringBuilder block = new StringBuilder("BEGIN\n");
+    for (int i = 0; i < queries.size(); i++) {
+      block.append("  BEGIN OPEN ? FOR ?; EXCEPTION WHEN OTHERS THEN ? := SQLERRM; END;\n");
+    }
+    block.append("END;");
+
+    Map<Integer, OracleCachedRowSet> results = new LinkedHashMap<Integer, OracleCachedRowSet>();
+    try {
+
+      long start = System.currentTimeMillis();
+      CallableStatement cstmt = this.link.prepareCall(addBanner(block.toString()));
+      if (timeoutQuery > 0) {
+        cstmt.setQueryTimeout(timeoutQuery);
+      }
+
+      int param = 1;
+      for (String query : queries.values()) {
+        cstmt.registerOutParameter(param, OracleTypes.CURSOR);
+        cstmt.setString(param + 1, addBanner(query));
+        cstmt.registerOutParameter(param + 2, Types.VARCHAR);
+        param += 3;
+      }
+
+      cstmt.execute();
+      timeExecute += System.currentTimeMillis() - start;
+      lastProgress = System.currentTimeMillis();
+
+      start = System.currentTimeMillis();
+      param = 1;
+      for (Integer queryID : queries.keySet()) {
+        String error = cstmt.getString(param + 2);
+
+        if (error != null) {
+          errors.put(queryID, new SQLException(error, null, getErrorCode(error)));
+        } else {
+          ResultSet rs = (ResultSet) cstmt.getObject(param);
+          try {
+            // the rows of a cursor are only fetched now (no prefetch with the execute)
+            long fetchStart = System.currentTimeMillis();
+            int size = tuneFetch(rs, queryID, 0);
+            OracleCachedRowSet crs = convertToCachedRowSet(dbID, rs, queryID);
+            if (crs != null) {
+              results.put(queryID, crs);
+            }
+
+            addFetchStatistics(dbID, queryID, getResultRows(dbID, queryID, crs), 0, size,
+                System.currentTimeMillis() - fetchStart);
+          } catch (InterruptedException e) {
+            // waiting for the result memory was interrupted, the block is stopped
+            throw e;
+          } catch (Exception e) {
+            log.warn("Exception (DB->getReportingResults): " + e.getMessage());
+            errors.put(queryID, e);
+            releaseMemory(queryID);
+          } finally {
+            rs.close();
+          }
+        }
+
+        param += 3;
+      }
+
+      cstmt.close();
+      timeFetch += System.currentTimeMillis() - start;
+
+    } catch (Exception e) {
+      log.warn("Exception (DB->getReportingResults): " + e.getMessage());
+      setLastException(e);
+      for (Integer queryID : queries.keySet()) {
+        releaseMemory(queryID);
+      }
+      deleteSpills();
+      restoreInterrupt(e);
+      return null;
+    }
+
+    return results;
+  }
+
+  // sets the fetch size and LOB prefetch of a statement before the execute
+  // returns the rows which are prefetched with the execute
+  private int prepareFetch(Statement stmt, Integer queryID) throws SQLException {
+    Integer rows = getQuerySetting(fetchSize, queryID);
+    int prefetch = rows != null && rows > 0 ? rows : FETCH_SIZE_DEFAULT;
+    stmt.setFetchSize(prefetch);
+
+    Integer lobPrefetch = getQuerySetting(lobPrefetchSize, queryID);
+    if (lobPrefetch != null && stmt.isWrapperFor(OracleStatement.class)) {
+      stmt.unwrap(OracleStatement.class).setLobPrefetchSize(lobPrefetch);
+    }
+
+    return prefetch;
+  }
+
+  // adaptive fetch size for the remaining rows: as many rows as fit into fetchBytes, estimated
+  // from the display sizes of the columns (a fixed fetch size stays as it is)
+  // returns the fetch size
+  private int tuneFetch(ResultSet rs, Integer queryID, int prefetch) throws SQLException {
+    Integer rows = getQuerySetting(fetchSize, queryID);
+    if (rows != null && rows > 0) {
+      rs.setFetchSize(rows);
+      return rows;
+    }
+
+    Integer lobPrefetch = getQuerySetting(lobPrefetchSize, queryID);
+    ResultSetMetaData rsmd = rs.getMetaData();
+    long rowBytes = 0;
+    for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+      switch (rsmd.getColumnType(i)) {
+        case Types.BLOB:
+        case Types.CLOB:
+        case Types.NCLOB:
+          rowBytes += LOB_LOCATOR_BYTES + (lobPrefetch != null ? lobPrefetch : 0);
+          break;
+        default:
+          rowBytes += Math.min(COLUMN_BYTES_MAX, Math.max(1, rsmd.getColumnDisplaySize(i)));
+      }
+    }
+
+    int size = (int) Math.max(FETCH_SIZE_MIN, Math.min(FETCH_SIZE_MAX,
+        fetchBytes / Math.max(1, rowBytes)));
+    rs.setFetchSize(size);
+    return size;
+  }
+
+  // estimated round trips of a query, calculated from the rows and the fetch size (the driver
+  // doesn't count them): the first prefetch comes with the execute, afterwards one fetch per
+  // fetch size (the last one also reports the end of the rows)
+  private static long getEstimatedRoundTrips(long rows, int prefetch, int size) {
+    long remaining = Math.max(0, rows - prefetch);
+    long trips = prefetch > 0 ? 1 : 0;
+    if (rows >= prefetch) {
+      trips += remaining / size + 1;
+    }
+    return trips;
+  }
+
+  private static void addFetchStatistics(Integer dbID, Integer queryID, long rows, int prefetch,
+      int size, long millis) {
+    long trips = getEstimatedRoundTrips(rows, prefetch, size);
+    log.debug(dbID, "[FETCH] Query " + queryID + ": " + rows + " rows, fetch size " + size + ", "
+        + trips + " estimated round trips, " + millis + " ms");
+
+    synchronized (fetchStatistics) {
+      long[] statistics = fetchStatistics.get(queryID);
+      if (statistics == null) {
+        statistics = new long[4];
+        fetchStatistics.put(queryID, statistics);
+      }
+      statistics[0] += rows;
+      statistics[1] += trips;
+      statistics[2] += millis;
+      statistics[3]++;
+    }
+  }
+
+  // fetch statistics per query of all databases
+  static public void logFetchStatistics() {
+    synchronized (fetchStatistics) {
+      for (Map.Entry<Integer, long[]> entry : fetchStatistics.entrySet()) {
+        long[] statistics = entry.getValue();
+        log.info("[FETCH] Query " + entry.getKey() + ": " + statistics[3] + " databases, "
+            + statistics[0] + " rows, " + statistics[1] + " estimated round trips, "
+            + statistics[2] + " ms fetch time");
+      }
+    }
+  }
+
+  // rows of a result in memory or in its spill file
+  private long getResultRows(Integer dbID, Integer queryID, OracleCachedRowSet crs) {
+    if (crs != null) {
+      return crs.size();
+    }
+
+    ResultSpill spill = spills.get(queryID);
+    log.info(dbID, "[SPILL] Query " + queryID + ": " + spill.getRows()
+        + " rows written into spill file (" + spill.getSize() / 1048576 + " MB)");
+    return spill.getRows();
+  }
+
+  // reserves the memory of rows before they are fetched, waits if the budget is exhausted
+  private void reserveMemory(Integer queryID, long bytes) throws InterruptedException {
+    if (memory == null || queryID == null) {
+      return;
+    }
+
+    waitingMemory = true;
+    try {
+      memory.reserve(queryID, bytes);
+    } finally {
+      waitingMemory = false;
+      lastProgress = System.currentTimeMillis();
+    }
+  }
+
+  // the thread was interrupted while waiting for the result memory: the interrupt flag is set again,
+  // so the database thread stops instead of executing its next query
+  private static void restoreInterrupt(Exception e) {
+    if (e instanceof InterruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // corrects the reserved memory of a query (estimate -> actual size)
+  private void addMemory(Integer queryID, long bytes) {
+    if (memory != null && queryID != null) {
+      memory.add(queryID, bytes);
+    }
+  }
+
+  // frees the memory of a dropped result
+  private void releaseMemory(Integer queryID) {
+    if (memory != null && queryID != null) {
+      memory.release(queryID);
+    }
+  }
+
+  // ORA error code of a message ("ORA-00942: table or view does not exist" -> 942)
+  private static int getErrorCode(String message) {
+    Matcher m = Pattern.compile("ORA-([0-9]{5})").matcher(message);
+    return m.find() ? Integer.parseInt(m.group(1)) : 0;
+  }
+
+
   // insert
   // will return number of rows inserted (usual 1), -1 for error or the value in the getColumn
   // column
@@ -402,14 +942,84 @@ public class DatabaseOracle {
 
 
 
-  // converts a ResultSet into a ChacedRowSet to handle all results without DB connection
-  // enhanced feature: custom column extension (e.g. add query_id or instance_name before result
-  // columns)
-  public OracleCachedRowSet convertToCachedRowSet(Object firstColVal, ResultSet rs,
-      String firstColName, Integer firstColType, String firstColTypeName, Integer firstColSize)
+  // streams a ResultSet in columnar batches of ROW_BATCH rows into the output, the first column is
+  // dbID (DATABASE_NAME_JCDBE), the time in the output doesn't count as fetch time
+  // the memory of a batch is reserved before its rows are fetched and freed after the output
+  // returns the amount of rows
+  public long streamResultSet(Integer dbID, Integer queryID, ResultSet rs, OutputStreaming out)
       throws Exception {
-    OracleCachedRowSet crs = new OracleCachedRowSet();
+    long start = System.currentTimeMillis();
+    long timeOut = 0;
+
     ResultSetMetaData rsmd = rs.getMetaData();
+    RowSetMetaData metaData =
+        createMetaData(rsmd, "DATABASE_NAME_JCDBE", Types.VARCHAR, "VARCHAR2", 38);
+
+    RowBatch batch = new RowBatch(rsmd, dbID, ROW_BATCH);
+    long rows = 0;
+    boolean started = false;
+    boolean complete = false;
+
+    // estimated bytes of the next batch (size of the previous one) and reserved bytes
+    long estimate = batch.getBytes() + (long) ROW_BATCH * rsmd.getColumnCount()
+        * ResultMemory.VALUE_BYTES;
+    long reserved = 0;
+
+    try {
+      while (true) {
+        if (reserved == 0) {
+          reserveMemory(queryID, estimate);
+          reserved = estimate;
+        }
+
+        boolean next = rs.next();
+        if (next) {
+          if (++rows % PROGRESS_ROWS == 0) {
+            lastProgress = System.currentTimeMillis();
+          }
+
+          batch.add(rs);
+        }
+
+        // full batch or last rows
+        if (batch.isFull() || (!next && batch.size() > 0)) {
+          estimate = batch.getBytes();
+          addMemory(queryID, estimate - reserved);
+          reserved = estimate;
+
+          long startOut = System.currentTimeMillis();
+          if (!started) {
+            out.startResult(dbID, queryID, metaData);
+            started = true;
+          }
+          out.saveRows(dbID, queryID, batch);
+          timeOut += System.currentTimeMillis() - startOut;
+
+          batch.clear();
+          addMemory(queryID, -reserved);
+          reserved = 0;
+        }
+
+        if (!next) {
+          break;
+        }
+      }
+      complete = true;
+
+    } finally {
+      addMemory(queryID, -reserved);
+      if (started) {
+        out.endResult(dbID, queryID, complete);
+      }
+      timeFetch += System.currentTimeMillis() - start - timeOut;
+    }
+
+    return rows;
+  }
+
+  // metadata of a result with a custom column before the result columns
+  private RowSetMetaData createMetaData(ResultSetMetaData rsmd, String firstColName,
+      Integer firstColType, String firstColTypeName, Integer firstColSize) throws SQLException {
     RowSetMetaData rsmdNew = new RowSetMetaDataImpl();
 
     // column count from the database result
@@ -434,14 +1044,68 @@ public class DatabaseOracle {
       rsmdNew.setColumnDisplaySize(i + columnCountCustom, rsmd.getColumnDisplaySize(i));
     }
 
+    return rsmdNew;
+  }
+
+  // converts a ResultSet into a ChacedRowSet to handle all results without DB connection
+  // enhanced feature: custom column extension (e.g. add query_id or instance_name before result
+  // columns)
+  // the memory of every ROW_BATCH rows is reserved for queryID before they are fetched (null = not
+  // accounted), it stays reserved until the result is written
+  // results larger than spillBytes continue in a spill file: returns null (removeSpill)
+  public OracleCachedRowSet convertToCachedRowSet(Object firstColVal, ResultSet rs,
+      String firstColName, Integer firstColType, String firstColTypeName, Integer firstColSize,
+      Integer queryID) throws Exception {
+    OracleCachedRowSet crs = new OracleCachedRowSet();
+    ResultSetMetaData rsmd = rs.getMetaData();
+
+    // column count from the database result
+    int columnCount = rsmd.getColumnCount();
+    // column count which will be added to the database result (custom columns)
+    int columnCountCustom = 1;
+
     // set the new metadata object to the cached row set
-    crs.setMetaData((RowSetMetaData) rsmdNew);
+    RowSetMetaData metaData = createMetaData(rsmd, firstColName, firstColType, firstColTypeName,
+        firstColSize);
+    crs.setMetaData(metaData);
 
     // value of first column (instance_name)
     // String instance_name = getInstanceName();
 
+    // estimated bytes per row (average of the previous rows), reserved/actual bytes of the rows
+    long rowBytes = ResultMemory.ROW_BYTES + (columnCount + columnCountCustom)
+        * (8 + ResultMemory.VALUE_BYTES);
+    long reserved = 0;
+    long actual = 0;
+    long resultBytes = 0;
+
     // process all rows from the database result
-    while (rs.next()) {
+    int rows = 0;
+    while (true) {
+      if (rows % ROW_BATCH == 0) {
+        addMemory(queryID, actual - reserved);
+        resultBytes += actual;
+
+        // too large for the memory: the result continues in a spill file
+        if (spillBytes > 0 && queryID != null && resultBytes > spillBytes) {
+          spills.put(queryID, spillResult(firstColVal, rs, crs, metaData, queryID));
+          return null;
+        }
+
+        reserved = rowBytes * ROW_BATCH;
+        actual = 0;
+        reserveMemory(queryID, reserved);
+      }
+
+      if (!rs.next()) {
+        break;
+      }
+
+      if (++rows % PROGRESS_ROWS == 0) {
+        lastProgress = System.currentTimeMillis();
+      }
+      actual += ResultMemory.ROW_BYTES + 8 * (columnCount + columnCountCustom);
+
       // insert new row
       crs.moveToInsertRow();
 
@@ -451,21 +1115,81 @@ public class DatabaseOracle {
       // update all further columns from database result in new row
       for (int i = 1; i <= columnCount; i++) {
         // update respective row...
-        crs.updateObject(i + columnCountCustom, rs.getObject(i));
+        Object value = rs.getObject(i);
+        crs.updateObject(i + columnCountCustom, value);
+        actual += ResultMemory.estimate(value);
       }
 
       // make the updated "persistent" to the new cached object
       crs.insertRow();
+
+      if (rows % ROW_BATCH == 0) {
+        rowBytes = actual / ROW_BATCH;
+      }
     }
+    addMemory(queryID, actual - reserved);
 
     return crs;
   }
 
+  // writes the rows of crs and the remaining rows of rs into a spill file and frees the memory of
+  // the rows in crs
+  private ResultSpill spillResult(Object firstColVal, ResultSet rs, OracleCachedRowSet crs,
+      RowSetMetaData metaData, Integer queryID) throws Exception {
+    RowBatch batch = new RowBatch(rs.getMetaData(), firstColVal, ROW_BATCH);
+    ResultSpill spill = new ResultSpill(spillDirectory, metaData, batch);
+
+    try {
+      // rows which are already in memory (without the first column)
+      crs.moveToCurrentRow();
+      crs.beforeFirst();
+      while (crs.next()) {
+        batch.add(crs, 1);
+        if (batch.isFull()) {
+          spill.write(batch);
+          batch.clear();
+        }
+      }
+      crs.release();
+      releaseMemory(queryID);
+
+      int rows = 0;
+      while (rs.next()) {
+        if (++rows % PROGRESS_ROWS == 0) {
+          lastProgress = System.currentTimeMillis();
+        }
+
+        batch.add(rs);
+        if (batch.isFull()) {
+          spill.write(batch);
+          batch.clear();
+        }
+      }
+      if (batch.size() > 0) {
+        spill.write(batch);
+        batch.clear();
+      }
+      spill.finish();
+
+    } catch (Exception e) {
+      spill.delete();
+      throw e;
+    }
+
+    return spill;
+  }
+
   // convertToCachedRowSet overload
+  public OracleCachedRowSet convertToCachedRowSet(Object firstColVal, ResultSet rs,
+      Integer queryID) throws Exception {
+    return convertToCachedRowSet(firstColVal, rs, "DATABASE_NAME_JCDBE", Types.VARCHAR, "VARCHAR2",
+        38, queryID);
+  }
+
+  // convertToCachedRowSet overload (memory not accounted)
   public OracleCachedRowSet convertToCachedRowSet(Object firstColVal, ResultSet rs)
       throws Exception {
-    return convertToCachedRowSet(firstColVal, rs, "DATABASE_NAME_JCDBE", Types.VARCHAR, "VARCHAR2",
-        38);
+    return convertToCachedRowSet(firstColVal, rs, null);
   }
 
 
@@ -532,8 +1256,78 @@ public class DatabaseOracle {
   }
   
   
+  // returns "host:port" of every ADDRESS in the connect descriptor (lower case)
+  // EZConnect (//host:port/service) is also supported, default port is 1521
+  public List<String> getAddresses(String connectDescriptor) {
+    List<String> addresses = new ArrayList<String>();
+    if (connectDescriptor == null) {
+      return addresses;
+    }
+
+    Integer patternFlags = Pattern.CASE_INSENSITIVE;
+    String patternAddress =
+        "\\(\\s*ADDRESS\\s*=(?<ADDRESS>(\\([^()]*\\)|\\s)*)\\)";
+    String patternHost = "\\(\\s*HOST\\s*=\\s*(?<HOST>[^)\\s]+)\\s*\\)";
+    String patternPort = "\\(\\s*PORT\\s*=\\s*(?<PORT>[0-9]+)\\s*\\)";
+    String patternEZConnect = "^(.*@)?//(?<HOST>[^:/]+)(:(?<PORT>[0-9]+))?(/.*)?$";
+
+    Matcher m = Pattern.compile(patternAddress, patternFlags).matcher(connectDescriptor);
+    while (m.find()) {
+      Matcher host = Pattern.compile(patternHost, patternFlags).matcher(m.group("ADDRESS"));
+      Matcher port = Pattern.compile(patternPort, patternFlags).matcher(m.group("ADDRESS"));
+      if (host.find()) {
+        addresses.add((host.group("HOST") + ":" + (port.find() ? port.group("PORT") : "1521"))
+            .toLowerCase());
+      }
+    }
+
+    if (addresses.isEmpty()) {
+      m = Pattern.compile(patternEZConnect, patternFlags).matcher(connectDescriptor.trim());
+      if (m.matches()) {
+        addresses.add((m.group("HOST") + ":" + (m.group("PORT") != null ? m.group("PORT")
+            : "1521")).toLowerCase());
+      }
+    }
+
+    return addresses;
+  }
+
+  // listener of the database: last address for SOURCE_ROUTE, otherwise the first one
+  // "host:port" will be used as key for the connection limits per host
+  public String getHostAddress(String connectDescriptor) {
+    List<String> addresses = getAddresses(connectDescriptor);
+    if (addresses.isEmpty()) {
+      // e.g. TNS alias: the host is unknown, so every descriptor is its own host
+      return connectDescriptor == null ? "URL_IS_NULL" : connectDescriptor.toLowerCase();
+    }
+    if (isSourceRoute(connectDescriptor)) {
+      return addresses.get(addresses.size() - 1);
+    }
+    return addresses.get(0);
+  }
+
+  // Oracle Connection Manager (first address) if the connection is routed, otherwise null
+  public String getRouteAddress(String connectDescriptor) {
+    List<String> addresses = getAddresses(connectDescriptor);
+    if (addresses.size() > 1 && isSourceRoute(connectDescriptor)) {
+      return addresses.get(0);
+    }
+    return null;
+  }
+
+  public boolean isSourceRoute(String connectDescriptor) {
+    return connectDescriptor != null
+        && connectDescriptor.matches("(?is)(.*)SOURCE_ROUTE(\\s*)=(\\s*)(on|yes)(.*)");
+  }
+
+
   public String prepareURL(String connectDescriptor, String prefix, Integer sduSize) {
 
+    // a complete JDBC URL is used as it is
+    if (connectDescriptor.startsWith("jdbc:")) {
+      return connectDescriptor;
+    }
+
     // set URL to prefix...
     String jdbcURL = prefix;
     
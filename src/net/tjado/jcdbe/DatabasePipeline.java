@@ -0,0 +1,125 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stages of the database processing after the connect
+ * 
+ * Without the pipeline every DatabaseThreadSlave connects, executes its queries and writes the
+ * results on the same thread, so a thread is blocked during the whole login handshake. With the
+ * pipeline the thread executor of the ConnectionLimiter is only the connect stage: an established
+ * connection is handed over to the execute stage (queries and fetch) and every result to the output
+ * stage (CPU bound formatting/writing of the Output class). Every stage has its own amount of
+ * threads and its own queue.
+ * 
+ * The results of streaming outputs are buffered by the execute stage and streamed into the output
+ * by the output stage, like the CachedRowSets of the other outputs. The output queue is bounded: if
+ * it is full, the execute stage waits until a result is written, so a slow output doesn't collect
+ * the results of all databases in memory.
+ * 
+ * Thread-safe
+ * 
+ */
+public class DatabasePipeline {
+
+  // executes the queries of connected databases
+  private ThreadPoolExecutor execute = null;
+
+  // writes the results
+  private ThreadPoolExecutor output = null;
+
+  // queued and running results of the output stage
+  private Semaphore outputSlots = null;
+
+  // outputQueue: maximum results waiting for the output stage
+  public DatabasePipeline(int executeThreads, int outputThreads, int outputQueue) {
+    execute = createStage("execute", executeThreads);
+    output = createStage("output", outputThreads);
+    outputSlots = new Semaphore(outputThreads + outputQueue);
+  }
+
+  private static ThreadPoolExecutor createStage(final String name, int size) {
+    return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private AtomicInteger count = new AtomicInteger(0);
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  // queue a connected database for the execute stage
+  public void execute(Runnable task) {
+    execute.execute(task);
+  }
+
+  // queue a result for the output stage, waits while the queue is full
+  public void output(final Runnable task) throws InterruptedException {
+    outputSlots.acquire();
+    try {
+      output.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            outputSlots.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      outputSlots.release();
+      throw e;
+    }
+  }
+
+  public int getExecuteActive() {
+    return execute.getActiveCount();
+  }
+
+  public int getExecuteQueued() {
+    return execute.getQueue().size();
+  }
+
+  public int getOutputActive() {
+    return output.getActiveCount();
+  }
+
+  public int getOutputQueued() {
+    return output.getQueue().size();
+  }
+
+  public void shutdown() {
+    execute.shutdown();
+    output.shutdown();
+  }
+
+}
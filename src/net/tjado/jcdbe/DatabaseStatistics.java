@@ -0,0 +1,167 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Timings of every database from the previous runs
+ * 
+ * The timings (connect, execute, fetch, output in ms) are stored in a property file with
+ * "username@url" as key. The expected duration of a database is the moving average of its total
+ * time, so the next run can start the longest databases first and the slow ones don't determine
+ * the end of the run.
+ * 
+ * Conditionally thread-safe
+ * 
+ */
+public class DatabaseStatistics {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // weight of the current run for the expected duration
+  private static final double WEIGHT = 0.5;
+
+  // property file
+  private String file = null;
+
+  // username@url -> expected,connect,execute,fetch,output
+  private Properties statistics = new Properties();
+
+  public DatabaseStatistics(String file) {
+    this.file = file;
+  }
+
+  public static String getKey(String url, String username) {
+    return username + "@" + url;
+  }
+
+  // read timings of the previous runs, a missing file is no error (first run)
+  public synchronized void load() {
+    if (file == null || !new File(file).exists()) {
+      return;
+    }
+
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        statistics.load(in);
+      } finally {
+        in.close();
+      }
+      log.debug("[STATS] Loaded timings of " + statistics.size() + " databases");
+    } catch (IOException e) {
+      log.warn("[STATS] Could not load statistics file: " + e.getMessage());
+    }
+  }
+
+  public synchronized void save() {
+    if (file == null) {
+      return;
+    }
+
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        statistics.store(out, "JCDBE timings: expected,connect,execute,fetch,output (ms)");
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      log.warn("[STATS] Could not save statistics file: " + e.getMessage());
+    }
+  }
+
+  // expected duration in ms or null if unknown
+  public synchronized Long getExpected(String key) {
+    String value = statistics.getProperty(key);
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return Long.parseLong(value.split(",")[0]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public synchronized void update(String key, long connect, long execute, long fetch, long output) {
+    long total = connect + execute + fetch + output;
+
+    Long expected = getExpected(key);
+    if (expected != null) {
+      total = Math.round(WEIGHT * total + (1 - WEIGHT) * expected);
+    }
+
+    statistics.setProperty(key, total + "," + connect + "," + execute + "," + fetch + "," + output);
+  }
+
+  // database ids in the order they should be started: the known ones longest first, then the
+  // unknown databases in insertion order (unknownFirst: the unknown databases before the known)
+  public List<Integer> getSchedule(DatabaseList dbList, boolean unknownFirst) {
+    List<Integer> unknown = new ArrayList<Integer>();
+    List<Integer> known = new ArrayList<Integer>();
+    final List<Long> expected = new ArrayList<Long>();
+
+    // id -> expected duration (ids are 1...n)
+    expected.add(0L);
+    for (Integer id : dbList) {
+      Long duration = getExpected(getKey(dbList.getURL(id), dbList.getUsername(id)));
+      expected.add(duration == null ? 0L : duration);
+
+      if (duration == null) {
+        unknown.add(id);
+      } else {
+        known.add(id);
+      }
+    }
+
+    // stable sort, so databases with the same duration stay in insertion order
+    Collections.sort(known, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer id1, final Integer id2) {
+        return expected.get(id2).compareTo(expected.get(id1));
+      }
+    });
+
+    if (unknownFirst) {
+      unknown.addAll(known);
+      return unknown;
+    }
+
+    known.addAll(unknown);
+    return known;
+  }
+
+}
@@ -21,34 +21,136 @@
 
 package net.tjado.jcdbe;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.RowSetMetaData;
 
 import oracle.jdbc.rowset.OracleCachedRowSet;
 
 /**
  * Runnable thread object created by JCDBE-main for each database in DatabaseList
  * 
+ * If a database timeout is set, a deadline timer aborts the connection of a database which takes
+ * too long, sets the status and frees the connection slot - even if the thread itself is still
+ * blocked in the JDBC driver. The DatabaseWatchdog does the same for databases without progress.
+ * Both take no lock of the database and never call the output: the connection is cancelled and the
+ * slot freed at once, the status is written by a finisher thread after the output calls of the
+ * database which are still in progress.
+ * 
+ * With a DatabasePipeline, run() only connects the database: the queries are executed in the
+ * execute stage and the results are written in the output stage.
+ * 
+ * Without the pipeline the rows are streamed into the output while they are fetched, outputs
+ * without streaming get their CachedRowSet over the OutputRowSetAdapter. With the pipeline the
+ * streamed rows of an OutputStreaming output are buffered (copies of the row batches) and written in
+ * the output stage after the fetch of the result.
+ * 
+ * With a ResultMemory the rows are reserved in the account of the database while they are fetched,
+ * a result is released after it was written and all results after the database is finished.
+ * 
+ * Results which are too large for a CachedRowSet are spilled into a file by DatabaseOracle and
+ * streamed from the file into the output (on the execute or in the output stage). Spill files are
+ * deleted after they are written, not written ones after the queries.
+ * 
  */
 public class DatabaseThreadSlave implements Runnable {
 
+  // timeout in seconds for the whole database (0 = unlimited)
+  private static int databaseTimeout = 0;
+
+  // timer for the database timeouts
+  private static ScheduledThreadPoolExecutor deadlines = null;
+
+  // writes the status of aborted databases, the deadline timer/watchdog never waits for an output
+  private static ExecutorService finisher = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "database-finisher");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // all queries of a database in one PL/SQL block (read-only session) instead of one statement per
+  // query
+  private static boolean queryBlock = false;
+
   private Integer dbID = 0;
   private String dbName = null;
+  private String host = null;
+  private String route = null;
   private String url = null;
   private String username = null;
   private String password = null;
   private DatabaseList dbList = null;
   private DatabaseOracle db = null;
+  private ConnectionLimiter limiter = null;
+
+  // execute/output stage (null = everything on the thread of the connect)
+  private DatabasePipeline pipeline = null;
+
+  // sum of the output time of all queries in ms
+  private AtomicLong timeOutput = new AtomicLong(0);
+
+  // start time of the thread
+  private long timeStart = 0;
+
+  // connect/query time and status of the database (handed over between the stages)
+  private long timeConnect = 0;
+  private long timeQueries = 0;
+  private String status = null;
+
+  // deadline of the database timeout
+  private ScheduledFuture<?> deadline = null;
+
+  // running stages of the database (execute stage + results in the output stage)
+  private AtomicInteger pending = new AtomicInteger(0);
+
+  // query which is currently executed
+  private volatile Integer currentQueryID = null;
+
+  // set by the deadline timer/watchdog
+  private volatile boolean aborted = false;
+
+  // status, timings and slot are set/released only once (by the thread or the deadline timer)
+  private AtomicBoolean finished = new AtomicBoolean(false);
+
+  // output calls of this database which are in progress
+  private AtomicInteger writing = new AtomicInteger(0);
+
+  // retries after transient connect errors
+  private int attempts = 0;
 
   private Map<Integer, String> queries = null;
 
   private Log log = Log.getInstance();
   private Output output = null;
 
+  // streaming into the output (null = results as CachedRowSet)
+  private OutputStreaming stream = null;
+
+  // target of the fetched rows: the output stream or the buffer for the output stage
+  private OutputStreaming fetchStream = null;
+
+  // reserved result memory of the database (null = not accounted)
+  private ResultMemory.Account memory = null;
+
   public DatabaseThreadSlave(Integer id, DatabaseList list, Map<Integer, String> queries,
-      Output output, String jdbcPrefix, Integer sduSize) {
+      Output output, String jdbcPrefix, Integer sduSize, ConnectionLimiter limiter) {
 
     dbID = id;
     dbList = list;
+    this.limiter = limiter;
 
     db       = dbList.getDatabaseHandle(dbID);
     url      = db.prepareURL(dbList.getURL(dbID), jdbcPrefix, sduSize);
@@ -58,33 +160,470 @@ public class DatabaseThreadSlave implements Runnable {
     this.queries = queries;
     this.output = output;
 
+    db.setReadOnly(queryBlock);
+
     dbName = db.getDatabaseName(url);
+    host   = db.getHostAddress(url);
+    route  = db.getRouteAddress(url);
+
+    initStream();
+  }
+
+  static public synchronized void setDatabaseTimeout(int seconds) {
+    databaseTimeout = seconds;
+
+    if (seconds > 0 && deadlines == null) {
+      deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "deadline-timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      deadlines.setRemoveOnCancelPolicy(true);
+    }
+  }
+
+  // statement: one statement per query, block: all queries in one execute call
+  static public void setQueryMode(String mode) {
+    queryBlock = mode.equals("block");
+  }
+
+  public void setPipeline(DatabasePipeline pipeline) {
+    this.pipeline = pipeline;
+    initStream();
+  }
+
+  public void setResultMemory(ResultMemory resultMemory) {
+    memory = resultMemory.open();
+    db.setMemory(memory);
+    initStream();
+  }
+
+  // the output stage gets complete CachedRowSets or buffered row batches of streaming outputs
+  private void initStream() {
+    if (output instanceof OutputStreaming) {
+      stream = new ResultStream((OutputStreaming) output);
+    } else if (pipeline == null) {
+      stream = new ResultStream(new OutputRowSetAdapter(output, memory));
+    } else {
+      stream = null;
+    }
+
+    fetchStream = stream != null && pipeline != null ? new FetchBuffer() : stream;
+  }
+
+  public String getDatabaseName() {
+    return dbName;
+  }
+
+  // listener "host:port" of the database
+  public String getHost() {
+    return host;
+  }
+
+  // CMAN "host:port" if the connection is routed, otherwise null
+  public String getRoute() {
+    return route;
   }
 
 
+  // connect stage
   public void run() {
     log.info(dbID, "Start thread: " + dbName);
 
+    timeStart = System.currentTimeMillis();
+    dbList.setStarted(dbID);
+
+    if (databaseTimeout > 0) {
+      deadline = deadlines.schedule(new Runnable() {
+        public void run() {
+          abortDatabase();
+        }
+      }, databaseTimeout, TimeUnit.SECONDS);
+    }
+
+    // connect/query time for the adaptive connection limit and the statistics
+    boolean connected = false;
+    timeConnect = 0;
+    timeQueries = 0;
+    long start = System.currentTimeMillis();
+    status = "OK";
 
     try {
 
       output.prepareDatabase(dbID);
+
+      start = System.currentTimeMillis();
       this.connectRemoteDatabase();
-      this.processQueries();
-      output.setDatabaseStatus(dbID, "OK");
+      connected = true;
+      timeConnect = System.currentTimeMillis() - start;
+      dbList.setProgress(dbID);
 
     } catch (Exception e) {
 
-      log.warn(dbID, e.getMessage());
-      output.setDatabaseStatus(dbID, e.getMessage());
+      if (!aborted) {
+        log.warn(dbID, e.getMessage());
+      }
+      status = e.getMessage();
 
+      // time until the connect failed
+      timeConnect = System.currentTimeMillis() - start;
     }
 
-    // set thread state
-    dbList.setFinish(dbID);
+    if (connected) {
+      // the execute stage and every result in the output stage have to be completed
+      pending.set(1);
+
+      if (pipeline == null) {
+        executeQueries();
+        return;
+      }
+
+      // hand over the established connection to the execute stage, no progress is expected while
+      // it is queued there (watchdog)
+      dbList.setWaiting(dbID);
+      try {
+        pipeline.execute(new Runnable() {
+          public void run() {
+            if (!finished.get()) {
+              dbList.setStarted(dbID);
+            }
+            executeQueries();
+          }
+        });
+        return;
+      } catch (RuntimeException e) {
+        log.warn(dbID, "Could not queue database for execution: " + e.getMessage());
+        status = "QUEUE_ERROR: " + e.getMessage();
+      }
+    }
+
+    if (deadline != null) {
+      deadline.cancel(false);
+    }
 
     db.disconnect();
+
+    // transient connect error (e.g. listener overload): free the slot and retry later
+    if (!connected && !aborted && DatabaseOracle.isTransient(db.getLastException())) {
+      limiter.release(dbID, false, timeConnect, 0);
+      if (retry()) {
+        return;
+      }
+    }
+
+    finish(status, connected, timeConnect, timeQueries);
+  }
+
+
+  // execute stage
+  private void executeQueries() {
+    long start = System.currentTimeMillis();
+    try {
+
+      this.processQueries();
+      timeQueries = System.currentTimeMillis() - start;
+
+    } catch (Exception e) {
+
+      if (!aborted) {
+        log.warn(dbID, e.getMessage());
+      }
+      status = e.getMessage();
+    }
+
+    if (deadline != null) {
+      deadline.cancel(false);
+    }
+
+    db.disconnect();
+    db.deleteSpills();
+
+    // the connection is closed, the next database can connect while the results are written
+    limiter.release(dbID, true, timeConnect, timeQueries);
+    dbList.setFetched(dbID);
+
+    complete();
+  }
+
+  // the database is finished after the execute stage and the last result
+  private void complete() {
+    if (pending.decrementAndGet() == 0) {
+      finish(status, true, timeConnect, timeQueries);
+    }
+  }
+
+
+  // queue this database into the retry lane, false if no retry is left
+  private boolean retry() {
+    if (finished.get()) {
+      return false;
+    }
+
+    dbList.setWaiting(dbID);
+    if (!limiter.retry(dbID, host, route, this, ++attempts)) {
+      return false;
+    }
+
+    log.info(dbID, "Transient connect error, thread queued for retry: " + dbName);
+    return true;
+  }
+
+
+  // called by the deadline timer: the database took longer than databaseTimeout
+  private void abortDatabase() {
+    log.warn(dbID, "DATABASE_TIMEOUT after " + databaseTimeout + "s: aborting connection");
+
+    abort("DATABASE_TIMEOUT", "DATABASE_TIMEOUT - DB: " + dbName + "; no result after "
+        + databaseTimeout + "s");
+  }
+
+  // aborts the connection (can be called from other threads) and finishes the database:
+  // queryStatus for the running query, databaseStatus for the database
+  // only the cancel runs on the calling thread, the status is written by the finisher
+  public void abort(final String queryStatus, final String databaseStatus) {
+    aborted = true;
+    db.abort();
+
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+
+    final long time = System.currentTimeMillis() - timeStart;
+    final Integer queryID = currentQueryID;
+    limiter.release(dbID, false, time, 0);
+
+    finisher.execute(new Runnable() {
+      public void run() {
+        awaitWriting();
+
+        if (queryID != null) {
+          output.setQueryStatus(dbID, queryID, queryStatus);
+        }
+        setFinished(databaseStatus, time);
+      }
+    });
+  }
+
+
+  // frees the connection slot (starts the next waiting database), sets status and timings after
+  // the last output call and sets the database to finished
+  private void finish(String status, boolean connected, long timeConnect, long timeQueries) {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+
+    limiter.release(dbID, connected, timeConnect, timeQueries);
+
+    awaitWriting();
+    setFinished(status, timeConnect);
+  }
+
+  private void setFinished(String status, long timeConnect) {
+    output.setDatabaseStatus(dbID, status);
+
+    dbList.setTimings(dbID, timeConnect, db.getTimeExecute(), db.getTimeFetch(),
+        timeOutput.get());
+
+    if (memory != null) {
+      memory.close();
+    }
+    db.deleteSpills();
     log.info(dbID, "End of thread: " + dbName);
+
+    // set thread state (signals the main thread after the last database)
+    dbList.setFinish(dbID);
+  }
+
+
+  // starts an output call, false if the database is already finished (the output could be already
+  // closed), every started call has to be ended with leaveOutput()
+  private boolean enterOutput() {
+    writing.incrementAndGet();
+    if (finished.get()) {
+      leaveOutput();
+      return false;
+    }
+    return true;
+  }
+
+  private void leaveOutput() {
+    if (writing.decrementAndGet() == 0 && finished.get()) {
+      synchronized (writing) {
+        writing.notifyAll();
+      }
+    }
+  }
+
+  // waits until the output calls which were started before the database was finished are done
+  // (only on the database or finisher thread)
+  private void awaitWriting() {
+    synchronized (writing) {
+      while (writing.get() > 0) {
+        try {
+          writing.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  // an output call of the database is in progress (the output is slow, not the database)
+  public boolean isWriting() {
+    return writing.get() > 0;
+  }
+
+
+  // no output anymore after the database is finished (output could be already closed)
+  private void setQueryStatus(Integer queryID, String status) {
+    if (enterOutput()) {
+      try {
+        output.setQueryStatus(dbID, queryID, status);
+      } finally {
+        leaveOutput();
+      }
+    }
+  }
+
+  private void saveResult(OracleCachedRowSet results, Integer queryID) {
+    if (enterOutput()) {
+      try {
+        long start = System.currentTimeMillis();
+        output.saveResult(results, dbID, queryID);
+        timeOutput.addAndGet(System.currentTimeMillis() - start);
+      } finally {
+        leaveOutput();
+      }
+    }
+  }
+
+  // streaming output of this database: no output anymore after the database is finished
+  private class ResultStream implements OutputStreaming {
+    private OutputStreaming target = null;
+
+    ResultStream(OutputStreaming target) {
+      this.target = target;
+    }
+
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      if (enterOutput()) {
+        try {
+          target.startResult(dbID, queryID, metaData);
+        } finally {
+          leaveOutput();
+        }
+      }
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      if (enterOutput()) {
+        try {
+          long start = System.currentTimeMillis();
+          target.saveRows(dbID, queryID, rows);
+          timeOutput.addAndGet(System.currentTimeMillis() - start);
+        } finally {
+          leaveOutput();
+        }
+      }
+      dbList.setProgress(dbID);
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      if (enterOutput()) {
+        try {
+          long start = System.currentTimeMillis();
+          target.endResult(dbID, queryID, complete);
+          timeOutput.addAndGet(System.currentTimeMillis() - start);
+        } finally {
+          leaveOutput();
+        }
+      }
+    }
+  }
+
+  // buffered result of a streaming output for the output stage: the copies of the row batches stay
+  // reserved in the result memory until they are written, results larger than the spill size
+  // continue in a spill file, a failed fetch is dropped
+  private class FetchBuffer implements OutputStreaming {
+    private ResultBuffer buffer = new ResultBuffer();
+
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      buffer.start(dbID, queryID, metaData);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      dbList.setProgress(dbID);
+
+      long bytes = buffer.add(dbID, queryID, rows);
+      if (memory != null) {
+        memory.add(queryID, bytes);
+      }
+    }
+
+    public void endResult(Integer dbID, final Integer queryID, boolean complete) {
+      final ResultBuffer.Result result;
+      try {
+        result = buffer.remove(dbID, queryID, complete);
+      } catch (IOException e) {
+        releaseResult(queryID);
+        setQueryStatus(queryID, "SAVERESULT_EXCEPTION");
+        return;
+      }
+
+      if (result == null) {
+        releaseResult(queryID);
+        return;
+      }
+
+      if (!queueOutput(queryID, new Runnable() {
+        public void run() {
+          writeBuffer(result, queryID);
+        }
+      })) {
+        result.delete();
+      }
+    }
+  }
+
+  // stream a buffered result into the output (output stage), its memory is freed afterwards
+  private void writeBuffer(ResultBuffer.Result result, Integer queryID) {
+    try {
+      result.replay(dbID, queryID, stream);
+      dbList.setProgress(dbID);
+    } catch (Exception e) {
+      log.warn(dbID, "Exception (Output->saveRows): " + e.getMessage());
+      setQueryStatus(queryID, "SAVERESULT_EXCEPTION");
+    } finally {
+      result.delete();
+      releaseResult(queryID);
+    }
+  }
+
+  // write a result to the output (on the execute or in the output stage)
+  private void writeResult(OracleCachedRowSet results, Integer queryID) {
+    try {
+      saveResult(results, queryID);
+      dbList.setProgress(dbID);
+    } catch (Exception e) {
+      // saveResult should do all the error handling
+      // but just in case, we catch the exception and print stack trace for debugging
+      log.warn("Output->saveResult: " + e.getMessage());
+      e.printStackTrace();
+
+      setQueryStatus(queryID, "SAVERESULT_EXCEPTION");
+    } finally {
+      releaseResult(queryID);
+    }
+  }
+
+  // the result is written or dropped, its memory can be used by the next rows
+  private void releaseResult(Integer queryID) {
+    if (memory != null) {
+      memory.release(queryID);
+    }
   }
 
 
@@ -103,42 +642,204 @@ public class DatabaseThreadSlave implements Runnable {
 
   private void processQueries() throws Exception {
 
+    if (queryBlock) {
+      processQueryBlock();
+      return;
+    }
+
     // loop thru all queriey -> execute query and save result with Output* class
     for (Map.Entry<Integer, String> entry : queries.entrySet()) {
 
+      // database timeout -> connection is already aborted
+      if (aborted) {
+        return;
+      }
+
       Integer queryID = entry.getKey();
       String query = entry.getValue();
+      currentQueryID = queryID;
+
+      // execute query and stream the rows into the output
+      if (stream != null) {
+        long rows = db.streamReportingResults(dbID, queryID, query, fetchStream);
+        dbList.setProgress(dbID);
+
+        if (rows < 0 && aborted) {
+          return;
+        }
+        checkInterrupted(queryID);
+
+        processStreamed(queryID, rows, db.getLastException());
+        continue;
+      }
 
       // execute query and collect results
       // dbID will be inserted as first column value
-      OracleCachedRowSet results = db.getReportingResults(dbID, query);
+      OracleCachedRowSet results = db.getReportingResults(dbID, queryID, query);
+      ResultSpill spill = db.removeSpill(queryID);
+      dbList.setProgress(dbID);
 
-      if (results == null && db.getLastException() != null) {
-        output.setQueryStatus(dbID, queryID, db.getLastException().getMessage());
-        continue;
-      } else if (results == null && db.getLastException() == null) {
-        output.setQueryStatus(dbID, queryID, "ERROR_CONNECTION_INTERRUPT");
+      if (spill != null) {
+        processSpill(queryID, spill);
         continue;
       }
 
-      // write result to output if not empty
-      if (results != null && results.size() > 0) {
-        try {
-          output.saveResult(results, dbID, queryID);
-        } catch (Exception e) {
-          // saveResult should do all the error handling
-          // but just in case, we catch the exception and print stack trace for debugging
-          log.warn("Output->saveResult: " + e.getMessage());
-          e.printStackTrace();
-
-          output.setQueryStatus(dbID, queryID, "SAVERESULT_EXCEPTION");
-        }
-        // no rows ...
-      } else if (results != null && results.size() == 0) {
-        output.setQueryStatus(dbID, queryID, "RESULT_EMPTY");
-        log.info(dbID, "No rows in ResultSet");
+      if (results == null && aborted) {
+        return;
+      }
+      checkInterrupted(queryID);
+
+      processResult(queryID, results, db.getLastException());
+    }
+
+    currentQueryID = null;
+  }
+
+  // all queries in one round trip, only the rows of every query are fetched separately
+  private void processQueryBlock() throws Exception {
+    Map<Integer, Exception> errors = new HashMap<Integer, Exception>();
+    Map<Integer, OracleCachedRowSet> results = db.getReportingResults(dbID, queries, errors);
+    dbList.setProgress(dbID);
+
+    // database timeout -> connection is already aborted
+    if (aborted) {
+      return;
+    }
+    checkInterrupted(null);
+
+    for (Integer queryID : queries.keySet()) {
+      ResultSpill spill = db.removeSpill(queryID);
+      if (spill != null) {
+        processSpill(queryID, spill);
+      } else if (results == null) {
+        processResult(queryID, null, db.getLastException());
+      } else {
+        processResult(queryID, results.get(queryID), errors.get(queryID));
+      }
+    }
+  }
+
+  // the thread was interrupted (e.g. while waiting for the result memory): the remaining queries are
+  // not executed anymore
+  private void checkInterrupted(Integer queryID) throws Exception {
+    if (!Thread.currentThread().isInterrupted()) {
+      return;
+    }
+
+    if (queryID != null) {
+      releaseResult(queryID);
+      setQueryStatus(queryID, "INTERRUPTED");
+    }
+    throw new Exception("INTERRUPTED - DB: " + dbName);
+  }
+
+  // status of a failed/empty streamed query (rows: -1 = failed)
+  private void processStreamed(Integer queryID, long rows, Exception exception) {
+    if (rows < 0) {
+      processResult(queryID, null, exception);
+    } else if (rows == 0) {
+      setQueryStatus(queryID, "RESULT_EMPTY");
+      log.info(dbID, "No rows in ResultSet");
+    }
+  }
+
+  // status of a failed/empty query or write the result
+  // exception: exception of the query if the result is null
+  private void processResult(final Integer queryID, final OracleCachedRowSet results,
+      Exception exception) {
+    if (results == null && DatabaseOracle.isTimeout(exception)) {
+      log.warn(dbID, "QUERY_TIMEOUT (query " + queryID + ")");
+      setQueryStatus(queryID, "QUERY_TIMEOUT");
+      return;
+    } else if (results == null && exception != null) {
+      setQueryStatus(queryID, exception.getMessage());
+      return;
+    } else if (results == null && exception == null) {
+      setQueryStatus(queryID, "ERROR_CONNECTION_INTERRUPT");
+      return;
+    }
+
+    // write result to output if not empty
+    if (results.size() > 0) {
+      if (pipeline == null) {
+        writeResult(results, queryID);
+      } else {
+        queueOutput(queryID, new Runnable() {
+          public void run() {
+            writeResult(results, queryID);
+          }
+        });
       }
+      // no rows ...
+    } else {
+      releaseResult(queryID);
+      setQueryStatus(queryID, "RESULT_EMPTY");
+      log.info(dbID, "No rows in ResultSet");
+    }
+  }
 
+  // write a spilled result (the spill file is deleted afterwards)
+  private void processSpill(final Integer queryID, final ResultSpill spill) {
+    if (pipeline == null) {
+      writeSpill(spill, queryID);
+      return;
+    }
+
+    if (!queueOutput(queryID, new Runnable() {
+      public void run() {
+        writeSpill(spill, queryID);
+      }
+    })) {
+      spill.delete();
+    }
+  }
+
+  // stream a spilled result from its file into the output
+  private void writeSpill(ResultSpill spill, Integer queryID) {
+    OutputStreaming target = stream;
+    if (target == null) {
+      target = new ResultStream(new OutputRowSetAdapter(output, memory));
+    }
+
+    try {
+      spill.replay(dbID, queryID, target);
+      dbList.setProgress(dbID);
+    } catch (Exception e) {
+      log.warn(dbID, "Exception (ResultSpill->replay): " + e.getMessage());
+      setQueryStatus(queryID, "SAVERESULT_EXCEPTION");
+    } finally {
+      spill.delete();
+    }
+  }
+
+  // hand over the writing of a result to the output stage, false if it could not be queued
+  // waits while the output queue is full (counts as output call, not as a hung database)
+  private boolean queueOutput(Integer queryID, final Runnable write) {
+    if (!enterOutput()) {
+      releaseResult(queryID);
+      return false;
+    }
+
+    pending.incrementAndGet();
+    try {
+      pipeline.output(new Runnable() {
+        public void run() {
+          write.run();
+          complete();
+        }
+      });
+      return true;
+    } catch (Exception e) {
+      pending.decrementAndGet();
+      releaseResult(queryID);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      log.warn(dbID, "Could not queue result for output: " + e.getMessage());
+      setQueryStatus(queryID, "QUEUE_ERROR: " + e.getMessage());
+      return false;
+    } finally {
+      leaveOutput();
     }
   }
 
@@ -0,0 +1,123 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.util.Map;
+
+/**
+ * Watchdog thread for hung database threads
+ * 
+ * Checks periodically the progress of the running databases (database thread and fetched rows of
+ * the database handle). If a database made no progress within the timeout, e.g. because of a stuck
+ * TCP session, its connection will be aborted over the database handle and the database is set to
+ * FAILED, so the run can finish.
+ * 
+ * Only the running databases are checked, the database threads don't need any lock for reporting
+ * their progress. A database whose output call is in progress is not hung (the output is slow) and
+ * a database leaves the running ones after its fetch, its results can wait in the output stage.
+ * 
+ * The abort only cancels the connection on the watchdog thread, so one database which is blocked in
+ * the output doesn't stop the checks of the other databases.
+ * 
+ */
+public class DatabaseWatchdog implements Runnable {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  private DatabaseList dbList = null;
+
+  // no progress timeout in ms
+  private long timeout = 0;
+
+  // check interval in ms
+  private long interval = 0;
+
+  public DatabaseWatchdog(DatabaseList dbList, int timeoutSeconds) {
+    this.dbList = dbList;
+    this.timeout = timeoutSeconds * 1000L;
+    this.interval = Math.max(1000L, timeout / 4);
+  }
+
+  // starts the watchdog as daemon thread
+  public void start() {
+    Thread t = new Thread(this, "watchdog");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void run() {
+    while (!dbList.isFinished()) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      check();
+    }
+  }
+
+  private void check() {
+    long now = System.currentTimeMillis();
+
+    for (Map.Entry<Integer, Long> entry : dbList.getRunning().entrySet()) {
+      Integer id = entry.getKey();
+      long lastProgress = entry.getValue();
+
+      if (now - lastProgress < timeout) {
+        continue;
+      }
+
+      // rows fetched by the database handle are also progress
+      DatabaseOracle db = dbList.getDatabaseHandle(id);
+      lastProgress = Math.max(lastProgress, db.getLastProgress());
+      if (now - lastProgress < timeout) {
+        continue;
+      }
+
+      // the fetch waits until other results are written (ResultMemory), the session is not hung
+      if (db.isWaitingForMemory()) {
+        continue;
+      }
+
+      // the rows are written, the output is slow and not the database
+      Runnable thread = dbList.getThread(id);
+      if (thread instanceof DatabaseThreadSlave && ((DatabaseThreadSlave) thread).isWriting()) {
+        continue;
+      }
+
+      String reason = "no progress for " + (now - lastProgress) / 1000 + "s";
+      log.warn(id, "[WATCHDOG] " + reason + ": aborting connection");
+
+      if (thread instanceof DatabaseThreadSlave) {
+        DatabaseThreadSlave slave = (DatabaseThreadSlave) thread;
+        slave.abort("FAILED", "FAILED - DB: " + slave.getDatabaseName() + "; " + reason
+            + " (watchdog)");
+      } else {
+        db.abort();
+        dbList.setFinish(id);
+      }
+    }
+  }
+
+}
@@ -21,13 +21,26 @@
 
 package net.tjado.jcdbe;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.sql.RowSetMetaData;
 import javax.sql.rowset.CachedRowSet;
 
 import org.ini4j.Ini;
@@ -38,8 +51,28 @@ import au.com.bytecode.opencsv.CSVWriter;
 
 /**
  * OutputCSV stores the query results in CSV files.
+ * 
+ * Results are streamed in row batches, so the rows of different databases can alternate in the
+ * file (every row contains the database in the first column). The batches of a result are buffered
+ * until its fetch is complete (see ResultBuffer), a failed or aborted fetch writes no rows.
+ * 
+ * Asynchronous mode (async = true): the database threads format and encode their rows into CSV
+ * chunks without any lock and put them into a bounded queue (ring buffer), a single writer thread
+ * drains all queued chunks at once and writes them with one gathering write into the file channel.
+ * If the queue is full, the database threads wait for the writer.
+ * 
+ * Partitioned mode (partition = thread, query or database): every partition is written into its own
+ * file without a global lock (see OutputCSVPartitions), optionally merged into the output file
+ * during close (merge = true).
+ * 
+ * Compression (compression = gzip): the files are compressed in parallel blocks (see
+ * OutputCompression) and get the extension ".gz", the ratio and throughput are logged during close.
+ * 
+ * The non-OK status messages of the databases are written at the end of the CSV output during
+ * close. Optionally (statusFile) all database and query status messages are written into a
+ * separate journal instead, when they happen (see StatusJournal).
  */
-public class OutputCSV implements Output {
+public class OutputCSV implements Output, OutputStreaming {
 
 //instance object (singleton)
   private static final OutputCSV INSTANCE = new OutputCSV();
@@ -60,10 +93,82 @@ public class OutputCSV implements Output {
   private char csvDelimiter = ',';
 
   // if true, the first line in the output CSV file are the column names of the first result set
-  private Boolean csvHeadline = true;
+  private volatile Boolean csvHeadline = true;
+
+  // asynchronous mode: formatted chunks in the queue
+  private boolean csvAsync = false;
+  private int csvQueueSize = 64;
+
+  // queue of the formatted chunks, writer thread and its file
+  private ArrayBlockingQueue<byte[]> queue = null;
+  private Thread writer = null;
+  private FileChannel file = null;
+
+  // last chunk of the queue (compared by identity)
+  private static final byte[] END = new byte[0];
+
+  // chunks and drains of the writer thread
+  private long chunks = 0;
+  private long drains = 0;
+
+  // partitioned mode: none, thread, query or database (hash of the database ID)
+  private String csvPartition = "none";
+  private int csvPartitions = 8;
+
+  // partition of a worker thread (partition = thread): the threads get the partitions in turns,
+  // so the virtual executor (a thread per database) still writes into csvPartitions files
+  private AtomicInteger threadSlots = new AtomicInteger(0);
+  private ThreadLocal<String> threadPartition = new ThreadLocal<String>() {
+    protected String initialValue() {
+      return "t" + (threadSlots.getAndIncrement() & Integer.MAX_VALUE) % csvPartitions;
+    }
+  };
+
+  // merge the partitions into the output file during close and the threads for the merge
+  private boolean csvMerge = false;
+  private int csvMergeThreads = Runtime.getRuntime().availableProcessors();
+
+  // partition files (null = not partitioned)
+  private OutputCSVPartitions partitions = null;
+
+  // compression: none or gzip, level, block size (KB) and threads
+  private String csvCompression = "none";
+  private int csvCompressionLevel = 6;
+  private int csvCompressionBlockSize = 1024;
+  private int csvCompressionThreads = Runtime.getRuntime().availableProcessors();
+
+  // compression of the files (null = uncompressed) and stream of the async writer
+  private OutputCompression compression = null;
+  private OutputStream compressed = null;
   
   // save all non-OK database status messages here to write them during close
-  private List<String[]> errorList = new ArrayList<String[]>();
+  private List<String[]> errorList = Collections.synchronizedList(new ArrayList<String[]>());
+
+  // journal of the status messages instead of the errorList and its file (null = no journal,
+  // auto = next to the output file)
+  private StatusJournal journal = null;
+  private String csvStatusFile = null;
+
+  // columns of the currently streamed results (dbID/queryID -> metadata)
+  private Map<String, RowSetMetaData> streams = new ConcurrentHashMap<String, RowSetMetaData>();
+
+  // streamed results until their fetch is complete
+  private OutputStreaming buffer = null;
+
+  // writes a complete result from the buffer into the file
+  private OutputStreaming results = new OutputStreaming() {
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      writeStart(dbID, queryID, metaData);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      writeRows(dbID, queryID, rows);
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      streams.remove(dbID + "/" + queryID);
+    }
+  };
 
   // private constructor -> singleton
   private OutputCSV() {/************** nothing in constructor **************/}
@@ -112,6 +217,81 @@ public class OutputCSV implements Output {
         log.warn("[OUTPUT] Headline parameter in config file should only be set to true/false");
     }
 
+    checkParam = ini.get(sectionName, "async");
+    if (checkParam != null && (checkParam.equals("true") || checkParam.equals("false"))) {
+      csvAsync = Boolean.parseBoolean(checkParam);
+      log.debug("[OUTPUT] Async parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Async parameter in config file should only be set to true/false");
+    }
+
+    checkParam = ini.get(sectionName, "queueSize");
+    if (checkParam != null) {
+      csvQueueSize = Integer.parseInt(checkParam);
+      log.debug("[OUTPUT] Queue size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "partition");
+    if (checkParam != null && checkParam.matches("none|thread|query|database")) {
+      csvPartition = checkParam;
+      log.debug("[OUTPUT] Partition parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Partition parameter in config file should only be set to "
+          + "none/thread/query/database");
+    }
+
+    checkParam = ini.get(sectionName, "partitions");
+    if (checkParam != null) {
+      csvPartitions = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Partitions parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "merge");
+    if (checkParam != null && (checkParam.equals("true") || checkParam.equals("false"))) {
+      csvMerge = Boolean.parseBoolean(checkParam);
+      log.debug("[OUTPUT] Merge parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Merge parameter in config file should only be set to true/false");
+    }
+
+    checkParam = ini.get(sectionName, "mergeThreads");
+    if (checkParam != null) {
+      csvMergeThreads = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Merge threads parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "compression");
+    if (checkParam != null && checkParam.matches("none|gzip")) {
+      csvCompression = checkParam;
+      log.debug("[OUTPUT] Compression parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Compression parameter in config file should only be set to none/gzip");
+    }
+
+    checkParam = ini.get(sectionName, "compressionLevel");
+    if (checkParam != null) {
+      csvCompressionLevel = Integer.parseInt(checkParam);
+      log.debug("[OUTPUT] Compression level parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "compressionBlockSize");
+    if (checkParam != null) {
+      csvCompressionBlockSize = Integer.parseInt(checkParam);
+      log.debug("[OUTPUT] Compression block size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "compressionThreads");
+    if (checkParam != null) {
+      csvCompressionThreads = Integer.parseInt(checkParam);
+      log.debug("[OUTPUT] Compression threads parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "statusFile");
+    if (checkParam != null) {
+      csvStatusFile = checkParam;
+      log.debug("[OUTPUT] Status file parameter successful parsed from config file");
+    }
+
     
     //
     //
@@ -128,10 +308,70 @@ public class OutputCSV implements Output {
   }
 
   public boolean init() throws Exception {
+
+    buffer = ResultBuffer.buffered(results);
+
+    // compressed files get the extension of the compression
+    String outputFile = csvOutputFile;
+    String suffix = "";
+    if (csvCompression.equals("gzip")) {
+      compression = new OutputCompression(csvCompressionLevel, csvCompressionBlockSize * 1024,
+          csvCompressionThreads);
+      suffix = compression.getSuffix();
+      if (outputFile.endsWith(suffix)) {
+        outputFile = outputFile.substring(0, outputFile.length() - suffix.length());
+      }
+    }
+
+    // status messages are journaled from the start, the journal is never compressed (auto: name
+    // of the output file without the extension of the compression)
+    if (csvStatusFile != null) {
+      String statusFile = csvStatusFile.equals("auto") ? StatusJournal.getFile(outputFile)
+          : csvStatusFile;
+      try {
+        journal = new StatusJournal(statusFile, csvDelimiter);
+      } catch (IOException e) {
+        log.fatal("[OUTPUT] Could not open status file: " + e.getMessage());
+        return false;
+      }
+      log.debug("[OUTPUT] Status journal: " + statusFile);
+    }
+
+    // partition files are opened with their first rows
+    if (!csvPartition.equals("none")) {
+      if (csvAsync) {
+        log.warn("[OUTPUT] Async mode is ignored for partitioned CSV output");
+        csvAsync = false;
+      }
+      partitions = new OutputCSVPartitions(outputFile, suffix, csvDelimiter, csvHeadline,
+          compression);
+      return true;
+    }
     
     // open file handle with the help of CSVWriter
     try {
-      output = new CSVWriter(new FileWriter(csvOutputFile), csvDelimiter);
+      if (csvAsync && compression != null) {
+        compressed = compression.open(new FileOutputStream(outputFile + suffix));
+      } else if (csvAsync) {
+        file = new FileOutputStream(outputFile).getChannel();
+      }
+
+      if (csvAsync) {
+        queue = new ArrayBlockingQueue<byte[]>(csvQueueSize);
+
+        writer = new Thread(new Runnable() {
+          public void run() {
+            writeQueue();
+          }
+        }, "csv-writer");
+        writer.setDaemon(true);
+        writer.start();
+      } else if (compression != null) {
+        output = new CSVWriter(new OutputStreamWriter(compression.open(new FileOutputStream(
+            outputFile + suffix))), csvDelimiter);
+      } else {
+        output = new CSVWriter(new FileWriter(outputFile), csvDelimiter);
+      }
     } catch (FileNotFoundException e) {
       log.fatal("[OUTPUT] CSV file not found");
       return false;
@@ -141,6 +381,45 @@ public class OutputCSV implements Output {
   }
 
   public void close() {
+
+    closeOutput();
+
+    if (journal != null) {
+      try {
+        journal.close();
+        log.debug("[OUTPUT] Status journal: " + journal.getEvents() + " status messages");
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    if (compression != null) {
+      compression.close();
+      log.info("[OUTPUT] Compression: " + compression.getReport());
+    }
+  }
+
+  private void closeOutput() {
+
+    if (partitions != null) {
+      closePartitions();
+      return;
+    }
+
+    if (csvAsync) {
+      try {
+        put(format(new ArrayList<String[]>(errorList)));
+        put(END);
+        writer.join();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      log.debug("[OUTPUT] CSV writer: " + chunks + " chunks in " + drains + " writes");
+      return;
+    }
     
     synchronized (INSTANCE) {
       
@@ -165,18 +444,63 @@ public class OutputCSV implements Output {
   }
   
   public void setDatabaseStatus(Integer dbID, String status) {
-    if (!status.equalsIgnoreCase("OK")) {
-      errorList.add(new String[] {status.replaceAll("\\s+$", "")});
-    }
+    setStatus(dbID, null, status);
   }
 
   public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+    setStatus(dbID, queryID, status);
+  }
+
+  private void setStatus(Integer dbID, Integer queryID, String status) {
+    if (journal == null) {
+      if (queryID == null && !status.equalsIgnoreCase("OK")) {
+        errorList.add(new String[] {status.replaceAll("\\s+$", "")});
+      }
+      return;
+    }
 
-    return;
+    try {
+      journal.write(dbID, queryID, status);
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write status file: " + e.getMessage());
+    }
   }
 
   public void saveResult(CachedRowSet rs, Integer dbID, Integer queryID) {
 
+    if (partitions != null) {
+      try {
+        partitions.setColumnNames(rs);
+        partitions.writeAll(getPartition(dbID, queryID), rs);
+      } catch (SQLException e) {
+        e.printStackTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+    if (csvAsync) {
+      try {
+        // the headline has to be the first chunk in the queue
+        if (csvHeadline) {
+          synchronized (INSTANCE) {
+            if (csvHeadline) {
+              put(format(rs, true));
+              csvHeadline = false;
+              return;
+            }
+          }
+        }
+        put(format(rs, false));
+      } catch (SQLException e) {
+        e.printStackTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
     synchronized (INSTANCE) {
       try {
         output.writeAll(rs, csvHeadline);
@@ -192,4 +516,221 @@ public class OutputCSV implements Output {
     }
   }
 
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    buffer.startResult(dbID, queryID, metaData);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+
+    buffer.saveRows(dbID, queryID, rows);
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+
+    buffer.endResult(dbID, queryID, complete);
+  }
+
+  private void writeStart(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    streams.put(dbID + "/" + queryID, metaData);
+
+    if (partitions != null) {
+      try {
+        partitions.setColumnNames(getColumnNames(metaData));
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+    if (!csvHeadline) {
+      return;
+    }
+
+    synchronized (INSTANCE) {
+      if (!csvHeadline) {
+        return;
+      }
+
+      try {
+        String[] columnNames = getColumnNames(metaData);
+
+        if (csvAsync) {
+          List<String[]> headline = new ArrayList<String[]>();
+          headline.add(columnNames);
+          put(format(headline));
+        } else {
+          output.writeNext(columnNames);
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+
+      csvHeadline = false;
+    }
+  }
+
+  private void writeRows(Integer dbID, Integer queryID, RowBatch rows) {
+
+    // the rows are formatted by the CSVWriter like a complete result (ResultSet view of the batch)
+    try {
+      ResultSet batch = OutputRowSetAdapter.toResultSet(streams.get(dbID + "/" + queryID), rows);
+
+      if (partitions != null) {
+        partitions.writeAll(getPartition(dbID, queryID), batch);
+        return;
+      }
+
+      if (csvAsync) {
+        put(format(batch, false));
+        return;
+      }
+
+      synchronized (INSTANCE) {
+        output.writeAll(batch, false);
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  private static String[] getColumnNames(RowSetMetaData metaData) throws SQLException {
+    String[] columnNames = new String[metaData.getColumnCount()];
+    for (int i = 0; i < columnNames.length; i++) {
+      columnNames[i] = metaData.getColumnName(i + 1);
+    }
+    return columnNames;
+  }
+
+  // partition key of a result (partitioned mode)
+  private String getPartition(Integer dbID, Integer queryID) {
+    if (csvPartition.equals("thread")) {
+      return threadPartition.get();
+    } else if (csvPartition.equals("query")) {
+      return "q" + queryID;
+    } else {
+      return "p" + ((dbID.hashCode() & Integer.MAX_VALUE) % csvPartitions);
+    }
+  }
+
+  // status messages into their own partition, then close and optionally merge all partitions
+  private void closePartitions() {
+    try {
+      if (!errorList.isEmpty()) {
+        partitions.writeAll(OutputCSVPartitions.STATUS, new ArrayList<String[]>(errorList));
+      }
+      partitions.close();
+
+      if (csvMerge) {
+        long start = System.currentTimeMillis();
+        int size = partitions.size();
+        partitions.merge(csvMergeThreads);
+        log.debug("[OUTPUT] Merged " + size + " CSV partitions in "
+            + (System.currentTimeMillis() - start) + " ms");
+      } else {
+        log.debug("[OUTPUT] CSV output written into " + partitions.size() + " partitions");
+      }
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write CSV partitions: " + e.getMessage());
+    }
+  }
+
+  // formats the rows of a result as CSV chunk (asynchronous mode), encoded like the FileWriter
+  private byte[] format(ResultSet rs, boolean headline) throws SQLException, IOException {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    CSVWriter csv = new CSVWriter(new OutputStreamWriter(chunk), csvDelimiter);
+    csv.writeAll(rs, headline);
+    csv.flush();
+    return chunk.toByteArray();
+  }
+
+  private byte[] format(List<String[]> lines) throws IOException {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    CSVWriter csv = new CSVWriter(new OutputStreamWriter(chunk), csvDelimiter);
+    csv.writeAll(lines);
+    csv.flush();
+    return chunk.toByteArray();
+  }
+
+  // queues a chunk for the writer thread, waits if the queue is full
+  private void put(byte[] chunk) throws IOException {
+    try {
+      queue.put(chunk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the CSV writer");
+    }
+  }
+
+  // writer thread: drains all queued chunks at once and writes them with one gathering write
+  // until END
+  private void writeQueue() {
+    List<byte[]> drained = new ArrayList<byte[]>(csvQueueSize);
+    boolean failed = false;
+    boolean end = false;
+
+    while (!end) {
+      try {
+        drained.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(drained);
+      drains++;
+
+      List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(drained.size());
+      long bytes = 0;
+      for (byte[] chunk : drained) {
+        if (chunk == END) {
+          end = true;
+          break;
+        }
+        buffers.add(ByteBuffer.wrap(chunk));
+        bytes += chunk.length;
+      }
+      chunks += buffers.size();
+      drained.clear();
+
+      // a write error drops the following chunks, the database threads must not get stuck
+      try {
+        if (compressed != null) {
+          for (ByteBuffer buffer : buffers) {
+            if (!failed) {
+              compressed.write(buffer.array());
+            }
+          }
+          continue;
+        }
+
+        ByteBuffer[] gather = buffers.toArray(new ByteBuffer[buffers.size()]);
+        while (!failed && bytes > 0) {
+          bytes -= file.write(gather);
+        }
+      } catch (IOException e) {
+        log.fatal("[OUTPUT] Could not write CSV file: " + e.getMessage());
+        failed = true;
+      }
+    }
+
+    closeFile();
+  }
+
+  private void closeFile() {
+    try {
+      if (compressed != null) {
+        compressed.close();
+        return;
+      }
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
 }
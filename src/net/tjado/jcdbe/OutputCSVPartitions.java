@@ -0,0 +1,325 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Partition files of the CSV output
+ * 
+ * Every partition (worker thread, query ID or hash of the database ID) has its own file and its own
+ * CSVWriter, so the database threads only wait for threads which write into the same partition. The
+ * file name of a partition is the output file name with the partition key in front of the extension
+ * (out.csv -> out.q1.csv), every partition file starts with the headline.
+ * 
+ * If merge() is called, the partitions are copied in parallel into the output file at precalculated
+ * offsets (sorted by the partition key, the status partition at the end) - the headline is only
+ * written once - and deleted.
+ * 
+ * Compressed partitions start with the headline as its own gzip member, so the merge can skip it
+ * like an uncompressed headline (concatenated gzip members are a valid gzip file).
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputCSVPartitions {
+
+  // buffer of a partition file
+  private static final int BUFFER = 65536;
+
+  // partition of the status messages, merged behind all other partitions
+  public static final String STATUS = "status";
+
+  // output file, extension of the compression and CSV delimiter
+  private String file = null;
+  private String suffix = "";
+  private char delimiter = ',';
+
+  // compression of the partition files (null = uncompressed)
+  private OutputCompression compression = null;
+
+  // column names of the first result (null = no headline) and the encoded (compressed) headline
+  private boolean headline = true;
+  private volatile String[] columnNames = null;
+  private byte[] head = null;
+
+  // partition key -> partition
+  private ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+  // the file is opened with the first write (under the lock of the partition)
+  private static class Partition {
+    Path path;
+    CSVWriter csv;
+
+    // bytes of the headline at the beginning of the file
+    long headBytes;
+  }
+
+  public OutputCSVPartitions(String file, String suffix, char delimiter, boolean headline,
+      OutputCompression compression) {
+    this.file = file;
+    this.suffix = suffix;
+    this.delimiter = delimiter;
+    this.headline = headline;
+    this.compression = compression;
+  }
+
+  // column names of the headline, only the first call counts
+  public void setColumnNames(String[] columnNames) {
+    if (this.columnNames != null || !headline) {
+      return;
+    }
+
+    synchronized (this) {
+      if (this.columnNames == null) {
+        try {
+          List<String[]> lines = new ArrayList<String[]>();
+          lines.add(columnNames);
+          head = format(lines);
+          if (compression != null) {
+            head = compression.compress(head, head.length);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        this.columnNames = columnNames;
+      }
+    }
+  }
+
+  public void setColumnNames(ResultSet rs) throws SQLException {
+    if (this.columnNames != null || !headline) {
+      return;
+    }
+
+    String[] names = new String[rs.getMetaData().getColumnCount()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = rs.getMetaData().getColumnName(i + 1);
+    }
+    setColumnNames(names);
+  }
+
+  public void writeAll(String key, ResultSet rs) throws SQLException, IOException {
+    Partition partition = getPartition(key);
+    synchronized (partition) {
+      open(partition);
+      partition.csv.writeAll(rs, false);
+    }
+  }
+
+  public void writeAll(String key, List<String[]> lines) throws IOException {
+    Partition partition = getPartition(key);
+    synchronized (partition) {
+      open(partition);
+      partition.csv.writeAll(lines);
+    }
+  }
+
+  // file name of a partition: out.csv -> out.<key>.csv (+ extension of the compression)
+  public String getFile(String key) {
+    String name = new File(file).getName();
+    int extension = name.lastIndexOf('.');
+
+    if (extension <= 0) {
+      return file + "." + key + suffix;
+    }
+    int position = file.length() - name.length() + extension;
+    return file.substring(0, position) + "." + key + file.substring(position) + suffix;
+  }
+
+  public int size() {
+    return partitions.size();
+  }
+
+  private Partition getPartition(String key) {
+    Partition partition = partitions.get(key);
+    if (partition != null) {
+      return partition;
+    }
+
+    partition = new Partition();
+    partition.path = Paths.get(getFile(key));
+
+    Partition existing = partitions.putIfAbsent(key, partition);
+    return existing == null ? partition : existing;
+  }
+
+  // open the file of a partition and write the headline (caller holds the partition lock)
+  private void open(Partition partition) throws IOException {
+    if (partition.csv != null) {
+      return;
+    }
+
+    OutputStream out = new FileOutputStream(partition.path.toFile());
+
+    String[] columnNames = this.columnNames;
+    if (columnNames != null && compression != null) {
+      out.write(head);
+      partition.headBytes = head.length;
+    }
+
+    if (compression != null) {
+      out = compression.open(out);
+    } else {
+      out = new BufferedOutputStream(out, BUFFER);
+    }
+    partition.csv = new CSVWriter(new OutputStreamWriter(out), delimiter);
+
+    if (columnNames != null && compression == null) {
+      partition.csv.writeNext(columnNames);
+      partition.headBytes = head.length;
+    }
+  }
+
+  // flush and close all partition files
+  public synchronized void close() {
+    for (Partition partition : partitions.values()) {
+      synchronized (partition) {
+        if (partition.csv == null) {
+          continue;
+        }
+        try {
+          partition.csv.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  // copy the closed partitions in parallel into the output file and delete them
+  public synchronized void merge(int threads) throws IOException {
+    // partitions which were never opened have no file
+    List<Partition> sorted = new ArrayList<Partition>();
+    Map<String, Partition> keys = new TreeMap<String, Partition>(partitions);
+    for (Map.Entry<String, Partition> entry : keys.entrySet()) {
+      if (entry.getValue().csv != null && !entry.getKey().equals(STATUS)) {
+        sorted.add(entry.getValue());
+      }
+    }
+    Partition status = partitions.get(STATUS);
+    if (status != null && status.csv != null) {
+      sorted.add(status);
+    }
+
+    final FileChannel target = FileChannel.open(Paths.get(file + suffix),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+
+    try {
+      long offset = 0;
+      if (head != null) {
+        target.write(ByteBuffer.wrap(head), 0);
+        offset = head.length;
+      }
+
+      List<Future<Long>> copies = new ArrayList<Future<Long>>();
+      for (final Partition partition : sorted) {
+        final long position = offset;
+        final long count = Files.size(partition.path) - partition.headBytes;
+        offset += count;
+
+        copies.add(pool.submit(new Callable<Long>() {
+          public Long call() throws IOException {
+            copy(partition, target, position, count);
+            return count;
+          }
+        }));
+      }
+
+      for (Future<Long> copy : copies) {
+        copy.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while merging the CSV partitions");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not merge the CSV partitions: " + e.getCause().getMessage(),
+          e.getCause());
+    } finally {
+      pool.shutdown();
+      target.close();
+    }
+
+    for (Partition partition : sorted) {
+      Files.deleteIfExists(partition.path);
+    }
+    partitions.clear();
+  }
+
+  // copy a partition without its headline to a position of the output file
+  private static void copy(Partition partition, FileChannel target, long position, long count)
+      throws IOException {
+    FileChannel source = FileChannel.open(partition.path, StandardOpenOption.READ);
+    try {
+      source.position(partition.headBytes);
+
+      long copied = 0;
+      while (copied < count) {
+        long bytes = target.transferFrom(source, position + copied, count - copied);
+        if (bytes <= 0) {
+          throw new IOException("Partition " + partition.path + " is shorter than expected");
+        }
+        copied += bytes;
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  // encoded like the partition files (default charset)
+  private byte[] format(List<String[]> lines) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CSVWriter csv = new CSVWriter(new OutputStreamWriter(bytes), delimiter);
+    csv.writeAll(lines);
+    csv.flush();
+    return bytes.toByteArray();
+  }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * OutputColumnar writes the results into typed columnar files (read by ColumnarReader)
+ * 
+ * Every query schema (query ID, column names and types) gets its own file: out.jcol -> out.q1.jcol
+ * (further schemas of the same query: out.q1-2.jcol). A file contains row groups, every row group
+ * holds the rows of one database in the binary format of RowBatch: the columns one after another
+ * with a null bitmap, LONG/DOUBLE as 8 bytes, strings as dictionary + codes and DATABASE_NAME_JCDBE
+ * only once. The footer lists the offset and the rows of every row group, so a reader can skip or
+ * split them. With compression = deflate every row group is compressed on its own.
+ * 
+ * File format:
+ *  header:    "JCOL", version, compression, column count, per column: name, JDBC type, batch type
+ *  row group: first column value (flag + string), RowBatch.write() (deflated if compressed)
+ *  footer:    row group count, per row group: offset, rows; offset of the footer, "JCOL"
+ * 
+ * The format is specific to JCDBE, it is not Parquet or Arrow: tools of these ecosystems can't read
+ * the files, only ColumnarReader (and OutputStore/StoreReader, which use the same row groups). For
+ * an exchange with other tools the results have to be written by another output, e.g. CSV or JSON
+ * Lines.
+ * 
+ * The row groups are encoded by the database threads, only the append to the file is
+ * synchronized (per file). Status messages are not part of the columnar files.
+ * 
+ * Streamed results are buffered until their fetch is complete (see ResultBuffer), a failed or
+ * aborted fetch writes no row groups.
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputColumnar implements Output, OutputStreaming {
+
+  // instance object (singleton)
+  private static final OutputColumnar INSTANCE = new OutputColumnar();
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // section name of the config (ini) file
+  private String sectionName = "output:columnar";
+
+  // magic number and version of the file format
+  public static final int MAGIC = 0x4a434f4c;
+  public static final int VERSION = 1;
+
+  // extension of the files
+  public static final String SUFFIX = ".jcol";
+
+  // compression of the row groups
+  public static final int NONE = 0;
+  public static final int DEFLATE = 1;
+
+  // file buffer
+  private static final int BUFFER = 65536;
+
+  // rows of a row group of a result which is not streamed
+  private int rowGroupSize = 65536;
+
+  // compression and compression level (1 = fastest ... 9 = best) of the row groups
+  private int compression = NONE;
+  private int compressionLevel = 1;
+
+  // base name of the output files
+  private String outputFile = null;
+
+  // schema (query ID and columns) -> file
+  private Map<String, ColumnarFile> files = new ConcurrentHashMap<String, ColumnarFile>();
+
+  // files per query ID (names of further schemas)
+  private Map<Integer, Integer> queryFiles = new HashMap<Integer, Integer>();
+
+  // columns of the currently streamed results (dbID/queryID -> metadata)
+  private Map<String, RowSetMetaData> streams = new ConcurrentHashMap<String, RowSetMetaData>();
+
+  // streamed results until their fetch is complete
+  private OutputStreaming buffer = null;
+
+  // writes a complete result from the buffer into the files
+  private OutputStreaming results = new OutputStreaming() {
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      writeStart(dbID, queryID, metaData);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      writeRows(dbID, queryID, rows);
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      streams.remove(dbID + "/" + queryID);
+    }
+  };
+
+  // columnar file of a schema, row groups are appended under its lock
+  private static class ColumnarFile {
+    String name;
+    DataOutputStream out;
+    long position;
+    List<long[]> groups = new ArrayList<long[]>();
+  }
+
+  // private constructor -> singleton
+  private OutputColumnar() {/************** nothing in constructor **************/}
+
+  // get instance of this class
+  public static OutputColumnar getInstance() {
+    return INSTANCE;
+  }
+
+  // specify CLI arguments of required information for this module
+  public void setCLI(Options o) {
+    o.addOption("of", "outputFile", true, "path to output file (one file per query: .q<ID>.jcol)");
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    log.debug("[OUTPUT] Validating parameters");
+
+    // temporary string for storing/checking parameter values
+    String checkParam = null;
+
+    //
+    //
+    // INI parameters
+
+    checkParam = ini.get(sectionName, "rowGroupSize");
+    if (checkParam != null) {
+      rowGroupSize = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Row group size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "compression");
+    if (checkParam != null && checkParam.matches("none|deflate")) {
+      compression = checkParam.equals("deflate") ? DEFLATE : NONE;
+      log.debug("[OUTPUT] Compression parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Compression parameter in config file should only be set to none/deflate");
+    }
+
+    checkParam = ini.get(sectionName, "compressionLevel");
+    if (checkParam != null) {
+      compressionLevel = Math.max(1, Math.min(9, Integer.parseInt(checkParam)));
+      log.debug("[OUTPUT] Compression level parameter successful parsed from config file");
+    }
+
+    //
+    //
+    // CLI arguments
+
+    if (cli.hasOption("outputFile")) {
+      outputFile = cli.getOptionValue("outputFile");
+      if (outputFile.endsWith(SUFFIX)) {
+        outputFile = outputFile.substring(0, outputFile.length() - SUFFIX.length());
+      }
+      log.debug("[OUTPUT] Output file parameter successful parsed from CLI");
+    } else {
+      log.fatal("[OUTPUT] Output file parameter not specified");
+      System.exit(1);
+    }
+  }
+
+  public boolean init() {
+    buffer = ResultBuffer.buffered(results);
+    files.clear();
+    queryFiles.clear();
+    return true;
+  }
+
+  // writes the footers and closes all files
+  public void close() {
+    for (ColumnarFile file : files.values()) {
+      synchronized (file) {
+        try {
+          long footer = file.position;
+          file.out.writeInt(file.groups.size());
+          for (long[] group : file.groups) {
+            file.out.writeLong(group[0]);
+            file.out.writeInt((int) group[1]);
+          }
+          file.out.writeLong(footer);
+          file.out.writeInt(MAGIC);
+          file.out.close();
+
+          log.debug("[OUTPUT] " + file.name + ": " + file.groups.size() + " row groups");
+        } catch (IOException e) {
+          log.fatal("[OUTPUT] Could not close " + file.name + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  public boolean prepareDatabase(Integer dbID) {
+
+    return true;
+  }
+
+  public boolean prepareQuery(Integer dbID, Integer queryID) {
+
+    return true;
+  }
+
+  public void setDatabaseStatus(Integer dbID, String status) {
+
+    return;
+  }
+
+  public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+
+    return;
+  }
+
+  // the rows are converted into row groups of rowGroupSize rows
+  public void saveResult(CachedRowSet rs, Integer dbID, final Integer queryID) {
+    try {
+      final ResultSetMetaData metaData = rs.getMetaData();
+      OutputRowSetAdapter.forEach(rs, rowGroupSize, new OutputRowSetAdapter.BatchHandler() {
+        public void saveRows(RowBatch rows) throws SQLException, IOException {
+          OutputColumnar.this.saveRows(metaData, queryID, rows);
+        }
+      });
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save result of query " + queryID + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write columnar file: " + e.getMessage());
+    }
+  }
+
+  private void writeStart(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    streams.put(dbID + "/" + queryID, metaData);
+  }
+
+  private void writeRows(Integer dbID, Integer queryID, RowBatch rows) {
+    try {
+      saveRows(streams.get(dbID + "/" + queryID), queryID, rows);
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save rows of query " + queryID + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write columnar file: " + e.getMessage());
+    }
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    buffer.startResult(dbID, queryID, metaData);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+
+    buffer.saveRows(dbID, queryID, rows);
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+
+    buffer.endResult(dbID, queryID, complete);
+  }
+
+
+  // encodes the rows as row group (without lock) and appends it to the file of the schema
+  private void saveRows(ResultSetMetaData metaData, Integer queryID, RowBatch rows)
+      throws SQLException, IOException {
+    ColumnarFile file = getFile(metaData, queryID, rows);
+    byte[] group = encodeRowGroup(rows, compression, compressionLevel);
+
+    synchronized (file) {
+      file.out.write(group);
+      file.groups.add(new long[] {file.position, rows.size()});
+      file.position += group.length;
+    }
+  }
+
+  // row group: first column value (flag + string), RowBatch.write() (deflated if compressed)
+  static byte[] encodeRowGroup(RowBatch rows, int compression, int level) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Deflater deflater = null;
+    DataOutputStream group = null;
+    if (compression == DEFLATE) {
+      deflater = new Deflater(level);
+      group = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, BUFFER));
+    } else {
+      group = new DataOutputStream(bytes);
+    }
+
+    Object firstColVal = rows.getFirstColumnValue();
+    group.writeBoolean(firstColVal != null);
+    if (firstColVal != null) {
+      group.writeUTF(firstColVal.toString());
+    }
+    rows.write(group);
+    if (deflater != null) {
+      group.close();
+      deflater.end();
+    } else {
+      group.flush();
+    }
+
+    return bytes.toByteArray();
+  }
+
+  // file of the schema (created with the first rows)
+  private ColumnarFile getFile(ResultSetMetaData metaData, Integer queryID, RowBatch rows)
+      throws SQLException, IOException {
+    StringBuilder schema = new StringBuilder(queryID.toString());
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      schema.append(',').append(metaData.getColumnName(i)).append(':')
+          .append(rows.getJdbcType(i)).append(':').append(rows.getType(i));
+    }
+
+    ColumnarFile file = files.get(schema.toString());
+    if (file != null) {
+      return file;
+    }
+
+    synchronized (this) {
+      file = files.get(schema.toString());
+      if (file != null) {
+        return file;
+      }
+
+      Integer count = queryFiles.get(queryID);
+      count = count == null ? 1 : count + 1;
+      queryFiles.put(queryID, count);
+
+      file = new ColumnarFile();
+      file.name = outputFile + ".q" + queryID + (count == 1 ? "" : "-" + count) + SUFFIX;
+      file.out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file.name), BUFFER));
+
+      file.out.writeInt(MAGIC);
+      file.out.writeInt(VERSION);
+      file.out.writeByte(compression);
+      file.out.writeInt(metaData.getColumnCount());
+      for (int i = 1; i <= metaData.getColumnCount(); i++) {
+        file.out.writeUTF(metaData.getColumnName(i));
+        file.out.writeInt(rows.getJdbcType(i));
+        file.out.writeByte(rows.getType(i));
+      }
+      file.position = file.out.size();
+
+      files.put(schema.toString(), file);
+      log.debug("[OUTPUT] Columnar file " + file.name + " created");
+    }
+
+    return file;
+  }
+
+  // metadata of the result columns without DATABASE_NAME_JCDBE
+  static RowSetMetaData getResultMetaData(ResultSetMetaData rsmd) throws SQLException {
+    RowSetMetaData metaData = new RowSetMetaDataImpl();
+    metaData.setColumnCount(rsmd.getColumnCount() - 1);
+
+    for (int i = 2; i <= rsmd.getColumnCount(); i++) {
+      metaData.setColumnName(i - 1, rsmd.getColumnName(i));
+      metaData.setColumnType(i - 1, rsmd.getColumnType(i));
+      metaData.setPrecision(i - 1, Math.max(0, rsmd.getPrecision(i)));
+      metaData.setScale(i - 1, Math.max(0, rsmd.getScale(i)));
+    }
+
+    return metaData;
+  }
+}
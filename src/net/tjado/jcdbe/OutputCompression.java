@@ -0,0 +1,249 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming block compression of output files (gzip)
+ * 
+ * The written bytes are cut into blocks, every block is compressed on a shared thread pool into its
+ * own gzip member and the members are written in their original order. Concatenated gzip members
+ * are a valid gzip file (gzip -d, zcat, GZIPInputStream), so the compression runs in parallel
+ * without a special format.
+ * 
+ * The uncompressed blocks in flight are limited for all streams together (two per thread), a
+ * stream waits for its oldest block if it has more compressed blocks pending than threads.
+ * 
+ * Thread-safe, but a single stream is not (it is used under the lock of its writer)
+ * 
+ */
+public class OutputCompression {
+
+  // compression level (1 = fastest ... 9 = best), block size and threads
+  private int level = 6;
+  private int blockSize = 1048576;
+  private int threads = 1;
+
+  private ExecutorService pool = null;
+
+  // uncompressed blocks in flight of all streams
+  private Semaphore blocks = null;
+
+  // uncompressed/compressed bytes, time of the compression threads (ns) and start of the run
+  private AtomicLong bytesIn = new AtomicLong(0);
+  private AtomicLong bytesOut = new AtomicLong(0);
+  private AtomicLong compressTime = new AtomicLong(0);
+  private long start = System.currentTimeMillis();
+
+  public OutputCompression(int level, int blockSize, int threads) {
+    this.level = Math.max(1, Math.min(9, level));
+    this.blockSize = Math.max(4096, blockSize);
+    this.threads = Math.max(1, threads);
+
+    blocks = new Semaphore(this.threads * 2);
+    pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger(0);
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "compress-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  // file name extension of the compressed files
+  public String getSuffix() {
+    return ".gz";
+  }
+
+  // compressing stream into out, out is closed with the stream
+  public OutputStream open(OutputStream out) {
+    return new CompressingStream(out);
+  }
+
+  // compress the bytes into one gzip member (synchronous)
+  public byte[] compress(byte[] block, int length) throws IOException {
+    long begin = System.nanoTime();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, length / 4));
+    GZIPOutputStream gzip = new GZIPOutputStream(bytes, 65536) {
+      {
+        def.setLevel(level);
+      }
+    };
+    gzip.write(block, 0, length);
+    gzip.close();
+
+    compressTime.addAndGet(System.nanoTime() - begin);
+    return bytes.toByteArray();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  public void close() {
+    pool.shutdown();
+  }
+
+  // compression ratio, throughput of the run (since the start of the output) and of the
+  // compression threads
+  public String getReport() {
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    long compressMillis = Math.max(1, compressTime.get() / 1000000);
+
+    return String.format("%.1f MB -> %.1f MB (ratio %.1f), %.1f MB/s during the run (compression "
+        + "%.1f MB/s per thread, %d threads, level %d)", bytesIn.get() / 1048576.0,
+        bytesOut.get() / 1048576.0, (double) bytesIn.get() / Math.max(1, bytesOut.get()),
+        bytesIn.get() / 1048.576 / time, bytesIn.get() / 1048.576 / compressMillis, threads,
+        level);
+  }
+
+  // blocks of a stream: filled by the writer, compressed in the pool, written in order
+  private class CompressingStream extends OutputStream {
+
+    private OutputStream out = null;
+
+    private byte[] block = new byte[blockSize];
+    private int length = 0;
+
+    // compressed blocks in the original order
+    private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    CompressingStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (length == block.length) {
+        submit();
+      }
+      block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (length == block.length) {
+          submit();
+        }
+
+        int copy = Math.min(len, block.length - length);
+        System.arraycopy(b, off, block, length, copy);
+        length += copy;
+        off += copy;
+        len -= copy;
+      }
+    }
+
+    // a flush would only produce small blocks, the data is written with the next block or close
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (length > 0) {
+          submit();
+        }
+        while (!pending.isEmpty()) {
+          writeNext();
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    // hand over the current block to the pool
+    private void submit() throws IOException {
+      try {
+        blocks.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the compression");
+      }
+
+      final byte[] full = block;
+      final int fullLength = length;
+      bytesIn.addAndGet(fullLength);
+
+      try {
+        pending.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            try {
+              return compress(full, fullLength);
+            } finally {
+              blocks.release();
+            }
+          }
+        }));
+      } catch (RuntimeException e) {
+        blocks.release();
+        throw e;
+      }
+
+      block = new byte[blockSize];
+      length = 0;
+
+      // write the finished blocks, wait if too many are pending
+      while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > threads)) {
+        writeNext();
+      }
+    }
+
+    private void writeNext() throws IOException {
+      try {
+        byte[] compressed = pending.poll().get();
+        out.write(compressed);
+        bytesOut.addAndGet(compressed.length);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the compression");
+      } catch (ExecutionException e) {
+        throw new IOException("Could not compress output: " + e.getCause().getMessage(),
+            e.getCause());
+      }
+    }
+  }
+
+}
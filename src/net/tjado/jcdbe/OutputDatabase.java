@@ -0,0 +1,648 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * OutputDatabase writes the results into tables of a central database (JDBC)
+ * 
+ * Every query is written into its own table ([query:<queryID>] outputTable, default: table of the
+ * [output:database] section), the table needs a column for every result column including
+ * DATABASE_NAME_JCDBE. The column names are quoted identifiers (quote string of the driver). The
+ * rows are inserted with batched PreparedStatements over a small pool of writer connections shared
+ * by all database threads: a thread borrows a writer for a complete result, adds the rows to the
+ * batch of the insert statement (executed every batchSize rows and at the end of the result) and
+ * gives the writer back. A writer commits after a result once commitInterval rows are uncommitted
+ * and during close, never within a result.
+ * 
+ * Streamed results are buffered until their fetch is complete (see ResultBuffer), so the rows of a
+ * failed or aborted fetch are never inserted. If an insert of a result fails, its rows are rolled
+ * back (savepoint before the result, without savepoint support every result is committed on its
+ * own) and the query status is set to OUTPUT_ERROR.
+ * 
+ * Database and query status messages are inserted into the statusTable (optional) with the columns
+ * DATABASE_ID, QUERY_ID (null for the database status) and STATUS.
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputDatabase implements Output, OutputStreaming {
+
+  // instance object (singleton)
+  private static final OutputDatabase INSTANCE = new OutputDatabase();
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // section name of the config (ini) file
+  private String sectionName = "output:database";
+
+  // JDBC connection of the central database, driver class (null = registered drivers)
+  private String dbURL = null;
+  private String dbUsername = null;
+  private String dbPassword = null;
+  private String dbDriver = null;
+
+  // table of the results, table per query and table of the status messages (null = no status)
+  private String dbTable = "JCDBE_RESULT";
+  private Map<Integer, String> queryTables = new HashMap<Integer, String>();
+  private String dbStatusTable = null;
+
+  // writer connections, rows per executeBatch and rows per commit (0 = only during close)
+  private int dbConnections = 4;
+  private int dbBatchSize = 1000;
+  private int dbCommitInterval = 10000;
+
+  // idle writers and all writers
+  private ArrayBlockingQueue<Writer> writers = null;
+  private List<Writer> writerList = new ArrayList<Writer>();
+
+  // quote string of the identifiers (empty if the driver doesn't support quoted identifiers)
+  private String quote = "\"";
+
+  // currently inserted results from the buffer (dbID/queryID -> result)
+  private Map<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+
+  // columns, writer and first error of an inserted result
+  private static class Stream {
+    RowSetMetaData metaData = null;
+    Writer writer = null;
+    SQLException error = null;
+  }
+
+  // streamed results until their fetch is complete
+  private OutputStreaming buffer = null;
+
+  // inserts a complete result from the buffer
+  private OutputStreaming results = new OutputStreaming() {
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      Stream stream = new Stream();
+      stream.metaData = metaData;
+      stream.writer = borrow();
+      if (stream.writer != null) {
+        try {
+          stream.writer.begin();
+        } catch (SQLException e) {
+          stream.error = e;
+        }
+      }
+      streams.put(dbID + "/" + queryID, stream);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      Stream stream = streams.get(dbID + "/" + queryID);
+      if (stream == null || stream.writer == null || stream.error != null) {
+        return;
+      }
+
+      try {
+        insertRows(queryID, stream, rows);
+      } catch (SQLException e) {
+        stream.error = e;
+      }
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      Stream stream = streams.remove(dbID + "/" + queryID);
+      if (stream == null || stream.writer == null) {
+        return;
+      }
+
+      try {
+        if (stream.error == null && complete) {
+          stream.writer.end();
+        } else if (stream.error == null) {
+          stream.writer.rollback();
+        }
+      } catch (SQLException e) {
+        stream.error = e;
+      }
+
+      if (stream.error != null) {
+        failResult(stream.writer, dbID, queryID, stream.error);
+      }
+      writers.add(stream.writer);
+    }
+  };
+
+  // insert statements (table and columns -> SQL)
+  private Map<String, String> inserts = new ConcurrentHashMap<String, String>();
+
+  // inserted rows, executed batches, failed rows and start of the output
+  private AtomicLong rows = new AtomicLong(0);
+  private AtomicLong batches = new AtomicLong(0);
+  private AtomicLong errors = new AtomicLong(0);
+  private long start = 0;
+
+  // writer connection with its insert statements
+  private class Writer {
+    Connection connection = null;
+    boolean savepoints = false;
+
+    // SQL -> statement and its rows in the batch
+    Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    Map<String, Integer> batched = new HashMap<String, Integer>();
+
+    // rows since the last commit
+    int uncommitted = 0;
+
+    // savepoint before the current result, its rows and its already inserted rows
+    Savepoint savepoint = null;
+    int resultRows = 0;
+    int resultInserted = 0;
+
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+        batched.put(sql, 0);
+      }
+      return statement;
+    }
+
+    // a row was added to the batch of the statement
+    void added(String sql) throws SQLException {
+      int size = batched.get(sql) + 1;
+      batched.put(sql, size);
+      resultRows++;
+      uncommitted++;
+      if (size >= dbBatchSize) {
+        execute(sql);
+      }
+    }
+
+    void execute(String sql) throws SQLException {
+      int size = batched.get(sql);
+      if (size == 0) {
+        return;
+      }
+
+      batched.put(sql, 0);
+      statements.get(sql).executeBatch();
+      resultInserted += size;
+      rows.addAndGet(size);
+      batches.incrementAndGet();
+    }
+
+    void flush() throws SQLException {
+      for (String sql : statements.keySet()) {
+        execute(sql);
+      }
+    }
+
+    // a result (or status message) starts, its rows can be rolled back on their own
+    void begin() throws SQLException {
+      resultRows = 0;
+      resultInserted = 0;
+      if (savepoints) {
+        savepoint = connection.setSavepoint();
+      } else if (uncommitted > 0) {
+        commit();
+      }
+    }
+
+    // all rows of the result are inserted
+    void end() throws SQLException {
+      flush();
+      savepoint = null;
+      if (!savepoints || (dbCommitInterval > 0 && uncommitted >= dbCommitInterval)) {
+        commit();
+      }
+    }
+
+    // drops the rows of the current result (batched and inserted), the rows of the results
+    // before stay uncommitted
+    void rollback() {
+      errors.addAndGet(resultRows);
+      rows.addAndGet(-resultInserted);
+      uncommitted -= resultRows;
+      resultRows = 0;
+      resultInserted = 0;
+
+      try {
+        for (String sql : statements.keySet()) {
+          statements.get(sql).clearBatch();
+          batched.put(sql, 0);
+        }
+        if (savepoint != null) {
+          connection.rollback(savepoint);
+        } else {
+          connection.rollback();
+          uncommitted = 0;
+        }
+      } catch (SQLException e) {
+        jcdbe.advDebug(e);
+        log.warn("[OUTPUT] Could not roll back rows: " + e.getMessage());
+      }
+      savepoint = null;
+    }
+
+    void commit() throws SQLException {
+      flush();
+      connection.commit();
+      uncommitted = 0;
+    }
+
+    void close() {
+      try {
+        commit();
+      } catch (SQLException e) {
+        log.warn("[OUTPUT] Could not commit rows: " + e.getMessage());
+      }
+
+      try {
+        for (PreparedStatement statement : statements.values()) {
+          statement.close();
+        }
+        connection.close();
+      } catch (SQLException e) {
+        jcdbe.advDebug(e);
+      }
+    }
+  }
+
+  // private constructor -> singleton
+  private OutputDatabase() {/************** nothing in constructor **************/}
+
+  // get instance of this class
+  public static OutputDatabase getInstance() {
+    return INSTANCE;
+  }
+
+  // specify CLI arguments of required information for this module
+  public void setCLI(Options o) {
+    o.addOption("op", "outputPassword", true, "password of the output database");
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    log.debug("[OUTPUT] Validating parameters");
+
+    // temporary string for storing/checking parameter values
+    String checkParam = null;
+
+    //
+    //
+    // INI parameters
+
+    checkParam = ini.get(sectionName, "url");
+    if (checkParam != null) {
+      dbURL = checkParam;
+      log.debug("[OUTPUT] URL parameter successful parsed from config file");
+    } else {
+      log.fatal("[OUTPUT] URL parameter of the output database not specified");
+      System.exit(1);
+    }
+
+    checkParam = ini.get(sectionName, "username");
+    if (checkParam != null) {
+      dbUsername = checkParam;
+      log.debug("[OUTPUT] Username parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "password");
+    if (checkParam != null) {
+      dbPassword = checkParam;
+      log.debug("[OUTPUT] Password parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "driver");
+    if (checkParam != null) {
+      dbDriver = checkParam;
+      log.debug("[OUTPUT] Driver parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "table");
+    if (checkParam != null) {
+      dbTable = checkParam;
+      log.debug("[OUTPUT] Table parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "statusTable");
+    if (checkParam != null) {
+      dbStatusTable = checkParam;
+      log.debug("[OUTPUT] Status table parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "connections");
+    if (checkParam != null) {
+      dbConnections = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Connections parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "batchSize");
+    if (checkParam != null) {
+      dbBatchSize = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Batch size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "commitInterval");
+    if (checkParam != null) {
+      dbCommitInterval = Math.max(0, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Commit interval parameter successful parsed from config file");
+    }
+
+    // table per query ([query:<queryID>] sections)
+    for (String section : ini.keySet()) {
+      if (section.startsWith("query:") && ini.get(section, "outputTable") != null) {
+        queryTables.put(Integer.parseInt(section.substring(6)), ini.get(section, "outputTable"));
+        log.debug("[OUTPUT] Table of " + section + ": " + ini.get(section, "outputTable"));
+      }
+    }
+
+    //
+    //
+    // CLI arguments
+
+    if (cli.hasOption("outputPassword")) {
+      dbPassword = cli.getOptionValue("outputPassword");
+      log.debug("[OUTPUT] Password parameter successful parsed from CLI");
+    }
+  }
+
+  public boolean init() throws Exception {
+
+    buffer = ResultBuffer.buffered(results);
+
+    if (dbDriver != null) {
+      Class.forName(dbDriver);
+    }
+
+    writers = new ArrayBlockingQueue<Writer>(dbConnections);
+    writerList.clear();
+    rows.set(0);
+    batches.set(0);
+    errors.set(0);
+
+    try {
+      for (int i = 0; i < dbConnections; i++) {
+        Writer writer = new Writer();
+        if (dbUsername == null) {
+          writer.connection = DriverManager.getConnection(dbURL);
+        } else {
+          writer.connection = DriverManager.getConnection(dbURL, dbUsername, dbPassword);
+        }
+        writer.connection.setAutoCommit(false);
+        writer.savepoints = writer.connection.getMetaData().supportsSavepoints();
+        quote = writer.connection.getMetaData().getIdentifierQuoteString().trim();
+
+        writerList.add(writer);
+        writers.add(writer);
+      }
+    } catch (SQLException e) {
+      log.fatal("[OUTPUT] Could not connect to the output database: " + e.getMessage());
+      for (Writer writer : writerList) {
+        writer.connection.close();
+      }
+      return false;
+    }
+
+    log.debug("[OUTPUT] " + dbConnections + " connections to the output database");
+    start = System.currentTimeMillis();
+    return true;
+  }
+
+  public void close() {
+
+    for (Writer writer : writerList) {
+      writer.close();
+    }
+
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    log.info("[OUTPUT] Database: " + rows.get() + " rows in " + batches.get() + " batches ("
+        + rows.get() * 1000 / time + " rows/s), " + errors.get() + " rows failed");
+  }
+
+  public boolean prepareDatabase(Integer dbID) {
+
+    return true;
+  }
+
+  public boolean prepareQuery(Integer dbID, Integer queryID) {
+
+    return true;
+  }
+
+  public void setDatabaseStatus(Integer dbID, String status) {
+    saveStatus(dbID, null, status);
+  }
+
+  public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+    saveStatus(dbID, queryID, status);
+  }
+
+  public void saveResult(CachedRowSet rs, Integer dbID, Integer queryID) {
+
+    Writer writer = borrow();
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.begin();
+      ResultSetMetaData metaData = rs.getMetaData();
+      String sql = getInsert(getTable(queryID), metaData);
+      PreparedStatement statement = writer.prepare(sql);
+
+      while (rs.next()) {
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+          Object value = rs.getObject(i);
+          if (value == null) {
+            statement.setNull(i, metaData.getColumnType(i));
+          } else {
+            statement.setObject(i, value);
+          }
+        }
+        statement.addBatch();
+        writer.added(sql);
+      }
+      writer.end();
+    } catch (SQLException e) {
+      failResult(writer, dbID, queryID, e);
+    } finally {
+      writers.add(writer);
+    }
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    buffer.startResult(dbID, queryID, metaData);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch batch) {
+
+    buffer.saveRows(dbID, queryID, batch);
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+
+    buffer.endResult(dbID, queryID, complete);
+  }
+
+  private void insertRows(Integer queryID, Stream stream, RowBatch batch) throws SQLException {
+
+    RowSetMetaData metaData = stream.metaData;
+    Writer writer = stream.writer;
+    String sql = getInsert(getTable(queryID), metaData);
+    PreparedStatement statement = writer.prepare(sql);
+
+    for (int row = 0; row < batch.size(); row++) {
+
+      // typed columns of the batch are bound without boxing
+      for (int i = 1; i <= batch.getColumnCount(); i++) {
+        if (batch.isNull(row, i)) {
+          statement.setNull(i, metaData.getColumnType(i));
+          continue;
+        }
+
+        switch (batch.getType(i)) {
+          case RowBatch.LONG:
+            statement.setLong(i, batch.getLong(row, i));
+            break;
+          case RowBatch.DOUBLE:
+            statement.setDouble(i, batch.getDouble(row, i));
+            break;
+          case RowBatch.STRING:
+            statement.setString(i, batch.getString(row, i));
+            break;
+          default:
+            statement.setObject(i, batch.getObject(row, i));
+        }
+      }
+      statement.addBatch();
+      writer.added(sql);
+    }
+  }
+
+  // rolls back the rows of a failed result and sets the status of the query
+  private void failResult(Writer writer, Integer dbID, Integer queryID, SQLException e) {
+    jcdbe.advDebug(e);
+    log.warn(dbID, "[OUTPUT] Could not save result of query " + queryID + ": " + e.getMessage());
+    writer.rollback();
+    insertStatus(writer, dbID, queryID, "OUTPUT_ERROR: " + e.getMessage());
+  }
+
+  private void saveStatus(Integer dbID, Integer queryID, String status) {
+    if (dbStatusTable == null) {
+      return;
+    }
+
+    Writer writer = borrow();
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      insertStatus(writer, dbID, queryID, status);
+    } finally {
+      writers.add(writer);
+    }
+  }
+
+  private void insertStatus(Writer writer, Integer dbID, Integer queryID, String status) {
+    if (dbStatusTable == null) {
+      return;
+    }
+
+    try {
+      writer.begin();
+      String sql = "INSERT INTO " + dbStatusTable
+          + " (DATABASE_ID, QUERY_ID, STATUS) VALUES (?, ?, ?)";
+      PreparedStatement statement = writer.prepare(sql);
+
+      statement.setInt(1, dbID);
+      if (queryID == null) {
+        statement.setNull(2, Types.INTEGER);
+      } else {
+        statement.setInt(2, queryID);
+      }
+      statement.setString(3, status.replaceAll("\\s+$", ""));
+      statement.addBatch();
+      writer.added(sql);
+      writer.end();
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save status: " + e.getMessage());
+      writer.rollback();
+    }
+  }
+
+  // wait for an idle writer connection
+  private Writer borrow() {
+    try {
+      return writers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private String getTable(Integer queryID) {
+    String table = queryTables.get(queryID);
+    return table == null ? dbTable : table;
+  }
+
+  // INSERT INTO <table> (<quoted columns of the result>) VALUES (?, ...)
+  private String getInsert(String table, ResultSetMetaData metaData) throws SQLException {
+    StringBuilder columns = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      if (i > 1) {
+        columns.append(", ");
+        values.append(", ");
+      }
+      columns.append(quote).append(metaData.getColumnName(i).replace(quote, quote + quote))
+          .append(quote);
+      values.append("?");
+    }
+
+    String key = table + "(" + columns + ")";
+    String sql = inserts.get(key);
+    if (sql == null) {
+      sql = "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+      inserts.put(key, sql);
+    }
+    return sql;
+  }
+}
@@ -21,6 +21,7 @@
 
 package net.tjado.jcdbe;
 
+import javax.sql.RowSetMetaData;
 import javax.sql.rowset.CachedRowSet;
 
 import org.ini4j.Ini;
@@ -30,7 +31,7 @@ import org.apache.commons.cli.Options;
 /**
  * OutputDummy stores no data.
  */
-public class OutputDummy implements Output {
+public class OutputDummy implements Output, OutputStreaming {
 
   // instance object (singleton)
   private static final OutputDummy INSTANCE = new OutputDummy();
@@ -75,4 +76,16 @@ public class OutputDummy implements Output {
   public void saveResult(CachedRowSet rs, Integer taskDBID, Integer queryID) {
     return;
   }
+
+  public void startResult(Integer taskDBID, Integer queryID, RowSetMetaData metaData) {
+    return;
+  }
+
+  public void saveRows(Integer taskDBID, Integer queryID, RowBatch rows) {
+    return;
+  }
+
+  public void endResult(Integer taskDBID, Integer queryID, boolean complete) {
+    return;
+  }
 }
@@ -0,0 +1,522 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * Incremental output: only changed results (or rows) are written into the output
+ * 
+ * Every result gets a fingerprint per external database ID and query ID (see ResultFingerprints):
+ * the column CRC (DatabaseOracle.getColumnCRC), the amount of rows and the sum of the 64 bit hashes
+ * of all rows (CRC32 of every value, mixed per column), so the order of the rows doesn't matter.
+ * 
+ * Result mode (incremental = result): the rows of a result are written into a spill file (see
+ * ResultSpill) while the fingerprint is calculated. If the fingerprint differs from the previous
+ * run, the result is replayed into the output, otherwise the spill file is deleted.
+ * 
+ * Row mode (incremental = row): the hashes of the rows are compared with the row snapshot of the
+ * previous run and only the new or changed rows are written. The changed rows are buffered (see
+ * ResultBuffer, larger than spillSize in a spill file) and written after the complete fetch. Removed
+ * rows are only counted, a result without new rows is not written at all. If the columns of the
+ * result changed, all rows are written.
+ * 
+ * Incomplete results (failed fetch) are not written and keep their previous fingerprint. The
+ * status messages are always written.
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputIncremental implements Output, OutputStreaming {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // hash of a null value
+  private static final long NULL_HASH = 0x6e756c6cL;
+
+  // rows of a batch of a result which is not streamed
+  private static final int BATCH = 1000;
+
+  // status of an empty result (DatabaseThreadSlave)
+  private static final String RESULT_EMPTY = "RESULT_EMPTY";
+
+  private Output output = null;
+  private DatabaseList dbList = null;
+  private ResultFingerprints fingerprints = null;
+
+  // row mode (otherwise result mode)
+  private boolean rowMode = false;
+
+  // directory of the spill files (null = java.io.tmpdir)
+  private String spillDirectory = null;
+
+  // changed rows of the streamed results until their end (row mode)
+  private ResultBuffer changedRows = null;
+
+  // for DatabaseOracle.getColumnCRC
+  private DatabaseOracle crc = new DatabaseOracle();
+
+  // currently streamed results (dbID/queryID)
+  private Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+
+  // results and rows of the run and the written ones
+  private AtomicLong resultsTotal = new AtomicLong(0);
+  private AtomicLong resultsWritten = new AtomicLong(0);
+  private AtomicLong rowsTotal = new AtomicLong(0);
+  private AtomicLong rowsWritten = new AtomicLong(0);
+
+  public OutputIncremental(Output output, DatabaseList dbList, ResultFingerprints fingerprints,
+      boolean rowMode, String spillDirectory) {
+    this.output = output;
+    this.dbList = dbList;
+    this.fingerprints = fingerprints;
+    this.rowMode = rowMode;
+    this.spillDirectory = spillDirectory;
+
+    if (rowMode) {
+      changedRows = new ResultBuffer(DatabaseOracle.getSpillBytes(), spillDirectory);
+    }
+  }
+
+  // the output is already initialized
+  public void setCLI(Options o) throws Exception {
+    output.setCLI(o);
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    output.validateParameters(cli, ini);
+  }
+
+  public boolean init() throws Exception {
+    return output.init();
+  }
+
+  // saves the fingerprints of this run and closes the output
+  public void close() {
+    fingerprints.save();
+
+    log.info("[INCREMENTAL] " + resultsWritten.get() + " of " + resultsTotal.get()
+        + " results changed, " + rowsWritten.get() + " of " + rowsTotal.get() + " rows written");
+
+    output.close();
+  }
+
+  public boolean prepareDatabase(Integer dbID) {
+    return output.prepareDatabase(dbID);
+  }
+
+  public boolean prepareQuery(Integer dbID, Integer queryID) {
+    return output.prepareQuery(dbID, queryID);
+  }
+
+  public void setDatabaseStatus(Integer dbID, String status) {
+    output.setDatabaseStatus(dbID, status);
+  }
+
+  // an empty result replaces the fingerprint, so the next result with rows is written again
+  public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+    if (status.equals(RESULT_EMPTY)) {
+      String key = ResultFingerprints.getKey(dbList.getExternalId(dbID), queryID);
+      fingerprints.put(key, RESULT_EMPTY);
+      if (rowMode) {
+        fingerprints.putRows(key, new long[0]);
+      }
+    }
+
+    output.setQueryStatus(dbID, queryID, status);
+  }
+
+  // the rows are streamed in batches like the results of the database threads
+  public void saveResult(CachedRowSet rs, final Integer dbID, final Integer queryID) {
+    if (rs.size() == 0) {
+      return;
+    }
+
+    boolean started = false;
+    try {
+      startResult(dbID, queryID, OutputRowSetAdapter.getMetaData(rs.getMetaData()));
+      started = true;
+
+      OutputRowSetAdapter.forEach(rs, BATCH, new OutputRowSetAdapter.BatchHandler() {
+        public void saveRows(RowBatch rows) {
+          OutputIncremental.this.saveRows(dbID, queryID, rows);
+        }
+      });
+      endResult(dbID, queryID, true);
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[INCREMENTAL] Could not save result of query " + queryID + ": "
+          + e.getMessage());
+      if (started) {
+        endResult(dbID, queryID, false);
+      }
+    } catch (IOException e) {
+      log.warn(dbID, "[INCREMENTAL] Could not save result of query " + queryID + ": "
+          + e.getMessage());
+      endResult(dbID, queryID, false);
+    }
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+    Result result = new Result();
+    result.key = ResultFingerprints.getKey(dbList.getExternalId(dbID), queryID);
+    result.metaData = metaData;
+
+    if (output instanceof OutputStreaming) {
+      result.target = (OutputStreaming) output;
+    } else {
+      result.target = new OutputRowSetAdapter(output);
+    }
+
+    try {
+      result.columnCRC = crc.getColumnCRC(metaData);
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      result.columnCRC = "";
+    }
+
+    // row snapshot of the previous run only with the same columns
+    if (rowMode) {
+      String previous = fingerprints.get(result.key);
+      if (previous != null && previous.startsWith(result.columnCRC + ",")) {
+        result.previous = fingerprints.getRows(result.key);
+      }
+      if (result.previous == null) {
+        result.previous = new long[0];
+      }
+      result.matched = new boolean[result.previous.length];
+    }
+
+    results.put(dbID + "/" + queryID, result);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+    Result result = results.get(dbID + "/" + queryID);
+    if (result == null || result.failed) {
+      return;
+    }
+
+    long[] hashes = result.hashRows(rows);
+    result.rows += rows.size();
+
+    try {
+      if (!rowMode) {
+        for (int row = 0; row < rows.size(); row++) {
+          result.hash += hashes[row];
+        }
+
+        if (result.spill == null) {
+          result.spill = new ResultSpill(spillDirectory, result.metaData, createBatch(rows,
+              rows.getCapacity()));
+        }
+        result.spill.write(rows);
+        return;
+      }
+
+      // row mode: rows which are not in the row snapshot of the previous run are buffered
+      for (int row = 0; row < rows.size(); row++) {
+        result.hash += hashes[row];
+        result.addHash(hashes[row]);
+
+        if (!result.match(hashes[row])) {
+          if (result.changed == null) {
+            result.changed = createBatch(rows, rows.getCapacity());
+          }
+          result.changed.add(rows, row);
+        }
+      }
+
+      if (result.changed != null && result.changed.size() > 0) {
+        if (!result.started) {
+          changedRows.start(dbID, queryID, result.metaData);
+          result.started = true;
+        }
+        result.changed.setFirstColumnValue(rows.getFirstColumnValue());
+        changedRows.add(dbID, queryID, result.changed);
+        result.written += result.changed.size();
+        result.changed.clear();
+      }
+    } catch (IOException e) {
+      log.warn(dbID, "[INCREMENTAL] Could not spill result of query " + queryID + ": "
+          + e.getMessage());
+      result.failed = true;
+    }
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+    Result result = results.remove(dbID + "/" + queryID);
+    if (result == null) {
+      return;
+    }
+
+    complete &= !result.failed;
+    String fingerprint = result.columnCRC + "," + result.rows + "," + Long.toHexString(result.hash);
+    boolean changed = !fingerprint.equals(fingerprints.get(result.key));
+
+    if (rowMode) {
+      // the changed rows are only written if the result is complete
+      if (result.started) {
+        try {
+          ResultBuffer.Result rows = changedRows.remove(dbID, queryID, complete);
+          if (rows != null) {
+            rows.replay(dbID, queryID, result.target);
+          }
+        } catch (IOException e) {
+          log.warn(dbID, "[INCREMENTAL] Could not write changed rows of query " + queryID + ": "
+              + e.getMessage());
+          complete = false;
+        }
+      }
+
+      if (complete) {
+        fingerprints.put(result.key, fingerprint);
+        fingerprints.putRows(result.key, result.getHashes());
+        count(changed, result.rows, result.written);
+
+        int removed = 0;
+        for (boolean matched : result.matched) {
+          removed += matched ? 0 : 1;
+        }
+        log.debug(dbID, "[INCREMENTAL] Query " + queryID + ": " + result.written + " of "
+            + result.rows + " rows written, " + removed + " rows removed");
+      }
+      return;
+    }
+
+    // result mode: replay the spilled result if its fingerprint changed
+    if (!complete || !changed) {
+      if (result.spill != null) {
+        result.spill.delete();
+      }
+      if (complete) {
+        count(false, result.rows, 0);
+        log.debug(dbID, "[INCREMENTAL] Query " + queryID + ": result unchanged");
+      }
+      return;
+    }
+
+    try {
+      result.spill.finish();
+      result.spill.replay(dbID, queryID, result.target);
+      fingerprints.put(result.key, fingerprint);
+      count(true, result.rows, result.rows);
+    } catch (IOException e) {
+      result.spill.delete();
+      log.warn(dbID, "[INCREMENTAL] Could not replay result of query " + queryID + ": "
+          + e.getMessage());
+    }
+  }
+
+
+  private void count(boolean changed, long rows, long written) {
+    resultsTotal.incrementAndGet();
+    resultsWritten.addAndGet(changed ? 1 : 0);
+    rowsTotal.addAndGet(rows);
+    rowsWritten.addAndGet(written);
+  }
+
+  // empty batch with the columns of the rows
+  private static RowBatch createBatch(RowBatch rows, int capacity) {
+    int[] jdbcTypes = new int[rows.getColumnCount() - 1];
+    int[] types = new int[rows.getColumnCount() - 1];
+    for (int i = 0; i < types.length; i++) {
+      jdbcTypes[i] = rows.getJdbcType(i + 2);
+      types[i] = rows.getType(i + 2);
+    }
+    return new RowBatch(jdbcTypes, types, rows.getFirstColumnValue(), capacity);
+  }
+
+  /**
+   * Streamed result of a database and query
+   * 
+   * Not thread-safe, only used by the database thread of the result
+   * 
+   */
+  private static class Result {
+
+    private String key = null;
+    private RowSetMetaData metaData = null;
+    private String columnCRC = null;
+    private OutputStreaming target = null;
+
+    // rows and the sum of their hashes (fingerprint)
+    private long rows = 0;
+    private long hash = 0;
+
+    // spill file of the result (result mode)
+    private ResultSpill spill = null;
+
+    // sorted row hashes of the previous run, matched rows of this run (row mode)
+    private long[] previous = null;
+    private boolean[] matched = null;
+
+    // row hashes of this run, changed rows of a batch and the written rows (row mode)
+    private long[] hashes = new long[1024];
+    private int hashCount = 0;
+    private RowBatch changed = null;
+    private long written = 0;
+
+    // changed rows buffered (row mode), result failed (spill error)
+    private boolean started = false;
+    private boolean failed = false;
+
+    // reused for the hashes of a batch
+    private CRC32 crc = new CRC32();
+    private byte[] bytes = new byte[8];
+    private long[] batchHashes = new long[0];
+
+    // hashes of the rows of a batch (valid until the next batch)
+    private long[] hashRows(RowBatch rows) {
+      if (batchHashes.length < rows.size()) {
+        batchHashes = new long[rows.getCapacity()];
+      }
+
+      // every dictionary value is only hashed once per batch
+      long[][] stringHashes = new long[rows.getColumnCount() + 1][];
+      for (int column = 2; column <= rows.getColumnCount(); column++) {
+        if (rows.getType(column) == RowBatch.STRING) {
+          stringHashes[column] = new long[rows.getDictionary(column).size()];
+          for (int code = 0; code < stringHashes[column].length; code++) {
+            stringHashes[column][code] = crc(rows.getDictionary(column).get(code).getBytes(UTF8));
+          }
+        }
+      }
+
+      for (int row = 0; row < rows.size(); row++) {
+        long rowHash = 1;
+        for (int column = 2; column <= rows.getColumnCount(); column++) {
+          long cell = NULL_HASH;
+          if (!rows.isNull(row, column)) {
+            switch (rows.getType(column)) {
+              case RowBatch.LONG:
+                cell = crc(rows.getLong(row, column));
+                break;
+              case RowBatch.DOUBLE:
+                cell = crc(Double.doubleToLongBits(rows.getDouble(row, column)));
+                break;
+              case RowBatch.STRING:
+                cell = stringHashes[column][rows.getCode(row, column)];
+                break;
+              default:
+                cell = crc(getBytes(rows.getObject(row, column)));
+            }
+          }
+
+          // 64 bit mix of the column hashes
+          rowHash = (rowHash ^ cell) * 0x9e3779b97f4a7c15L;
+          rowHash ^= rowHash >>> 32;
+        }
+        batchHashes[row] = rowHash;
+      }
+
+      return batchHashes;
+    }
+
+    private long crc(long value) {
+      for (int i = 0; i < 8; i++) {
+        bytes[i] = (byte) (value >>> (56 - 8 * i));
+      }
+      return crc(bytes);
+    }
+
+    private long crc(byte[] value) {
+      crc.reset();
+      crc.update(value);
+      return crc.getValue();
+    }
+
+    // content of LOBs, exact decimals, all other objects as string
+    private static byte[] getBytes(Object value) {
+      try {
+        if (value instanceof byte[]) {
+          return (byte[]) value;
+        } else if (value instanceof Blob) {
+          Blob blob = (Blob) value;
+          return blob.getBytes(1, (int) blob.length());
+        } else if (value instanceof Clob) {
+          Clob clob = (Clob) value;
+          return clob.getSubString(1, (int) clob.length()).getBytes(UTF8);
+        } else if (value instanceof BigDecimal) {
+          return ((BigDecimal) value).toPlainString().getBytes(UTF8);
+        }
+      } catch (SQLException e) {
+        return new byte[0];
+      }
+      return value.toString().getBytes(UTF8);
+    }
+
+    private void addHash(long rowHash) {
+      if (hashCount == hashes.length) {
+        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+      }
+      hashes[hashCount++] = rowHash;
+    }
+
+    // sorted row hashes of this run
+    private long[] getHashes() {
+      long[] sorted = Arrays.copyOf(hashes, hashCount);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    // true if an unmatched row of the previous run has the same hash (duplicates are matched once)
+    private boolean match(long rowHash) {
+      int index = Arrays.binarySearch(previous, rowHash);
+      if (index < 0) {
+        return false;
+      }
+
+      // first row with this hash
+      while (index > 0 && previous[index - 1] == rowHash) {
+        index--;
+      }
+      for (; index < previous.length && previous[index] == rowHash; index++) {
+        if (!matched[index]) {
+          matched[index] = true;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,616 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * OutputJsonLines writes the results as JSON Lines (one JSON object per line)
+ * 
+ * Every row is written with its database ID, external ID, query ID, the value of the first column
+ * and the typed column values (LONG and DOUBLE as numbers, NUMBER with scale as exact decimal,
+ * BOOLEAN as true/false, binary values as hex string, all other values as string):
+ * 
+ *  {"dbID":1,"externalId":4711,"queryID":1,"database":"db1","columns":{"COL1":"abc","COL2":2}}
+ * 
+ * Status messages are written as their own lines without columns:
+ * 
+ *  {"dbID":1,"externalId":4711,"queryID":null,"status":"OK"}
+ * 
+ * The database threads encode their rows with a reusable encoder per thread directly into bytes
+ * (no strings per cell) without any lock and put the chunks into a bounded queue, a single writer
+ * thread drains all queued chunks at once and writes them with one gathering write into the file
+ * channel (like the asynchronous mode of OutputCSV). If the queue is full, the database threads
+ * wait for the writer.
+ * 
+ * Streamed results are buffered until their fetch is complete (see ResultBuffer), a failed or
+ * aborted fetch writes no lines.
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputJsonLines implements Output, OutputStreaming {
+
+  // instance object (singleton)
+  private static final OutputJsonLines INSTANCE = new OutputJsonLines();
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // section name of the config (ini) file
+  private String sectionName = "output:jsonlines";
+
+  // rows of a chunk of a result which is not streamed
+  private int chunkRows = 1000;
+
+  // queued chunks
+  private int queueSize = 64;
+
+  // JSON Lines file
+  private String outputFile = null;
+
+  // external database IDs
+  private DatabaseList dbList = null;
+
+  // queue of the encoded chunks, writer thread and its file
+  private ArrayBlockingQueue<byte[]> queue = null;
+  private Thread writer = null;
+  private FileChannel file = null;
+
+  // last chunk of the queue (compared by identity)
+  private static final byte[] END = new byte[0];
+
+  // chunks and drains of the writer thread
+  private long chunks = 0;
+  private long drains = 0;
+
+  // encoder of every database thread (reused for all its chunks)
+  private static final ThreadLocal<JsonEncoder> ENCODER = new ThreadLocal<JsonEncoder>() {
+    @Override
+    protected JsonEncoder initialValue() {
+      return new JsonEncoder();
+    }
+  };
+
+  // keys of the columns ("name": as bytes) of the currently streamed results (dbID/queryID)
+  private Map<String, byte[][]> streams = new ConcurrentHashMap<String, byte[][]>();
+
+  // streamed results until their fetch is complete
+  private OutputStreaming buffer = null;
+
+  // writes a complete result from the buffer into the file
+  private OutputStreaming results = new OutputStreaming() {
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      writeStart(dbID, queryID, metaData);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      writeRows(dbID, queryID, rows);
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      streams.remove(dbID + "/" + queryID);
+    }
+  };
+
+  // private constructor -> singleton
+  private OutputJsonLines() {/************** nothing in constructor **************/}
+
+  // get instance of this class
+  public static OutputJsonLines getInstance() {
+    return INSTANCE;
+  }
+
+  // external IDs of the databases (every line)
+  public void setDatabaseList(DatabaseList dbList) {
+    this.dbList = dbList;
+  }
+
+  // specify CLI arguments of required information for this module
+  public void setCLI(Options o) {
+    o.addOption("of", "outputFile", true, "path to JSON Lines output file");
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    log.debug("[OUTPUT] Validating parameters");
+
+    // temporary string for storing/checking parameter values
+    String checkParam = null;
+
+    //
+    //
+    // INI parameters
+
+    checkParam = ini.get(sectionName, "queueSize");
+    if (checkParam != null) {
+      queueSize = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Queue size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "chunkRows");
+    if (checkParam != null) {
+      chunkRows = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Chunk rows parameter successful parsed from config file");
+    }
+
+    //
+    //
+    // CLI arguments
+
+    if (cli.hasOption("outputFile")) {
+      outputFile = cli.getOptionValue("outputFile");
+      log.debug("[OUTPUT] Output file parameter successful parsed from CLI");
+    } else {
+      log.fatal("[OUTPUT] Output file parameter not specified");
+      System.exit(1);
+    }
+  }
+
+  public boolean init() throws Exception {
+    buffer = ResultBuffer.buffered(results);
+    try {
+      file = new FileOutputStream(outputFile).getChannel();
+    } catch (FileNotFoundException e) {
+      log.fatal("[OUTPUT] JSON Lines file not found");
+      return false;
+    }
+
+    chunks = 0;
+    drains = 0;
+    queue = new ArrayBlockingQueue<byte[]>(queueSize);
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeQueue();
+      }
+    }, "jsonlines-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    return true;
+  }
+
+  public void close() {
+    try {
+      put(END);
+      writer.join();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    log.debug("[OUTPUT] JSON Lines writer: " + chunks + " chunks in " + drains + " writes");
+  }
+
+  public boolean prepareDatabase(Integer dbID) {
+
+    return true;
+  }
+
+  public boolean prepareQuery(Integer dbID, Integer queryID) {
+
+    return true;
+  }
+
+  public void setDatabaseStatus(Integer dbID, String status) {
+    saveStatus(dbID, null, status);
+  }
+
+  public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+    saveStatus(dbID, queryID, status);
+  }
+
+  // the rows are converted into batches of chunkRows rows
+  public void saveResult(CachedRowSet rs, final Integer dbID, final Integer queryID) {
+    try {
+      final byte[][] keys = getKeys(rs.getMetaData());
+      OutputRowSetAdapter.forEach(rs, chunkRows, new OutputRowSetAdapter.BatchHandler() {
+        public void saveRows(RowBatch rows) throws IOException {
+          put(ENCODER.get().encode(getPrefix(dbID, queryID), keys, rows));
+        }
+      });
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save result of query " + queryID + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write JSON Lines file: " + e.getMessage());
+    }
+  }
+
+  private void writeStart(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+    try {
+      streams.put(dbID + "/" + queryID, getKeys(metaData));
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not get columns of query " + queryID + ": " + e.getMessage());
+    }
+  }
+
+  private void writeRows(Integer dbID, Integer queryID, RowBatch rows) {
+    try {
+      put(ENCODER.get().encode(getPrefix(dbID, queryID), streams.get(dbID + "/" + queryID),
+          rows));
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write JSON Lines file: " + e.getMessage());
+    }
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    buffer.startResult(dbID, queryID, metaData);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+
+    buffer.saveRows(dbID, queryID, rows);
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+
+    buffer.endResult(dbID, queryID, complete);
+  }
+
+
+  private void saveStatus(Integer dbID, Integer queryID, String status) {
+    JsonEncoder encoder = ENCODER.get();
+    encoder.reset();
+    encoder.writeAscii(getPrefix(dbID, queryID));
+    encoder.writeAscii("\"status\":");
+    encoder.writeString(status.replaceAll("\\s+$", ""));
+    encoder.writeAscii("}\n");
+
+    try {
+      put(encoder.toChunk());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write JSON Lines file: " + e.getMessage());
+    }
+  }
+
+  // start of every line of the database and query: {"dbID":1,"externalId":4711,"queryID":1,
+  private String getPrefix(Integer dbID, Integer queryID) {
+    return "{\"dbID\":" + dbID + ",\"externalId\":"
+        + (dbList == null ? null : dbList.getExternalId(dbID)) + ",\"queryID\":" + queryID + ",";
+  }
+
+  // "name": of every column (index 0 = column 1) encoded once per result
+  private static byte[][] getKeys(ResultSetMetaData metaData) throws SQLException {
+    JsonEncoder encoder = ENCODER.get();
+    byte[][] keys = new byte[metaData.getColumnCount()][];
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      encoder.reset();
+      encoder.writeString(metaData.getColumnName(i));
+      encoder.writeAscii(":");
+      keys[i - 1] = encoder.toChunk();
+    }
+    return keys;
+  }
+
+  // queues a chunk for the writer thread, waits if the queue is full
+  private void put(byte[] chunk) throws IOException {
+    try {
+      queue.put(chunk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the JSON Lines writer");
+    }
+  }
+
+  // writer thread: drains all queued chunks at once and writes them with one gathering write
+  // until END
+  private void writeQueue() {
+    List<byte[]> drained = new ArrayList<byte[]>(queueSize);
+    boolean failed = false;
+    boolean end = false;
+
+    while (!end) {
+      try {
+        drained.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(drained);
+      drains++;
+
+      List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(drained.size());
+      long bytes = 0;
+      for (byte[] chunk : drained) {
+        if (chunk == END) {
+          end = true;
+          break;
+        }
+        buffers.add(ByteBuffer.wrap(chunk));
+        bytes += chunk.length;
+      }
+      chunks += buffers.size();
+      drained.clear();
+
+      // a write error drops the following chunks, the database threads must not get stuck
+      try {
+        ByteBuffer[] gather = buffers.toArray(new ByteBuffer[buffers.size()]);
+        while (!failed && bytes > 0) {
+          bytes -= file.write(gather);
+        }
+      } catch (IOException e) {
+        log.fatal("[OUTPUT] Could not write JSON Lines file: " + e.getMessage());
+        failed = true;
+      }
+    }
+
+    try {
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Encoder of JSON lines into a reusable byte buffer (UTF-8)
+   * 
+   * Numbers and strings are written directly into the buffer, only doubles with a fraction,
+   * decimals and other objects are converted with toString().
+   * 
+   * Not thread-safe, one encoder per thread
+   * 
+   */
+  private static class JsonEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    // longest long: -9223372036854775808
+    private byte[] digits = new byte[20];
+
+    private byte[] buffer = new byte[65536];
+    private int position = 0;
+
+    void reset() {
+      position = 0;
+    }
+
+    // copy of the encoded bytes
+    byte[] toChunk() {
+      return Arrays.copyOf(buffer, position);
+    }
+
+    // one line per row: prefix, "database":..., "columns":{...}
+    byte[] encode(String prefix, byte[][] keys, RowBatch rows) {
+      reset();
+      for (int row = 0; row < rows.size(); row++) {
+        writeAscii(prefix);
+        writeAscii("\"database\":");
+        writeValue(rows.getFirstColumnValue());
+        writeAscii(",\"columns\":{");
+
+        for (int column = 2; column <= rows.getColumnCount(); column++) {
+          if (column > 2) {
+            writeByte((byte) ',');
+          }
+          writeBytes(keys[column - 1]);
+
+          if (rows.isNull(row, column)) {
+            writeAscii("null");
+            continue;
+          }
+          switch (rows.getType(column)) {
+            case RowBatch.LONG:
+              writeLong(rows.getLong(row, column));
+              break;
+            case RowBatch.DOUBLE:
+              writeDouble(rows.getDouble(row, column), isFloat(rows.getJdbcType(column)));
+              break;
+            case RowBatch.STRING:
+              writeString(rows.getDictionary(column).get(rows.getCode(row, column)));
+              break;
+            default:
+              writeValue(rows.getObject(row, column));
+          }
+        }
+        writeAscii("}}\n");
+      }
+      return toChunk();
+    }
+
+    private void writeValue(Object value) {
+      try {
+        if (value == null) {
+          writeAscii("null");
+        } else if (value instanceof BigDecimal) {
+          writeAscii(((BigDecimal) value).toPlainString());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+            || value instanceof Byte) {
+          writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+          writeDouble(((Number) value).doubleValue(), value instanceof Float);
+        } else if (value instanceof Boolean) {
+          writeAscii(value.toString());
+        } else if (value instanceof byte[]) {
+          writeHex((byte[]) value);
+        } else if (value instanceof Blob) {
+          Blob blob = (Blob) value;
+          writeHex(blob.getBytes(1, (int) blob.length()));
+        } else if (value instanceof Clob) {
+          Clob clob = (Clob) value;
+          writeString(clob.getSubString(1, (int) clob.length()));
+        } else {
+          writeString(value.toString());
+        }
+      } catch (SQLException e) {
+        writeAscii("null");
+      }
+    }
+
+    void writeLong(long value) {
+      if (value == Long.MIN_VALUE) {
+        writeAscii("-9223372036854775808");
+        return;
+      }
+      if (value < 0) {
+        writeByte((byte) '-');
+        value = -value;
+      }
+
+      int count = 0;
+      do {
+        digits[count++] = (byte) ('0' + value % 10);
+        value /= 10;
+      } while (value > 0);
+
+      ensure(count);
+      while (count > 0) {
+        buffer[position++] = digits[--count];
+      }
+    }
+
+    // NaN and Infinity are no JSON numbers, floats with their shortest float representation
+    void writeDouble(double value, boolean isFloat) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        writeAscii("null");
+      } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+        writeLong((long) value);
+        writeAscii(".0");
+      } else if (isFloat) {
+        writeAscii(Float.toString((float) value));
+      } else {
+        writeAscii(Double.toString(value));
+      }
+    }
+
+    // REAL and Oracle BINARY_FLOAT (oracle.jdbc.OracleTypes)
+    private static boolean isFloat(int jdbcType) {
+      return jdbcType == Types.REAL || jdbcType == 100;
+    }
+
+    // quoted and escaped string, encoded as UTF-8
+    void writeString(String value) {
+      ensure(value.length() * 6 + 2);
+      buffer[position++] = '"';
+
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          buffer[position++] = '\\';
+          buffer[position++] = (byte) c;
+        } else if (c < 0x20) {
+          switch (c) {
+            case '\n':
+              buffer[position++] = '\\';
+              buffer[position++] = 'n';
+              break;
+            case '\r':
+              buffer[position++] = '\\';
+              buffer[position++] = 'r';
+              break;
+            case '\t':
+              buffer[position++] = '\\';
+              buffer[position++] = 't';
+              break;
+            default:
+              buffer[position++] = '\\';
+              buffer[position++] = 'u';
+              buffer[position++] = '0';
+              buffer[position++] = '0';
+              buffer[position++] = HEX[c >> 4];
+              buffer[position++] = HEX[c & 0xf];
+          }
+        } else if (c < 0x80) {
+          buffer[position++] = (byte) c;
+        } else if (c < 0x800) {
+          buffer[position++] = (byte) (0xc0 | c >> 6);
+          buffer[position++] = (byte) (0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+          buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+          buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+          buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+        } else {
+          buffer[position++] = (byte) (0xe0 | c >> 12);
+          buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+          buffer[position++] = (byte) (0x80 | c & 0x3f);
+        }
+      }
+
+      buffer[position++] = '"';
+    }
+
+    private void writeHex(byte[] value) {
+      ensure(value.length * 2 + 2);
+      buffer[position++] = '"';
+      for (byte b : value) {
+        buffer[position++] = HEX[(b >> 4) & 0xf];
+        buffer[position++] = HEX[b & 0xf];
+      }
+      buffer[position++] = '"';
+    }
+
+    // ASCII only (keys, numbers, literals)
+    void writeAscii(String value) {
+      ensure(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        buffer[position++] = (byte) value.charAt(i);
+      }
+    }
+
+    private void writeBytes(byte[] value) {
+      ensure(value.length);
+      System.arraycopy(value, 0, buffer, position, value.length);
+      position += value.length;
+    }
+
+    private void writeByte(byte value) {
+      ensure(1);
+      buffer[position++] = value;
+    }
+
+    private void ensure(int bytes) {
+      if (position + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+
+import oracle.jdbc.rowset.OracleCachedRowSet;
+
+/**
+ * Adapter for outputs without streaming (OutputStreaming)
+ * 
+ * Collects the streamed rows of a result into a CachedRowSet and hands over the complete result to
+ * Output.saveResult - the memory is the same as without streaming. Incomplete results are dropped,
+ * like results of a failed fetch before. The collected rows stay reserved in the ResultMemory until
+ * the result is written.
+ * 
+ * toResultSet() is a read-only ResultSet view of a RowBatch without copying the rows, e.g. for
+ * formatting a batch with the CSVWriter. forEach() is the other direction for streaming outputs: it
+ * hands over the rows of a complete CachedRowSet in row batches.
+ * 
+ * Not thread-safe, one instance per database thread
+ * 
+ */
+public class OutputRowSetAdapter implements OutputStreaming {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  private Output output = null;
+
+  // result which is currently streamed
+  private OracleCachedRowSet result = null;
+
+  // result memory of the database thread (null = not accounted)
+  private ResultMemory.Account memory = null;
+
+  // receives the row batches of forEach
+  public interface BatchHandler {
+    void saveRows(RowBatch rows) throws SQLException, IOException;
+  }
+
+  public OutputRowSetAdapter(Output output) {
+    this.output = output;
+  }
+
+  public OutputRowSetAdapter(Output output, ResultMemory.Account memory) {
+    this.output = output;
+    this.memory = memory;
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+    try {
+      result = new OracleCachedRowSet();
+      result.setMetaData(metaData);
+    } catch (SQLException e) {
+      log.warn(dbID, "Exception (OutputRowSetAdapter->startResult): " + e.getMessage());
+      result = null;
+    }
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+    if (result == null) {
+      return;
+    }
+
+    try {
+      long bytes = addRows(result, rows);
+      if (memory != null) {
+        memory.add(queryID, bytes);
+      }
+    } catch (SQLException e) {
+      log.warn(dbID, "Exception (OutputRowSetAdapter->saveRows): " + e.getMessage());
+      result = null;
+    }
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+    try {
+      if (result != null && complete) {
+        output.saveResult(result, dbID, queryID);
+      }
+    } finally {
+      result = null;
+      if (memory != null) {
+        memory.release(queryID);
+      }
+    }
+  }
+
+  // CachedRowSet with the columns of metaData and the rows
+  public static OracleCachedRowSet toRowSet(RowSetMetaData metaData, RowBatch rows)
+      throws SQLException {
+    OracleCachedRowSet crs = new OracleCachedRowSet();
+    crs.setMetaData(metaData);
+    addRows(crs, rows);
+    return crs;
+  }
+
+  // converts the rows of a CachedRowSet (first column: DATABASE_NAME_JCDBE) into batches of capacity
+  // rows and hands over every batch to the handler, the batch is reused for the next rows
+  public static void forEach(CachedRowSet rs, int capacity, BatchHandler handler)
+      throws SQLException, IOException {
+    RowBatch batch =
+        new RowBatch(OutputColumnar.getResultMetaData(rs.getMetaData()), null, capacity);
+
+    while (rs.next()) {
+      if (batch.size() == 0) {
+        batch.setFirstColumnValue(rs.getObject(1));
+      }
+      batch.add(rs, 1);
+
+      if (batch.isFull()) {
+        handler.saveRows(batch);
+        batch.clear();
+      }
+    }
+
+    if (batch.size() > 0) {
+      handler.saveRows(batch);
+    }
+  }
+
+  // metadata of a result as RowSetMetaData (for OutputStreaming.startResult)
+  public static RowSetMetaData getMetaData(ResultSetMetaData rsmd) throws SQLException {
+    if (rsmd instanceof RowSetMetaData) {
+      return (RowSetMetaData) rsmd;
+    }
+
+    RowSetMetaData metaData = new RowSetMetaDataImpl();
+    metaData.setColumnCount(rsmd.getColumnCount());
+    for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+      metaData.setColumnName(i, rsmd.getColumnName(i));
+      metaData.setColumnType(i, rsmd.getColumnType(i));
+      metaData.setColumnTypeName(i, rsmd.getColumnTypeName(i));
+      metaData.setPrecision(i, Math.max(0, rsmd.getPrecision(i)));
+      metaData.setScale(i, Math.max(0, rsmd.getScale(i)));
+    }
+    return metaData;
+  }
+
+  // forward-only ResultSet over the rows of a batch (the batch must not change while it is read)
+  public static ResultSet toResultSet(RowSetMetaData metaData, RowBatch rows) {
+    return (ResultSet) Proxy.newProxyInstance(OutputRowSetAdapter.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class}, new BatchView(metaData, rows));
+  }
+
+  // getters of the ResultSet view with the conversions of a CachedRowSet
+  private static class BatchView implements InvocationHandler {
+    private RowSetMetaData metaData = null;
+    private RowBatch rows = null;
+    private int row = -1;
+    private boolean wasNull = false;
+
+    BatchView(RowSetMetaData metaData, RowBatch rows) {
+      this.metaData = metaData;
+      this.rows = rows;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+
+      if (name.equals("next")) {
+        return ++row < rows.size();
+      } else if (name.equals("getMetaData")) {
+        return metaData;
+      } else if (name.equals("wasNull")) {
+        return wasNull;
+      } else if (name.equals("getRow")) {
+        return row < rows.size() ? row + 1 : 0;
+      } else if (name.equals("findColumn")) {
+        return findColumn((String) args[0]);
+      } else if (name.equals("close")) {
+        return null;
+      } else if (name.equals("isClosed")) {
+        return false;
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("toString")) {
+        return "RowBatch view (" + rows.size() + " rows)";
+      } else if (!name.startsWith("get") || args == null || args.length != 1) {
+        throw new SQLFeatureNotSupportedException("ResultSet view of a RowBatch: " + name);
+      }
+
+      int column = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0];
+      Object value = rows.getObject(row, column);
+      wasNull = value == null;
+
+      return convert(name, method.getReturnType(), value);
+    }
+
+    private int findColumn(String columnName) throws SQLException {
+      for (int i = 1; i <= metaData.getColumnCount(); i++) {
+        if (metaData.getColumnName(i).equalsIgnoreCase(columnName)) {
+          return i;
+        }
+      }
+      throw new SQLException("Invalid column name: " + columnName);
+    }
+
+    // value of a getter (getString, getBigDecimal, getLong, getTimestamp, ...)
+    private static Object convert(String getter, Class<?> type, Object value) throws SQLException {
+      if (getter.equals("getObject") || getter.equals("getClob") || getter.equals("getBlob")
+          || getter.equals("getNClob") || getter.equals("getBytes")) {
+        return value;
+      } else if (getter.equals("getString") || getter.equals("getNString")) {
+        return value == null ? null : value.toString();
+      }
+
+      if (value == null) {
+        if (type == boolean.class) {
+          return false;
+        } else if (type.isPrimitive()) {
+          return convertNumber(type, BigDecimal.ZERO);
+        }
+        return null;
+      }
+
+      if (type == BigDecimal.class || type.isPrimitive() && type != boolean.class) {
+        BigDecimal number = value instanceof BigDecimal ? (BigDecimal) value
+            : new BigDecimal(value.toString().trim());
+        return type == BigDecimal.class ? number : convertNumber(type, number);
+      } else if (type == boolean.class) {
+        String string = value.toString().trim();
+        return !(string.equals("0") || string.equalsIgnoreCase("false"));
+      } else if (value instanceof java.util.Date) {
+        long time = ((java.util.Date) value).getTime();
+        if (type == Timestamp.class) {
+          return value instanceof Timestamp ? value : new Timestamp(time);
+        } else if (type == java.sql.Date.class) {
+          return new java.sql.Date(time);
+        } else if (type == Time.class) {
+          return new Time(time);
+        }
+      }
+
+      throw new SQLException("Conversion of " + value.getClass().getName() + " by " + getter
+          + " not supported");
+    }
+
+    private static Object convertNumber(Class<?> type, BigDecimal number) {
+      if (type == long.class) {
+        return number.longValue();
+      } else if (type == int.class) {
+        return number.intValue();
+      } else if (type == short.class) {
+        return number.shortValue();
+      } else if (type == byte.class) {
+        return number.byteValue();
+      } else if (type == double.class) {
+        return number.doubleValue();
+      }
+      return number.floatValue();
+    }
+  }
+
+  // returns the estimated heap size of the added rows
+  private static long addRows(OracleCachedRowSet crs, RowBatch rows) throws SQLException {
+    int columnCount = rows.getColumnCount();
+    long bytes = 0;
+    for (int row = 0; row < rows.size(); row++) {
+      // insert new row
+      crs.moveToInsertRow();
+
+      for (int i = 1; i <= columnCount; i++) {
+        Object value = rows.getObject(row, i);
+        crs.updateObject(i, value);
+        bytes += 8 + (i > 1 ? ResultMemory.estimate(value) : 0);
+      }
+
+      // make the updated "persistent" to the new cached object
+      crs.insertRow();
+      bytes += ResultMemory.ROW_BYTES;
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * OutputStore writes the results into an embedded store for lookups after the run (StoreReader)
+ * 
+ * The store consists of an append-only data file (out.jsto) and an index (out.jsti). The data file
+ * contains row groups in the format of OutputColumnar, every row group holds rows of one database
+ * and query. The index is written during close: the column schemas, one entry per row group
+ * (query ID, database ID, external ID, schema, offset, rows) sorted by query and database, and the
+ * status messages. The StoreReader builds indexes on the database, external and query ID from the
+ * entries, so a lookup or an aggregate only reads the matching row groups.
+ * 
+ * Rows are only indexed per row group (never per row): the database threads encode their row
+ * groups without lock, only the append and the index entry are synchronized.
+ * 
+ * Streamed results are buffered until their fetch is complete (see ResultBuffer), a failed or
+ * aborted fetch writes no row groups.
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputStore implements Output, OutputStreaming {
+
+  // instance object (singleton)
+  private static final OutputStore INSTANCE = new OutputStore();
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // section name of the config (ini) file
+  private String sectionName = "output:store";
+
+  // magic numbers and version of the data file and the index
+  public static final int MAGIC_DATA = 0x4a53544f;
+  public static final int MAGIC_INDEX = 0x4a535449;
+  public static final int VERSION = 1;
+
+  // extensions of the data file and the index
+  public static final String SUFFIX_DATA = ".jsto";
+  public static final String SUFFIX_INDEX = ".jsti";
+
+  // file buffer
+  private static final int BUFFER = 65536;
+
+  // rows of a row group of a result which is not streamed
+  private int rowGroupSize = 65536;
+
+  // compression and compression level of the row groups (OutputColumnar.NONE/DEFLATE)
+  private int compression = OutputColumnar.NONE;
+  private int compressionLevel = 1;
+
+  // base name of the store files
+  private String outputFile = null;
+
+  // external database IDs
+  private DatabaseList dbList = null;
+
+  // data file and its size
+  private DataOutputStream data = null;
+  private long position = 0;
+
+  // schemas (query ID and columns -> schema number) and their columns
+  private Map<String, Integer> schemas = new ConcurrentHashMap<String, Integer>();
+  private List<Object[]> schemaColumns = new ArrayList<Object[]>();
+
+  // index entries: query ID, database ID, external ID, schema, offset, rows
+  private List<Object[]> entries = new ArrayList<Object[]>();
+
+  // status messages: database ID, external ID, query ID (null = database), status
+  private List<Object[]> statuses = new ArrayList<Object[]>();
+
+  // columns of the currently streamed results (dbID/queryID -> metadata)
+  private Map<String, RowSetMetaData> streams = new ConcurrentHashMap<String, RowSetMetaData>();
+
+  // streamed results until their fetch is complete
+  private OutputStreaming buffer = null;
+
+  // writes a complete result from the buffer into the store
+  private OutputStreaming results = new OutputStreaming() {
+    public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      writeStart(dbID, queryID, metaData);
+    }
+
+    public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      writeRows(dbID, queryID, rows);
+    }
+
+    public void endResult(Integer dbID, Integer queryID, boolean complete) {
+      streams.remove(dbID + "/" + queryID);
+    }
+  };
+
+  // private constructor -> singleton
+  private OutputStore() {/************** nothing in constructor **************/}
+
+  // get instance of this class
+  public static OutputStore getInstance() {
+    return INSTANCE;
+  }
+
+  // external IDs of the databases (index)
+  public void setDatabaseList(DatabaseList dbList) {
+    this.dbList = dbList;
+  }
+
+  // specify CLI arguments of required information for this module
+  public void setCLI(Options o) {
+    o.addOption("of", "outputFile", true, "path to output file (store: .jsto and .jsti)");
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    log.debug("[OUTPUT] Validating parameters");
+
+    // temporary string for storing/checking parameter values
+    String checkParam = null;
+
+    //
+    //
+    // INI parameters
+
+    checkParam = ini.get(sectionName, "rowGroupSize");
+    if (checkParam != null) {
+      rowGroupSize = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Row group size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "compression");
+    if (checkParam != null && checkParam.matches("none|deflate")) {
+      compression = checkParam.equals("deflate") ? OutputColumnar.DEFLATE : OutputColumnar.NONE;
+      log.debug("[OUTPUT] Compression parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Compression parameter in config file should only be set to none/deflate");
+    }
+
+    checkParam = ini.get(sectionName, "compressionLevel");
+    if (checkParam != null) {
+      compressionLevel = Math.max(1, Math.min(9, Integer.parseInt(checkParam)));
+      log.debug("[OUTPUT] Compression level parameter successful parsed from config file");
+    }
+
+    //
+    //
+    // CLI arguments
+
+    if (cli.hasOption("outputFile")) {
+      outputFile = cli.getOptionValue("outputFile");
+      if (outputFile.endsWith(SUFFIX_DATA)) {
+        outputFile = outputFile.substring(0, outputFile.length() - SUFFIX_DATA.length());
+      }
+      log.debug("[OUTPUT] Output file parameter successful parsed from CLI");
+    } else {
+      log.fatal("[OUTPUT] Output file parameter not specified");
+      System.exit(1);
+    }
+  }
+
+  public boolean init() throws Exception {
+    buffer = ResultBuffer.buffered(results);
+    schemas.clear();
+    schemaColumns.clear();
+    entries.clear();
+    statuses.clear();
+
+    data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile
+        + SUFFIX_DATA), BUFFER));
+    data.writeInt(MAGIC_DATA);
+    data.writeInt(VERSION);
+    position = data.size();
+
+    return true;
+  }
+
+  // closes the data file and writes the index
+  public void close() {
+    try {
+      synchronized (this) {
+        data.close();
+        writeIndex();
+      }
+      log.info("[OUTPUT] Store: " + entries.size() + " row groups of " + schemas.size()
+          + " schemas in " + outputFile + SUFFIX_DATA);
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write store: " + e.getMessage());
+    }
+  }
+
+  public boolean prepareDatabase(Integer dbID) {
+
+    return true;
+  }
+
+  public boolean prepareQuery(Integer dbID, Integer queryID) {
+
+    return true;
+  }
+
+  public void setDatabaseStatus(Integer dbID, String status) {
+    saveStatus(dbID, null, status);
+  }
+
+  public void setQueryStatus(Integer dbID, Integer queryID, String status) {
+    saveStatus(dbID, queryID, status);
+  }
+
+  // the rows are converted into row groups of rowGroupSize rows
+  public void saveResult(CachedRowSet rs, final Integer dbID, final Integer queryID) {
+    try {
+      final ResultSetMetaData metaData = rs.getMetaData();
+      OutputRowSetAdapter.forEach(rs, rowGroupSize, new OutputRowSetAdapter.BatchHandler() {
+        public void saveRows(RowBatch rows) throws SQLException, IOException {
+          OutputStore.this.saveRows(metaData, dbID, queryID, rows);
+        }
+      });
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save result of query " + queryID + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write store: " + e.getMessage());
+    }
+  }
+
+  private void writeStart(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    streams.put(dbID + "/" + queryID, metaData);
+  }
+
+  private void writeRows(Integer dbID, Integer queryID, RowBatch rows) {
+    try {
+      saveRows(streams.get(dbID + "/" + queryID), dbID, queryID, rows);
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not save rows of query " + queryID + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.fatal("[OUTPUT] Could not write store: " + e.getMessage());
+    }
+  }
+
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+
+    buffer.startResult(dbID, queryID, metaData);
+  }
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+
+    buffer.saveRows(dbID, queryID, rows);
+  }
+
+  public void endResult(Integer dbID, Integer queryID, boolean complete) {
+
+    buffer.endResult(dbID, queryID, complete);
+  }
+
+
+  // encodes the rows as row group (without lock), appends it and adds its index entry
+  private void saveRows(ResultSetMetaData metaData, Integer dbID, Integer queryID, RowBatch rows)
+      throws SQLException, IOException {
+    Integer schema = getSchema(metaData, queryID, rows);
+    byte[] group = OutputColumnar.encodeRowGroup(rows, compression, compressionLevel);
+
+    synchronized (this) {
+      data.write(group);
+      entries.add(new Object[] {queryID, dbID, getExternalId(dbID), schema, position,
+          rows.size()});
+      position += group.length;
+    }
+  }
+
+  private void saveStatus(Integer dbID, Integer queryID, String status) {
+    synchronized (this) {
+      statuses.add(new Object[] {dbID, getExternalId(dbID), queryID,
+          status.replaceAll("\\s+$", "")});
+    }
+  }
+
+  private Integer getExternalId(Integer dbID) {
+    return dbList == null ? null : dbList.getExternalId(dbID);
+  }
+
+  // number of the schema (query ID, column names and types)
+  private Integer getSchema(ResultSetMetaData metaData, Integer queryID, RowBatch rows)
+      throws SQLException {
+    StringBuilder key = new StringBuilder(queryID.toString());
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      key.append(',').append(metaData.getColumnName(i)).append(':')
+          .append(rows.getJdbcType(i)).append(':').append(rows.getType(i));
+    }
+
+    Integer schema = schemas.get(key.toString());
+    if (schema != null) {
+      return schema;
+    }
+
+    synchronized (this) {
+      schema = schemas.get(key.toString());
+      if (schema == null) {
+        int columns = metaData.getColumnCount();
+        String[] names = new String[columns];
+        int[] jdbcTypes = new int[columns];
+        int[] types = new int[columns];
+        for (int i = 1; i <= columns; i++) {
+          names[i - 1] = metaData.getColumnName(i);
+          jdbcTypes[i - 1] = rows.getJdbcType(i);
+          types[i - 1] = rows.getType(i);
+        }
+
+        schema = schemaColumns.size();
+        schemaColumns.add(new Object[] {names, jdbcTypes, types});
+        schemas.put(key.toString(), schema);
+      }
+    }
+
+    return schema;
+  }
+
+  // index sorted by query and database, written into a temporary file and renamed
+  private void writeIndex() throws IOException {
+    Collections.sort(entries, new Comparator<Object[]>() {
+      @Override
+      public int compare(final Object[] entry1, final Object[] entry2) {
+        for (int i = 0; i < 2; i++) {
+          int compare = ((Integer) entry1[i]).compareTo((Integer) entry2[i]);
+          if (compare != 0) {
+            return compare;
+          }
+        }
+        return ((Long) entry1[4]).compareTo((Long) entry2[4]);
+      }
+    });
+
+    String temp = outputFile + SUFFIX_INDEX + ".tmp";
+    DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(temp), BUFFER));
+    try {
+      index.writeInt(MAGIC_INDEX);
+      index.writeInt(VERSION);
+      index.writeByte(compression);
+
+      index.writeInt(schemaColumns.size());
+      for (Object[] schema : schemaColumns) {
+        String[] names = (String[]) schema[0];
+        int[] jdbcTypes = (int[]) schema[1];
+        int[] types = (int[]) schema[2];
+
+        index.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+          index.writeUTF(names[i]);
+          index.writeInt(jdbcTypes[i]);
+          index.writeByte(types[i]);
+        }
+      }
+
+      index.writeInt(entries.size());
+      for (Object[] entry : entries) {
+        index.writeInt((Integer) entry[0]);
+        index.writeInt((Integer) entry[1]);
+        writeNullable(index, (Integer) entry[2]);
+        index.writeInt((Integer) entry[3]);
+        index.writeLong((Long) entry[4]);
+        index.writeInt((Integer) entry[5]);
+      }
+
+      index.writeInt(statuses.size());
+      for (Object[] status : statuses) {
+        index.writeInt((Integer) status[0]);
+        writeNullable(index, (Integer) status[1]);
+        writeNullable(index, (Integer) status[2]);
+        index.writeUTF((String) status[3]);
+      }
+    } finally {
+      index.close();
+    }
+
+    Files.move(Paths.get(temp), Paths.get(outputFile + SUFFIX_INDEX),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeNullable(DataOutputStream out, Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeInt(value);
+    }
+  }
+}
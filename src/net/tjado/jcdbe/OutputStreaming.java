@@ -0,0 +1,51 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import javax.sql.RowSetMetaData;
+
+/**
+ * Streaming output interface
+ * 
+ * An Output which implements OutputStreaming in addition gets the rows of a result in batches
+ * (RowBatch, columnar) directly from the open ResultSet instead of a CachedRowSet with the whole
+ * result. So the memory per database thread depends only on the batch size and not on the size of
+ * the result.
+ * 
+ * The calls for one result come from the same thread in this order:
+ *  startResult (before the first rows), saveRows (1...n times), endResult
+ * Results of different databases are written in parallel. The batch is reused after saveRows.
+ * 
+ * Outputs without streaming are used over the OutputRowSetAdapter.
+ * 
+ */
+public interface OutputStreaming {
+
+  // metaData: columns of the result, the first column is DATABASE_NAME_JCDBE
+  public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData);
+
+  public void saveRows(Integer dbID, Integer queryID, RowBatch rows);
+
+  // complete: false if the fetch failed, the rows of the result are incomplete
+  public void endResult(Integer dbID, Integer queryID, boolean complete);
+
+}
@@ -0,0 +1,520 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.ini4j.Ini;
+
+/**
+ * OutputTee writes every result into several outputs (sinks) in the same run
+ * 
+ * The sinks are configured in the main section of the config file (output = CSV, Database). Every
+ * sink has its own bounded queue and its own writer thread, so a slow sink doesn't stall the other
+ * sinks or the database threads. Every call of a sink (also prepareDatabase/prepareQuery, whose
+ * result the caller waits for) runs on its writer thread. The database threads copy every row
+ * batch once (the batch is reused after saveRows), all sinks read the same copy. A complete
+ * result (CachedRowSet) is converted once into row batches and queued like a streamed result.
+ * 
+ * A queue is bounded by events (queueSize) and by the bytes of its row batches (queueBytes), so a
+ * slow sink holds at most queueBytes of rows. A single batch larger than queueBytes is still queued
+ * if the queue is empty.
+ * 
+ * Backpressure of a sink if its queue is full:
+ *  block: the database thread waits for the sink (no rows get lost)
+ *  drop:  the rows of the result are dropped for this sink and the sink gets the end of the result
+ *         as incomplete (endResult with complete = false), the other sinks are not affected
+ * Status messages and the start/end of the results are always queued (block).
+ * 
+ * Thread-safe
+ * 
+ */
+public class OutputTee implements Output, OutputStreaming {
+
+  // instance object (singleton)
+  private static final OutputTee INSTANCE = new OutputTee();
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // section name of the config (ini) file
+  private String sectionName = "output:tee";
+
+  // rows per batch of a complete result (saveResult)
+  private static final int BATCH = 1000;
+
+  // default queue size (events and MB of row batches) and backpressure of the sinks
+  private int queueSize = 64;
+  private long queueBytes = 64;
+  private String backpressure = "block";
+
+  private List<Sink> sinks = new ArrayList<Sink>();
+
+  // private constructor -> singleton
+  private OutputTee() {/************** nothing in constructor **************/}
+
+  // get instance of this class
+  public static OutputTee getInstance() {
+    return INSTANCE;
+  }
+
+  // name: name of the output in the config file (e.g. CSV for OutputCSV)
+  public void addSink(String name, Output output) {
+    sinks.add(new Sink(name, output));
+  }
+
+  public List<Output> getSinks() {
+    List<Output> outputs = new ArrayList<Output>();
+    for (Sink sink : sinks) {
+      outputs.add(sink.output);
+    }
+    return outputs;
+  }
+
+  // specify CLI arguments of all sinks
+  public void setCLI(Options o) throws Exception {
+    for (Sink sink : sinks) {
+      sink.output.setCLI(o);
+    }
+  }
+
+  public void validateParameters(CommandLine cli, Ini ini) {
+    log.debug("[OUTPUT] Validating parameters");
+
+    // temporary string for storing/checking parameter values
+    String checkParam = null;
+
+    //
+    //
+    // INI parameters
+
+    checkParam = ini.get(sectionName, "queueSize");
+    if (checkParam != null) {
+      queueSize = Math.max(1, Integer.parseInt(checkParam));
+      log.debug("[OUTPUT] Queue size parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "queueBytes");
+    if (checkParam != null) {
+      queueBytes = Math.max(1, Long.parseLong(checkParam));
+      log.debug("[OUTPUT] Queue bytes parameter successful parsed from config file");
+    }
+
+    checkParam = ini.get(sectionName, "backpressure");
+    if (checkParam != null && checkParam.matches("block|drop")) {
+      backpressure = checkParam;
+      log.debug("[OUTPUT] Backpressure parameter successful parsed from config file");
+    } else if (checkParam != null) {
+      log.warn("[OUTPUT] Backpressure parameter in config file should only be set to block/drop");
+    }
+
+    // parameters of a sink (queueSize.CSV, backpressure.CSV) override the defaults
+    for (Sink sink : sinks) {
+      sink.queueSize = queueSize;
+      sink.queueBytes = queueBytes * 1048576;
+      sink.drop = backpressure.equals("drop");
+
+      checkParam = ini.get(sectionName, "queueSize." + sink.name);
+      if (checkParam != null) {
+        sink.queueSize = Math.max(1, Integer.parseInt(checkParam));
+        log.debug("[OUTPUT] Queue size parameter of " + sink.name
+            + " successful parsed from config file");
+      }
+
+      checkParam = ini.get(sectionName, "queueBytes." + sink.name);
+      if (checkParam != null) {
+        sink.queueBytes = Math.max(1, Long.parseLong(checkParam)) * 1048576;
+        log.debug("[OUTPUT] Queue bytes parameter of " + sink.name
+            + " successful parsed from config file");
+      }
+
+      checkParam = ini.get(sectionName, "backpressure." + sink.name);
+      if (checkParam != null && checkParam.matches("block|drop")) {
+        sink.drop = checkParam.equals("drop");
+        log.debug("[OUTPUT] Backpressure parameter of " + sink.name
+            + " successful parsed from config file");
+      } else if (checkParam != null) {
+        log.warn("[OUTPUT] Backpressure parameter of " + sink.name
+            + " in config file should only be set to block/drop");
+      }
+
+      sink.output.validateParameters(cli, ini);
+    }
+  }
+
+  public boolean init() throws Exception {
+    for (Sink sink : sinks) {
+      if (!sink.output.init()) {
+        log.fatal("[OUTPUT] Initialization of " + sink.name + " failed");
+        return false;
+      }
+      sink.start();
+    }
+
+    return true;
+  }
+
+  // waits until every sink has written its queue, then closes the sinks
+  public void close() {
+    for (Sink sink : sinks) {
+      sink.put(Sink.END);
+    }
+
+    for (Sink sink : sinks) {
+      try {
+        sink.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      sink.output.close();
+      log.info("[OUTPUT] Tee " + sink.name + ": " + sink.batches.get() + " batches, "
+          + sink.dropped.get() + " dropped");
+    }
+  }
+
+  public boolean prepareDatabase(final Integer dbID) {
+    List<FutureTask<Boolean>> calls = new ArrayList<FutureTask<Boolean>>();
+    for (final Sink sink : sinks) {
+      calls.add(sink.call(new Callable<Boolean>() {
+        public Boolean call() {
+          return sink.output.prepareDatabase(dbID);
+        }
+      }));
+    }
+    return await(calls);
+  }
+
+  public boolean prepareQuery(final Integer dbID, final Integer queryID) {
+    List<FutureTask<Boolean>> calls = new ArrayList<FutureTask<Boolean>>();
+    for (final Sink sink : sinks) {
+      calls.add(sink.call(new Callable<Boolean>() {
+        public Boolean call() {
+          return sink.output.prepareQuery(dbID, queryID);
+        }
+      }));
+    }
+    return await(calls);
+  }
+
+  // waits for the results of all sinks, false if one of them failed
+  private static boolean await(List<FutureTask<Boolean>> calls) {
+    boolean prepared = true;
+    for (FutureTask<Boolean> call : calls) {
+      try {
+        prepared &= call.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException e) {
+        log.fatal("[OUTPUT] Tee: " + e.getCause());
+        prepared = false;
+      } catch (CancellationException e) {
+        prepared = false;
+      }
+    }
+    return prepared;
+  }
+
+  public void setDatabaseStatus(final Integer dbID, final String status) {
+    for (final Sink sink : sinks) {
+      sink.put(new Runnable() {
+        public void run() {
+          sink.output.setDatabaseStatus(dbID, status);
+        }
+      });
+    }
+  }
+
+  public void setQueryStatus(final Integer dbID, final Integer queryID, final String status) {
+    for (final Sink sink : sinks) {
+      sink.put(new Runnable() {
+        public void run() {
+          sink.output.setQueryStatus(dbID, queryID, status);
+        }
+      });
+    }
+  }
+
+  // the result is queued in row batches like a streamed result (one copy for all sinks, the
+  // queues are bounded by bytes), outputs without streaming get a CachedRowSet again
+  public void saveResult(CachedRowSet rs, final Integer dbID, final Integer queryID) {
+    boolean started = false;
+    try {
+      RowSetMetaData metaData = OutputRowSetAdapter.getMetaData(rs.getMetaData());
+      startResult(dbID, queryID, metaData);
+      started = true;
+
+      OutputRowSetAdapter.forEach(rs, BATCH, new OutputRowSetAdapter.BatchHandler() {
+        public void saveRows(RowBatch rows) {
+          OutputTee.this.saveRows(dbID, queryID, rows);
+        }
+      });
+      endResult(dbID, queryID, true);
+    } catch (SQLException e) {
+      jcdbe.advDebug(e);
+      log.warn(dbID, "[OUTPUT] Could not queue result of query " + queryID + ": " + e.getMessage());
+      if (started) {
+        endResult(dbID, queryID, false);
+      }
+    } catch (IOException e) {
+      log.warn(dbID, "[OUTPUT] Could not queue result of query " + queryID + ": " + e.getMessage());
+      endResult(dbID, queryID, false);
+    }
+  }
+
+  public void startResult(final Integer dbID, final Integer queryID,
+      final RowSetMetaData metaData) {
+    for (final Sink sink : sinks) {
+      sink.put(new Runnable() {
+        public void run() {
+          sink.startResult(dbID, queryID, metaData);
+        }
+      });
+    }
+  }
+
+  public void saveRows(final Integer dbID, final Integer queryID, RowBatch rows) {
+    final RowBatch copy = rows.copy();
+    long bytes = copy.getBytes();
+    String key = dbID + "/" + queryID;
+
+    for (final Sink sink : sinks) {
+      if (sink.incomplete.contains(key)) {
+        sink.dropped.incrementAndGet();
+        continue;
+      }
+
+      Runnable event = new Runnable() {
+        public void run() {
+          sink.saveRows(dbID, queryID, copy);
+        }
+      };
+
+      if (!sink.offer(event, bytes)) {
+        sink.incomplete.add(key);
+        sink.dropped.incrementAndGet();
+        log.warn(dbID, "[OUTPUT] Rows of query " + queryID + " dropped for " + sink.name
+            + " (queue full)");
+      }
+    }
+  }
+
+  public void endResult(final Integer dbID, final Integer queryID, final boolean complete) {
+    String key = dbID + "/" + queryID;
+
+    for (final Sink sink : sinks) {
+      final boolean sinkComplete = complete && !sink.incomplete.remove(key);
+      sink.put(new Runnable() {
+        public void run() {
+          sink.endResult(dbID, queryID, sinkComplete);
+        }
+      });
+    }
+  }
+
+
+  /**
+   * Output of the tee with its own queue and writer thread
+   * 
+   * Outputs without streaming get the results over an OutputRowSetAdapter per result (only used
+   * by the writer thread).
+   * 
+   */
+  private static class Sink implements Runnable {
+
+    // last event of the queue (compared by identity)
+    private static final Runnable END = new Runnable() {
+      public void run() {/* end of the queue */}
+    };
+
+    private String name = null;
+    private Output output = null;
+
+    private int queueSize = 64;
+    private long queueBytes = 64 * 1048576L;
+    private boolean drop = false;
+
+    // bytes of the queued row batches (lock: this sink)
+    private long queued = 0;
+
+    private ArrayBlockingQueue<Runnable> queue = null;
+    private Thread thread = null;
+
+    // results with dropped rows (dbID/queryID)
+    private Set<String> incomplete =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // written and dropped row batches
+    private AtomicLong batches = new AtomicLong(0);
+    private AtomicLong dropped = new AtomicLong(0);
+
+    // adapters of the currently streamed results (dbID/queryID) of an output without streaming
+    private Map<String, OutputRowSetAdapter> adapters = new HashMap<String, OutputRowSetAdapter>();
+
+    private Sink(String name, Output output) {
+      this.name = name;
+      this.output = output;
+    }
+
+    private void start() {
+      queue = new ArrayBlockingQueue<Runnable>(queueSize);
+      thread = new Thread(this, "tee-" + name.toLowerCase());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // queues an event, waits if the queue is full (false if interrupted)
+    private boolean put(Runnable event) {
+      try {
+        queue.put(event);
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    // queues a call of the output, the caller waits for its result with the future
+    private FutureTask<Boolean> call(Callable<Boolean> call) {
+      FutureTask<Boolean> task = new FutureTask<Boolean>(call);
+      if (!put(task)) {
+        task.cancel(false);
+      }
+      return task;
+    }
+
+    // queues rows of bytes, false if they are dropped (backpressure drop) or interrupted
+    private boolean offer(final Runnable event, final long bytes) {
+      try {
+        if (!reserve(bytes)) {
+          return false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+
+      Runnable rows = new Runnable() {
+        public void run() {
+          try {
+            event.run();
+          } finally {
+            release(bytes);
+          }
+        }
+      };
+
+      if (drop ? queue.offer(rows) : put(rows)) {
+        return true;
+      }
+      release(bytes);
+      return false;
+    }
+
+    // reserves the bytes of queued rows, waits while queueBytes are queued (drop: false)
+    // a batch which is larger than queueBytes is accepted if nothing is queued
+    private synchronized boolean reserve(long bytes) throws InterruptedException {
+      while (queued > 0 && queued + bytes > queueBytes) {
+        if (drop) {
+          return false;
+        }
+        wait();
+      }
+      queued += bytes;
+      return true;
+    }
+
+    // the rows are written
+    private synchronized void release(long bytes) {
+      queued -= bytes;
+      notifyAll();
+    }
+
+    // writer thread: writes the events in queue order until END
+    public void run() {
+      while (true) {
+        Runnable event = null;
+        try {
+          event = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        if (event == END) {
+          return;
+        }
+
+        // an exception of the output must not stop the sink
+        try {
+          event.run();
+        } catch (RuntimeException e) {
+          log.fatal("[OUTPUT] Tee " + name + ": " + e.getMessage());
+        }
+      }
+    }
+
+    private OutputStreaming getStream(Integer dbID, Integer queryID) {
+      if (output instanceof OutputStreaming) {
+        return (OutputStreaming) output;
+      }
+      return adapters.get(dbID + "/" + queryID);
+    }
+
+    private void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+      if (!(output instanceof OutputStreaming)) {
+        adapters.put(dbID + "/" + queryID, new OutputRowSetAdapter(output));
+      }
+      getStream(dbID, queryID).startResult(dbID, queryID, metaData);
+    }
+
+    private void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+      getStream(dbID, queryID).saveRows(dbID, queryID, rows);
+      batches.incrementAndGet();
+    }
+
+    private void endResult(Integer dbID, Integer queryID, boolean complete) {
+      getStream(dbID, queryID).endResult(dbID, queryID, complete);
+      adapters.remove(dbID + "/" + queryID);
+    }
+  }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.RowSetMetaData;
+
+/**
+ * Streamed results which are not complete yet
+ * 
+ * The rows of a result are streamed in row batches while they are fetched, the fetch can still
+ * fail or be aborted afterwards. Outputs which only write complete results keep copies of the
+ * batches per result (dbID/queryID) here and write them after endResult(complete = true), the rows
+ * of a failed result are dropped. A result larger than the spill size continues in a spill file
+ * (ResultSpill), so only one batch of it stays in memory. The buffers of the outputs (buffered)
+ * always spill (spillSize, default BUFFER_BYTES) and count their rows in the ResultMemory.
+ * 
+ * Thread-safe, a result is only used by one thread at a time
+ * 
+ */
+public class ResultBuffer {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // spill size of the buffered outputs if no spillSize is set
+  public static final long BUFFER_BYTES = 4L * 1048576;
+
+  // budget of the results in flight (null = off), the rows of the buffered outputs are counted
+  private static volatile ResultMemory resultMemory = null;
+
+  // a complete result is replayed on this thread, the buffered outputs write it directly
+  private static final ThreadLocal<Boolean> replaying = new ThreadLocal<Boolean>();
+
+  // results larger than spillBytes continue in a spill file in spillDirectory (0 = never,
+  // directory null = java.io.tmpdir)
+  private long spillBytes = 0;
+  private String spillDirectory = null;
+
+  // rows are counted in the resultMemory
+  private boolean counted = false;
+
+  // buffered results (dbID/queryID -> result)
+  private Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+
+  // rows of a result in memory or in a spill file
+  public static class Result {
+    private RowSetMetaData metaData = null;
+    private List<RowBatch> batches = new ArrayList<RowBatch>();
+    private long bytes = 0;
+    private ResultSpill spill = null;
+    private boolean spillFailed = false;
+
+    // memory of the rows in the resultMemory (counted buffers)
+    private ResultMemory.Account account = null;
+
+    // spill file could not be written, the result is dropped
+    private IOException error = null;
+
+    // streams all rows into the output (startResult, saveRows, endResult) and frees them
+    public void replay(Integer dbID, Integer queryID, OutputStreaming output) throws IOException {
+      if (spill != null) {
+        try {
+          spill.replay(dbID, queryID, output);
+        } finally {
+          release();
+        }
+        return;
+      }
+
+      // the rows are complete and in memory, so they are not buffered a second time
+      boolean complete = false;
+      Boolean nested = replaying.get();
+      replaying.set(Boolean.TRUE);
+      try {
+        output.startResult(dbID, queryID, metaData);
+        try {
+          for (int i = 0; i < batches.size(); i++) {
+            output.saveRows(dbID, queryID, batches.set(i, null));
+          }
+          complete = true;
+        } finally {
+          batches.clear();
+          output.endResult(dbID, queryID, complete);
+        }
+      } finally {
+        replaying.set(nested);
+        release();
+      }
+    }
+
+    // drops the rows without writing them
+    public void delete() {
+      batches.clear();
+      bytes = 0;
+      if (spill != null) {
+        spill.delete();
+      }
+      release();
+    }
+
+    private void release() {
+      if (account != null) {
+        account.close();
+        account = null;
+      }
+    }
+  }
+
+  // spill settings of DatabaseOracle (spillSize, spillDirectory)
+  public ResultBuffer() {
+    this(DatabaseOracle.getSpillBytes(), DatabaseOracle.getSpillDirectory());
+  }
+
+  public ResultBuffer(long spillBytes, String spillDirectory) {
+    this.spillBytes = spillBytes;
+    this.spillDirectory = spillDirectory;
+  }
+
+  public void start(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+    Result result = new Result();
+    result.metaData = metaData;
+    if (counted && resultMemory != null) {
+      result.account = resultMemory.open();
+    }
+
+    Result previous = results.put(dbID + "/" + queryID, result);
+    if (previous != null) {
+      previous.delete();
+    }
+  }
+
+  // adds a copy of the rows to the result
+  // returns the change of the bytes in memory (negative if the rows were moved into a spill file)
+  public long add(Integer dbID, Integer queryID, RowBatch rows) {
+    Result result = results.get(dbID + "/" + queryID);
+    if (result == null || result.error != null) {
+      return 0;
+    }
+
+    long before = result.bytes;
+    if (result.spill == null && !result.spillFailed && spillBytes > 0
+        && result.bytes + rows.getBytes() > spillBytes) {
+      spill(dbID, result, rows);
+    }
+
+    if (result.spill != null) {
+      try {
+        result.spill.write(rows);
+      } catch (IOException e) {
+        // the rows in the spill file are incomplete now
+        log.warn(dbID, "[SPILL] Could not write spill file: " + e.getMessage());
+        result.error = e;
+        result.delete();
+      }
+      return count(queryID, result, result.bytes - before);
+    }
+
+    RowBatch copy = rows.copy();
+    result.batches.add(copy);
+    result.bytes += copy.getBytes();
+    return count(queryID, result, result.bytes - before);
+  }
+
+  private long count(Integer queryID, Result result, long delta) {
+    if (result.account != null) {
+      result.account.add(queryID, delta);
+    }
+    return delta;
+  }
+
+  // moves the buffered rows into a spill file (the result stays in memory if it fails)
+  private void spill(Integer dbID, Result result, RowBatch rows) {
+    try {
+      result.spill = new ResultSpill(spillDirectory, result.metaData, rows.createEmpty());
+      for (RowBatch batch : result.batches) {
+        result.spill.write(batch);
+      }
+    } catch (IOException e) {
+      log.warn(dbID, "[SPILL] Could not write spill file: " + e.getMessage());
+      if (result.spill != null) {
+        result.spill.delete();
+        result.spill = null;
+      }
+      result.spillFailed = true;
+      return;
+    }
+
+    result.batches.clear();
+    result.bytes = 0;
+  }
+
+  public static void setResultMemory(ResultMemory memory) {
+    resultMemory = memory;
+  }
+
+  // streams only the complete results into the output, the rows of a failed fetch are dropped
+  // at most spillSize (default BUFFER_BYTES) of a result stay in memory, counted in the
+  // ResultMemory, the rest goes into a spill file; a complete result which is replayed from
+  // memory (ResultBuffer of the pipeline) is written directly
+  public static OutputStreaming buffered(final OutputStreaming output) {
+    long spillBytes = DatabaseOracle.getSpillBytes();
+    final ResultBuffer buffer = new ResultBuffer(spillBytes > 0 ? spillBytes : BUFFER_BYTES,
+        DatabaseOracle.getSpillDirectory());
+    buffer.counted = true;
+
+    return new OutputStreaming() {
+      public void startResult(Integer dbID, Integer queryID, RowSetMetaData metaData) {
+        if (Boolean.TRUE.equals(replaying.get())) {
+          output.startResult(dbID, queryID, metaData);
+        } else {
+          buffer.start(dbID, queryID, metaData);
+        }
+      }
+
+      public void saveRows(Integer dbID, Integer queryID, RowBatch rows) {
+        if (Boolean.TRUE.equals(replaying.get())) {
+          output.saveRows(dbID, queryID, rows);
+        } else {
+          buffer.add(dbID, queryID, rows);
+        }
+      }
+
+      public void endResult(Integer dbID, Integer queryID, boolean complete) {
+        if (Boolean.TRUE.equals(replaying.get())) {
+          output.endResult(dbID, queryID, complete);
+          return;
+        }
+
+        try {
+          Result result = buffer.remove(dbID, queryID, complete);
+          if (result != null) {
+            result.replay(dbID, queryID, output);
+          }
+        } catch (IOException e) {
+          log.warn(dbID, "[OUTPUT] Could not write result of query " + queryID + ": "
+              + e.getMessage());
+        }
+      }
+    };
+  }
+
+  // bytes of a result in memory
+  public long getBytes(Integer dbID, Integer queryID) {
+    Result result = results.get(dbID + "/" + queryID);
+    return result == null ? 0 : result.bytes;
+  }
+
+  // removes a result: returns a complete result for the replay, a failed one is dropped (null)
+  // throws the exception of the spill file, if the rows of a complete result are lost
+  public Result remove(Integer dbID, Integer queryID, boolean complete) throws IOException {
+    Result result = results.remove(dbID + "/" + queryID);
+    if (result == null) {
+      return null;
+    }
+
+    if (!complete || result.error != null) {
+      result.delete();
+      if (complete) {
+        throw result.error;
+      }
+      return null;
+    }
+
+    if (result.spill != null) {
+      try {
+        result.spill.finish();
+      } catch (IOException e) {
+        result.delete();
+        throw e;
+      }
+    }
+
+    return result;
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Fingerprints of the results from the previous run (incremental output, see OutputIncremental)
+ * 
+ * The fingerprint of a result (column CRC of DatabaseOracle.getColumnCRC, rows and the hash of the
+ * content) is stored in a property file with "externalId/queryID" as key. With row snapshots the
+ * sorted hashes of all rows of every result are stored in addition in a binary file
+ * (<file>.rows), so the changed rows of a result can be found.
+ * 
+ * Only complete results replace their fingerprint, so a result which failed in this run is compared
+ * with its last complete fingerprint again in the next run. save() writes all fingerprints at the
+ * end of the run.
+ * 
+ * Conditionally thread-safe
+ * 
+ */
+public class ResultFingerprints {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // magic number and version of the row snapshot file
+  private static final int MAGIC = 0x4a524f57;
+  private static final int VERSION = 1;
+
+  // buffer of the row snapshot file
+  private static final int BUFFER = 65536;
+
+  // property file and row snapshot file (null = no row snapshots)
+  private String file = null;
+  private String rowsFile = null;
+
+  // externalId/queryID -> columnCRC,rows,hash
+  private Properties fingerprints = new Properties();
+
+  // externalId/queryID -> sorted row hashes
+  private Map<String, long[]> rowHashes = new HashMap<String, long[]>();
+
+  public ResultFingerprints(String file, boolean rows) {
+    this.file = file;
+    if (rows) {
+      rowsFile = file + ".rows";
+    }
+  }
+
+  public static String getKey(Integer externalId, Integer queryID) {
+    return externalId + "/" + queryID;
+  }
+
+  // read the fingerprints of the previous run, a missing file is no error (first run)
+  public synchronized void load() {
+    if (new File(file).exists()) {
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          fingerprints.load(in);
+        } finally {
+          in.close();
+        }
+        log.debug("[INCREMENTAL] Loaded fingerprints of " + fingerprints.size() + " results");
+      } catch (IOException e) {
+        log.warn("[INCREMENTAL] Could not load fingerprint file: " + e.getMessage());
+      }
+    }
+
+    if (rowsFile != null && new File(rowsFile).exists()) {
+      try {
+        loadRows();
+        log.debug("[INCREMENTAL] Loaded row snapshots of " + rowHashes.size() + " results");
+      } catch (IOException e) {
+        rowHashes.clear();
+        log.warn("[INCREMENTAL] Could not load row snapshot file: " + e.getMessage());
+      }
+    }
+  }
+
+  private void loadRows() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(rowsFile), BUFFER));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("No row snapshot file of version " + VERSION);
+      }
+
+      int results = in.readInt();
+      for (int i = 0; i < results; i++) {
+        String key = in.readUTF();
+        long[] hashes = new long[in.readInt()];
+        for (int row = 0; row < hashes.length; row++) {
+          hashes[row] = in.readLong();
+        }
+        rowHashes.put(key, hashes);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  public synchronized void save() {
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        fingerprints.store(out, "JCDBE result fingerprints: columnCRC,rows,hash");
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      log.warn("[INCREMENTAL] Could not save fingerprint file: " + e.getMessage());
+    }
+
+    if (rowsFile == null) {
+      return;
+    }
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(rowsFile), BUFFER));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rowHashes.size());
+        for (Map.Entry<String, long[]> entry : rowHashes.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeInt(entry.getValue().length);
+          for (long hash : entry.getValue()) {
+            out.writeLong(hash);
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      log.warn("[INCREMENTAL] Could not save row snapshot file: " + e.getMessage());
+    }
+  }
+
+  // fingerprint of the previous run or null if unknown
+  public synchronized String get(String key) {
+    return fingerprints.getProperty(key);
+  }
+
+  public synchronized void put(String key, String fingerprint) {
+    fingerprints.setProperty(key, fingerprint);
+  }
+
+  // sorted row hashes of the previous run or null if unknown
+  public synchronized long[] getRows(String key) {
+    return rowHashes.get(key);
+  }
+
+  // hashes: sorted
+  public synchronized void putRows(String key, long[] hashes) {
+    rowHashes.put(key, hashes);
+  }
+
+}
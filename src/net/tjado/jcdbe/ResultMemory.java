@@ -0,0 +1,228 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Global budget of the result memory in flight
+ * 
+ * Every database thread gets an Account, which reserves the estimated heap size of its rows before
+ * they are fetched (row batches, CachedRowSets) and releases them after the output has written
+ * them. If the budget is exhausted, the fetching threads block until other results are written -
+ * so the amount of results in memory doesn't depend on threadRun and the result sizes anymore.
+ * 
+ * The account which holds memory the longest may always exceed the budget, so the fetching threads
+ * can't wait for each other (the oldest result is finished first and frees its memory). A single
+ * result larger than the budget still works, as long as it's the only one.
+ * 
+ * The sizes are estimates of the Java heap (object headers, references, chars of strings), not
+ * measurements. Limit 0 only counts the memory (peak) without blocking.
+ * 
+ * The rows of the database threads (fetch, pipeline, OutputRowSetAdapter) and the buffered results
+ * of the streaming outputs (ResultBuffer.buffered, bounded per result by the spill size) are
+ * counted. The buffered copies are added without waiting, the fetching thread already holds the
+ * memory of its rows. Not counted are the chunks in the queue of the async CSV output and the
+ * queued copies of the OutputTee sinks, including the CachedRowSets which a sink without
+ * streaming collects.
+ * 
+ * Thread-safe
+ * 
+ */
+public class ResultMemory {
+
+  // estimated bytes of a row (row object, array of the values) and of a boxed value
+  public static final long ROW_BYTES = 64;
+  public static final long VALUE_BYTES = 32;
+
+  // maximum bytes of results in flight (0 = unlimited)
+  private long limit = 0;
+
+  // bytes which are currently reserved and maximum of the run
+  private long used = 0;
+  private long peak = 0;
+
+  // threads waiting for memory, amount of waits and sum of the waiting time in ms
+  private int waiting = 0;
+  private long waits = 0;
+  private long waitTime = 0;
+
+  // accounts which hold memory, sorted by the time they reserved their first bytes
+  private TreeMap<Long, Account> holders = new TreeMap<Long, Account>();
+  private long sequence = 0;
+
+  // reserved memory of a database thread per query
+  public class Account {
+    private Map<Integer, Long> queries = new HashMap<Integer, Long>();
+    private long bytes = 0;
+    private long sequence = -1;
+    private boolean closed = false;
+
+    // reserves bytes for the rows of a query, waits if the budget is exhausted
+    public void reserve(Integer queryID, long bytes) throws InterruptedException {
+      ResultMemory.this.reserve(this, queryID, bytes);
+    }
+
+    // corrects the reserved bytes of a query without waiting (estimate -> actual size)
+    public void add(Integer queryID, long bytes) {
+      synchronized (ResultMemory.this) {
+        account(this, queryID, bytes);
+      }
+    }
+
+    // frees the memory of a query (written or dropped result)
+    public void release(Integer queryID) {
+      synchronized (ResultMemory.this) {
+        Long reserved = queries.get(queryID);
+        if (reserved != null) {
+          account(this, queryID, -reserved);
+        }
+      }
+    }
+
+    // frees the memory of all queries, later reservations are ignored (database finished)
+    public void close() {
+      synchronized (ResultMemory.this) {
+        for (Integer queryID : new HashMap<Integer, Long>(queries).keySet()) {
+          account(this, queryID, -queries.get(queryID));
+        }
+        closed = true;
+        ResultMemory.this.notifyAll();
+      }
+    }
+  }
+
+  public ResultMemory(long limit) {
+    this.limit = limit;
+  }
+
+  public Account open() {
+    return new Account();
+  }
+
+  private synchronized void reserve(Account account, Integer queryID, long bytes)
+      throws InterruptedException {
+    long start = 0;
+    try {
+      while (mustWait(account, bytes)) {
+        if (start == 0) {
+          start = System.currentTimeMillis();
+          waiting++;
+          waits++;
+        }
+        wait();
+      }
+    } finally {
+      if (start != 0) {
+        waiting--;
+        waitTime += System.currentTimeMillis() - start;
+      }
+    }
+
+    account(account, queryID, bytes);
+  }
+
+  private boolean mustWait(Account account, long bytes) {
+    if (limit == 0 || account.closed || used == 0 || used + bytes <= limit) {
+      return false;
+    }
+    // the oldest holder always gets its memory
+    return holders.isEmpty() || holders.firstEntry().getValue() != account;
+  }
+
+  private void account(Account account, Integer queryID, long bytes) {
+    if (account.closed) {
+      return;
+    }
+
+    Long reserved = account.queries.get(queryID);
+    long before = reserved == null ? 0 : reserved;
+    long after = Math.max(0, before + bytes);
+    if (after == 0) {
+      account.queries.remove(queryID);
+    } else {
+      account.queries.put(queryID, after);
+    }
+
+    long delta = after - before;
+    account.bytes += delta;
+    used += delta;
+    peak = Math.max(peak, used);
+
+    if (account.bytes > 0 && account.sequence < 0) {
+      account.sequence = sequence++;
+      holders.put(account.sequence, account);
+    } else if (account.bytes == 0 && account.sequence >= 0) {
+      holders.remove(account.sequence);
+      account.sequence = -1;
+    }
+
+    if (delta < 0) {
+      notifyAll();
+    }
+  }
+
+  // estimated heap size of a value of a result
+  public static long estimate(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return VALUE_BYTES + 2L * ((String) value).length();
+    } else if (value instanceof byte[]) {
+      return VALUE_BYTES + ((byte[]) value).length;
+    } else if (value instanceof BigDecimal) {
+      return 2 * VALUE_BYTES;
+    } else if (value instanceof Number || value instanceof Date) {
+      return VALUE_BYTES;
+    }
+    return 4 * VALUE_BYTES;
+  }
+
+  public synchronized long getLimit() {
+    return limit;
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  public synchronized long getWaitTime() {
+    return waitTime;
+  }
+
+}
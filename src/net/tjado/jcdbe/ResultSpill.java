@@ -0,0 +1,146 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.sql.RowSetMetaData;
+
+/**
+ * Temporary spill file of a result which is too large for the memory
+ * 
+ * The rows are written batch by batch in the binary format of RowBatch over a FileChannel and are
+ * streamed back into the output (replay) - only one batch is in memory. The file is deleted after
+ * the replay or by delete() if the result will not be written (failed query, aborted database).
+ * 
+ * Not thread-safe, the result is handed over between the stages
+ * 
+ */
+public class ResultSpill {
+
+  // Logger
+  private static Log log = Log.getInstance();
+
+  // buffer of the file channel
+  private static final int BUFFER = 65536;
+
+  private Path file = null;
+  private DataOutputStream out = null;
+
+  // metadata of the result (with DATABASE_NAME_JCDBE) and batch for writing/reading the rows
+  private RowSetMetaData metaData = null;
+  private RowBatch batch = null;
+
+  private long rows = 0;
+
+  // directory: null = java.io.tmpdir
+  public ResultSpill(String directory, RowSetMetaData metaData, RowBatch batch)
+      throws IOException {
+    this.metaData = metaData;
+    this.batch = batch;
+
+    if (directory == null) {
+      file = Files.createTempFile("jcdbe-", ".spill");
+    } else {
+      file = Files.createTempFile(Paths.get(directory), "jcdbe-", ".spill");
+    }
+
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER));
+  }
+
+  // appends the rows of a batch
+  public void write(RowBatch rows) throws IOException {
+    rows.write(out);
+    this.rows += rows.size();
+  }
+
+  // all rows are written
+  public void finish() throws IOException {
+    out.close();
+    out = null;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  // size of the spill file in bytes
+  public long getSize() {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  // streams all rows into the output and deletes the file
+  public void replay(Integer dbID, Integer queryID, OutputStreaming output) throws IOException {
+    boolean started = false;
+    boolean complete = false;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE)),
+        BUFFER));
+    try {
+      for (long read = 0; read < rows; read += batch.size()) {
+        batch.read(in);
+        if (!started) {
+          output.startResult(dbID, queryID, metaData);
+          started = true;
+        }
+        output.saveRows(dbID, queryID, batch);
+      }
+      complete = true;
+    } finally {
+      batch.clear();
+      if (started) {
+        output.endResult(dbID, queryID, complete);
+      }
+      in.close();
+    }
+  }
+
+  // deletes the file without writing the rows
+  public void delete() {
+    try {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warn("[SPILL] Could not delete spill file " + file + ": " + e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,666 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar batch of result rows
+ * 
+ * The rows of a ResultSet are decoded by the JDBC type of their column into primitive arrays:
+ *  LONG:   integer NUMBER (scale 0, precision <= 18), INTEGER, BIGINT, ... -> long[]
+ *  DOUBLE: BINARY_DOUBLE, BINARY_FLOAT, DOUBLE, REAL -> double[]
+ *  STRING: CHAR, VARCHAR2, NCHAR, NVARCHAR2 -> int[] codes of a dictionary per batch
+ *  OBJECT: all other types (DATE, TIMESTAMP, NUMBER with scale, LOBs, ...) -> Object[]
+ * The first column DATABASE_NAME_JCDBE has the same value in every row, so it is only stored once.
+ * 
+ * Columns are numbered like in JDBC (1 = DATABASE_NAME_JCDBE, 2...n = columns of the result),
+ * rows from 0 to size() - 1. The arrays are reused after clear().
+ * 
+ * getBytes() estimates the heap size of the batch for the ResultMemory: the arrays and the values
+ * of the current rows (dictionary strings, objects).
+ * 
+ * write()/read() store the rows in a compact binary format (ResultSpill): null bitmap, LONG/DOUBLE
+ * as 8 bytes, STRING as dictionary + codes, OBJECT with a type tag. LOBs are stored with their
+ * content (CLOB as String, BLOB as byte[]), unknown object types as String.
+ * 
+ * Not thread-safe
+ * 
+ */
+public class RowBatch {
+
+  // column types of the batch
+  public static final int LONG = 1;
+  public static final int DOUBLE = 2;
+  public static final int STRING = 3;
+  public static final int OBJECT = 4;
+
+  // Oracle BINARY_FLOAT/BINARY_DOUBLE (oracle.jdbc.OracleTypes)
+  private static final int BINARY_FLOAT = 100;
+  private static final int BINARY_DOUBLE = 101;
+
+  // type tags of OBJECT values in the binary format
+  private static final byte TAG_STRING = 0;
+  private static final byte TAG_DECIMAL = 1;
+  private static final byte TAG_TIMESTAMP = 2;
+  private static final byte TAG_DATE = 3;
+  private static final byte TAG_TIME = 4;
+  private static final byte TAG_BYTES = 5;
+  private static final byte TAG_DOUBLE = 6;
+  private static final byte TAG_FLOAT = 7;
+  private static final byte TAG_LONG = 8;
+  private static final byte TAG_INTEGER = 9;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // value of the first column
+  private Object firstColVal = null;
+
+  // amount of result columns (without the first column)
+  private int columnCount = 0;
+
+  private int capacity = 0;
+  private int size = 0;
+
+  // JDBC type, batch type and values per result column (index 0 = column 2)
+  private int[] jdbcTypes = null;
+  private int[] types = null;
+  private boolean[][] nulls = null;
+  private long[][] longs = null;
+  private double[][] doubles = null;
+  private int[][] codes = null;
+  private Object[][] objects = null;
+
+  // string dictionary per column (value -> code, code -> value)
+  private List<Map<String, Integer>> dictionaryCodes = new ArrayList<Map<String, Integer>>();
+  private List<List<String>> dictionaries = new ArrayList<List<String>>();
+
+  // estimated bytes of the arrays and of the values of the current rows
+  private long arrayBytes = 0;
+  private long valueBytes = 0;
+
+  public RowBatch(ResultSetMetaData rsmd, Object firstColVal, int capacity) throws SQLException {
+    this(getJdbcTypes(rsmd), getTypes(rsmd), firstColVal, capacity);
+  }
+
+  // JDBC types and batch types of the result columns (index 0 = column 2), e.g. of a stored batch
+  public RowBatch(int[] jdbcTypes, int[] types, Object firstColVal, int capacity) {
+    this.firstColVal = firstColVal;
+    this.capacity = capacity;
+
+    columnCount = types.length;
+    this.jdbcTypes = jdbcTypes.clone();
+    this.types = types.clone();
+    nulls = new boolean[columnCount][];
+    longs = new long[columnCount][];
+    doubles = new double[columnCount][];
+    codes = new int[columnCount][];
+    objects = new Object[columnCount][];
+
+    for (int i = 0; i < columnCount; i++) {
+      nulls[i] = new boolean[capacity];
+
+      switch (types[i]) {
+        case LONG:
+          longs[i] = new long[capacity];
+          arrayBytes += 8L * capacity;
+          break;
+        case DOUBLE:
+          doubles[i] = new double[capacity];
+          arrayBytes += 8L * capacity;
+          break;
+        case STRING:
+          codes[i] = new int[capacity];
+          arrayBytes += 4L * capacity;
+          break;
+        default:
+          objects[i] = new Object[capacity];
+          arrayBytes += 8L * capacity;
+      }
+      arrayBytes += capacity;
+
+      dictionaryCodes.add(types[i] == STRING ? new HashMap<String, Integer>() : null);
+      dictionaries.add(types[i] == STRING ? new ArrayList<String>() : null);
+    }
+  }
+
+  private static int[] getJdbcTypes(ResultSetMetaData rsmd) throws SQLException {
+    int[] jdbcTypes = new int[rsmd.getColumnCount()];
+    for (int i = 0; i < jdbcTypes.length; i++) {
+      jdbcTypes[i] = rsmd.getColumnType(i + 1);
+    }
+    return jdbcTypes;
+  }
+
+  private static int[] getTypes(ResultSetMetaData rsmd) throws SQLException {
+    int[] types = new int[rsmd.getColumnCount()];
+    for (int i = 0; i < types.length; i++) {
+      types[i] = getType(rsmd, i + 1);
+    }
+    return types;
+  }
+
+  // batch type of a result column
+  private static int getType(ResultSetMetaData rsmd, int column) throws SQLException {
+    switch (rsmd.getColumnType(column)) {
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        int precision = rsmd.getPrecision(column);
+        return rsmd.getScale(column) == 0 && precision > 0 && precision <= 18 ? LONG : OBJECT;
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        return LONG;
+      case Types.DOUBLE:
+      case Types.REAL:
+      case BINARY_FLOAT:
+      case BINARY_DOUBLE:
+        return DOUBLE;
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.NCHAR:
+      case Types.NVARCHAR:
+        return STRING;
+      default:
+        return OBJECT;
+    }
+  }
+
+  // adds the current row of the ResultSet
+  public void add(ResultSet rs) throws SQLException {
+    add(rs, 0);
+  }
+
+  // adds the current row of a ResultSet with offset columns before the result columns
+  public void add(ResultSet rs, int offset) throws SQLException {
+    int row = size;
+
+    for (int i = 0; i < columnCount; i++) {
+      int column = i + 1 + offset;
+
+      switch (types[i]) {
+        case LONG:
+          longs[i][row] = rs.getLong(column);
+          nulls[i][row] = rs.wasNull();
+          break;
+        case DOUBLE:
+          doubles[i][row] = rs.getDouble(column);
+          nulls[i][row] = rs.wasNull();
+          break;
+        case STRING:
+          String value = rs.getString(column);
+          nulls[i][row] = value == null;
+          if (value != null) {
+            codes[i][row] = encode(i, value);
+          }
+          break;
+        default:
+          objects[i][row] = rs.getObject(column);
+          nulls[i][row] = objects[i][row] == null;
+          valueBytes += ResultMemory.estimate(objects[i][row]);
+      }
+    }
+
+    size++;
+  }
+
+  // adds a row of another batch with the same columns
+  public void add(RowBatch source, int sourceRow) {
+    int row = size;
+
+    for (int i = 0; i < columnCount; i++) {
+      int column = i + 2;
+      nulls[i][row] = source.isNull(sourceRow, column);
+      if (nulls[i][row]) {
+        if (types[i] == OBJECT) {
+          objects[i][row] = null;
+        }
+        continue;
+      }
+
+      switch (types[i]) {
+        case LONG:
+          longs[i][row] = source.getLong(sourceRow, column);
+          break;
+        case DOUBLE:
+          doubles[i][row] = source.getDouble(sourceRow, column);
+          break;
+        case STRING:
+          codes[i][row] = encode(i, source.getString(sourceRow, column));
+          break;
+        default:
+          objects[i][row] = source.getObject(sourceRow, column);
+          valueBytes += ResultMemory.estimate(objects[i][row]);
+      }
+    }
+
+    size++;
+  }
+
+  private int encode(int index, String value) {
+    Map<String, Integer> dictionaryCode = dictionaryCodes.get(index);
+    Integer code = dictionaryCode.get(value);
+    if (code == null) {
+      List<String> dictionary = dictionaries.get(index);
+      code = dictionary.size();
+      dictionary.add(value);
+      dictionaryCode.put(value, code);
+      // string and entry of the map
+      valueBytes += ResultMemory.estimate(value) + ResultMemory.VALUE_BYTES;
+    }
+    return code;
+  }
+
+  // removes all rows (the arrays are reused)
+  public void clear() {
+    size = 0;
+    valueBytes = 0;
+
+    for (int i = 0; i < columnCount; i++) {
+      if (types[i] == OBJECT) {
+        Arrays.fill(objects[i], null);
+      } else if (types[i] == STRING) {
+        dictionaryCodes.get(i).clear();
+        dictionaries.get(i).clear();
+      }
+    }
+  }
+
+  public boolean isFull() {
+    return size == capacity;
+  }
+
+  // copy of the current rows (capacity = size), e.g. for a consumer on another thread
+  public RowBatch copy() {
+    RowBatch copy = new RowBatch(jdbcTypes, types, firstColVal, Math.max(1, size));
+    copy.size = size;
+    copy.valueBytes = valueBytes;
+
+    for (int i = 0; i < columnCount; i++) {
+      System.arraycopy(nulls[i], 0, copy.nulls[i], 0, size);
+
+      switch (types[i]) {
+        case LONG:
+          System.arraycopy(longs[i], 0, copy.longs[i], 0, size);
+          break;
+        case DOUBLE:
+          System.arraycopy(doubles[i], 0, copy.doubles[i], 0, size);
+          break;
+        case STRING:
+          System.arraycopy(codes[i], 0, copy.codes[i], 0, size);
+          copy.dictionaries.get(i).addAll(dictionaries.get(i));
+          copy.dictionaryCodes.get(i).putAll(dictionaryCodes.get(i));
+          break;
+        default:
+          System.arraycopy(objects[i], 0, copy.objects[i], 0, size);
+      }
+    }
+
+    return copy;
+  }
+
+  // empty batch with the same columns and capacity, e.g. for reading stored rows
+  public RowBatch createEmpty() {
+    return new RowBatch(jdbcTypes, types, firstColVal, capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // estimated heap size in bytes
+  public long getBytes() {
+    return arrayBytes + valueBytes;
+  }
+
+  // amount of columns including DATABASE_NAME_JCDBE
+  public int getColumnCount() {
+    return columnCount + 1;
+  }
+
+  // value of DATABASE_NAME_JCDBE (column 1)
+  public Object getFirstColumnValue() {
+    return firstColVal;
+  }
+
+  public void setFirstColumnValue(Object firstColVal) {
+    this.firstColVal = firstColVal;
+  }
+
+  // JDBC type of a column (column 1 is VARCHAR)
+  public int getJdbcType(int column) {
+    return column == 1 ? Types.VARCHAR : jdbcTypes[column - 2];
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  // LONG, DOUBLE, STRING or OBJECT (column 1 is OBJECT)
+  public int getType(int column) {
+    return column == 1 ? OBJECT : types[column - 2];
+  }
+
+  public boolean isNull(int row, int column) {
+    return column == 1 ? firstColVal == null : nulls[column - 2][row];
+  }
+
+  public long getLong(int row, int column) {
+    return longs[column - 2][row];
+  }
+
+  public double getDouble(int row, int column) {
+    return doubles[column - 2][row];
+  }
+
+  // dictionary code of a STRING column
+  public int getCode(int row, int column) {
+    return codes[column - 2][row];
+  }
+
+  // values of a STRING column in code order
+  public List<String> getDictionary(int column) {
+    return dictionaries.get(column - 2);
+  }
+
+  public String getString(int row, int column) {
+    if (isNull(row, column)) {
+      return null;
+    } else if (getType(column) == STRING) {
+      return dictionaries.get(column - 2).get(codes[column - 2][row]);
+    }
+    return getObject(row, column).toString();
+  }
+
+  // boxed value of any column, the same class as ResultSet.getObject (NUMBER as BigDecimal)
+  public Object getObject(int row, int column) {
+    if (column == 1) {
+      return firstColVal;
+    } else if (isNull(row, column)) {
+      return null;
+    }
+
+    switch (types[column - 2]) {
+      case LONG:
+        long longValue = longs[column - 2][row];
+        if (jdbcTypes[column - 2] == Types.NUMERIC || jdbcTypes[column - 2] == Types.DECIMAL) {
+          return BigDecimal.valueOf(longValue);
+        }
+        return jdbcTypes[column - 2] == Types.BIGINT ? (Object) longValue : (Object) (int) longValue;
+      case DOUBLE:
+        double doubleValue = doubles[column - 2][row];
+        if (jdbcTypes[column - 2] == Types.REAL || jdbcTypes[column - 2] == BINARY_FLOAT) {
+          return (float) doubleValue;
+        }
+        return doubleValue;
+      case STRING:
+        return dictionaries.get(column - 2).get(codes[column - 2][row]);
+      default:
+        return objects[column - 2][row];
+    }
+  }
+
+
+  // writes the rows in the binary format
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+
+    for (int i = 0; i < columnCount; i++) {
+      writeNulls(out, nulls[i]);
+
+      switch (types[i]) {
+        case LONG:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              out.writeLong(longs[i][row]);
+            }
+          }
+          break;
+        case DOUBLE:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              out.writeDouble(doubles[i][row]);
+            }
+          }
+          break;
+        case STRING:
+          List<String> dictionary = dictionaries.get(i);
+          out.writeInt(dictionary.size());
+          for (String value : dictionary) {
+            writeString(out, value);
+          }
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              out.writeInt(codes[i][row]);
+            }
+          }
+          break;
+        default:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              writeObject(out, objects[i][row]);
+            }
+          }
+      }
+    }
+  }
+
+  // replaces the rows by the rows of the binary format (written by a batch with the same columns)
+  public void read(DataInput in) throws IOException {
+    clear();
+    size = in.readInt();
+
+    for (int i = 0; i < columnCount; i++) {
+      readNulls(in, nulls[i]);
+
+      switch (types[i]) {
+        case LONG:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              longs[i][row] = in.readLong();
+            }
+          }
+          break;
+        case DOUBLE:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              doubles[i][row] = in.readDouble();
+            }
+          }
+          break;
+        case STRING:
+          List<String> dictionary = dictionaries.get(i);
+          int count = in.readInt();
+          for (int code = 0; code < count; code++) {
+            String value = readString(in);
+            dictionary.add(value);
+            valueBytes += ResultMemory.estimate(value) + ResultMemory.VALUE_BYTES;
+          }
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              codes[i][row] = in.readInt();
+            }
+          }
+          break;
+        default:
+          for (int row = 0; row < size; row++) {
+            if (!nulls[i][row]) {
+              objects[i][row] = readObject(in);
+              valueBytes += ResultMemory.estimate(objects[i][row]);
+            }
+          }
+      }
+    }
+  }
+
+  // null flags of the rows as bitmap
+  private void writeNulls(DataOutput out, boolean[] columnNulls) throws IOException {
+    for (int row = 0; row < size; row += 8) {
+      int bits = 0;
+      for (int bit = 0; bit < 8 && row + bit < size; bit++) {
+        if (columnNulls[row + bit]) {
+          bits |= 1 << bit;
+        }
+      }
+      out.writeByte(bits);
+    }
+  }
+
+  private void readNulls(DataInput in, boolean[] columnNulls) throws IOException {
+    for (int row = 0; row < size; row += 8) {
+      int bits = in.readUnsignedByte();
+      for (int bit = 0; bit < 8 && row + bit < size; bit++) {
+        columnNulls[row + bit] = (bits & (1 << bit)) != 0;
+      }
+    }
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    writeBytes(out, value.getBytes(UTF8));
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return new String(readBytes(in), UTF8);
+  }
+
+  private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    byte[] value = new byte[in.readInt()];
+    in.readFully(value);
+    return value;
+  }
+
+  private static void writeObject(DataOutput out, Object value) throws IOException {
+    if (value instanceof BigDecimal) {
+      out.writeByte(TAG_DECIMAL);
+      out.writeInt(((BigDecimal) value).scale());
+      writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+    } else if (value instanceof Timestamp) {
+      out.writeByte(TAG_TIMESTAMP);
+      out.writeLong(((Timestamp) value).getTime());
+      out.writeInt(((Timestamp) value).getNanos());
+    } else if (value instanceof java.sql.Date) {
+      out.writeByte(TAG_DATE);
+      out.writeLong(((java.sql.Date) value).getTime());
+    } else if (value instanceof Time) {
+      out.writeByte(TAG_TIME);
+      out.writeLong(((Time) value).getTime());
+    } else if (value instanceof byte[]) {
+      out.writeByte(TAG_BYTES);
+      writeBytes(out, (byte[]) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte(TAG_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Blob) {
+      out.writeByte(TAG_BYTES);
+      writeBytes(out, toBytes((Blob) value));
+    } else {
+      out.writeByte(TAG_STRING);
+      writeString(out, toString(value));
+    }
+  }
+
+  // String of a CLOB/other object, BLOBs are written as byte[]
+  private static String toString(Object value) throws IOException {
+    try {
+      if (value instanceof Clob) {
+        Clob clob = (Clob) value;
+        return clob.getSubString(1, (int) clob.length());
+      }
+    } catch (SQLException e) {
+      throw new IOException("Could not read CLOB: " + e.getMessage(), e);
+    }
+    return value.toString();
+  }
+
+  private static byte[] toBytes(Blob blob) throws IOException {
+    try {
+      return blob.getBytes(1, (int) blob.length());
+    } catch (SQLException e) {
+      throw new IOException("Could not read BLOB: " + e.getMessage(), e);
+    }
+  }
+
+  private static Object readObject(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case TAG_DECIMAL:
+        int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      case TAG_TIMESTAMP:
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        return timestamp;
+      case TAG_DATE:
+        return new java.sql.Date(in.readLong());
+      case TAG_TIME:
+        return new Time(in.readLong());
+      case TAG_BYTES:
+        return readBytes(in);
+      case TAG_DOUBLE:
+        return in.readDouble();
+      case TAG_FLOAT:
+        return in.readFloat();
+      case TAG_LONG:
+        return in.readLong();
+      case TAG_INTEGER:
+        return in.readInt();
+      case TAG_STRING:
+        return readString(in);
+      default:
+        throw new IOException("Unknown type tag " + tag);
+    }
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Append-only journal of the database and query status messages
+ * 
+ * Every status is written as CSV line (timestamp, database ID, query ID, status) when it happens,
+ * the query ID is empty for the status of a database. The lines are buffered (one write per BUFFER
+ * bytes instead of one per status), so the memory stays constant; if the JVM dies, only the lines
+ * of the last buffer are lost. The journal is always written uncompressed.
+ * 
+ * Thread-safe
+ * 
+ */
+public class StatusJournal {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // write buffer of the journal file
+  private static final int BUFFER = 65536;
+
+  private Writer file = null;
+
+  // formats a line into text (reused for every line)
+  private StringWriter text = new StringWriter();
+  private CSVWriter csv = null;
+
+  private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+  // status messages written
+  private long events = 0;
+
+  public StatusJournal(String file, char delimiter) throws IOException {
+    this.file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8),
+        BUFFER);
+    csv = new CSVWriter(text, delimiter);
+
+    write(new String[] {"TIMESTAMP", "DATABASE_ID", "QUERY_ID", "STATUS"});
+  }
+
+  // journal file next to the output file: out.csv -> out.status.csv
+  public static String getFile(String outputFile) {
+    int extension = outputFile.lastIndexOf('.');
+    if (extension <= outputFile.lastIndexOf('/') + 1) {
+      return outputFile + ".status";
+    }
+    return outputFile.substring(0, extension) + ".status" + outputFile.substring(extension);
+  }
+
+  // queryID null = status of the database
+  public synchronized void write(Integer dbID, Integer queryID, String status) throws IOException {
+    write(new String[] {format.format(new Date()), String.valueOf(dbID),
+        queryID == null ? "" : String.valueOf(queryID), status.replaceAll("\\s+$", "")});
+    events++;
+  }
+
+  private void write(String[] line) throws IOException {
+    csv.writeNext(line);
+    csv.flush();
+
+    StringBuffer buffer = text.getBuffer();
+    file.append(buffer);
+    buffer.setLength(0);
+  }
+
+  public synchronized long getEvents() {
+    return events;
+  }
+
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of JCDBE - Java Connect Database Engine
+ * 
+ * Copyright (C) 2013  Tjado Mcke
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * 
+ */
+
+package net.tjado.jcdbe;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader of the store of OutputStore
+ * 
+ * The index is loaded when the store is opened and indexed by database, external and query ID, so
+ * a lookup only reads the row groups of the matching entries. Counts are answered from the index
+ * without reading the data file:
+ * 
+ *  StoreReader store = new StoreReader("out");
+ *  for (StoreReader.Entry entry : store.find(null, 4711, 2)) {
+ *    RowBatch rows = store.read(entry);
+ *    ... rows.getLong(row, 3) ...
+ *  }
+ *  store.close();
+ * 
+ * Not thread-safe
+ * 
+ */
+public class StoreReader {
+
+  // buffer of the index read
+  private static final int BUFFER = 65536;
+
+  // row group of a database and query
+  public static class Entry {
+    public final int queryID;
+    public final int dbID;
+    public final Integer externalId;
+    public final int rows;
+
+    private final int schema;
+    private final long offset;
+
+    private Entry(int queryID, int dbID, Integer externalId, int schema, long offset, int rows) {
+      this.queryID = queryID;
+      this.dbID = dbID;
+      this.externalId = externalId;
+      this.schema = schema;
+      this.offset = offset;
+      this.rows = rows;
+    }
+  }
+
+  private FileChannel channel = null;
+
+  // compression of the row groups (OutputColumnar.NONE/DEFLATE)
+  private int compression = OutputColumnar.NONE;
+
+  // columns of the schemas (index 0 = column 1)
+  private List<String[]> names = new ArrayList<String[]>();
+  private List<int[]> jdbcTypes = new ArrayList<int[]>();
+
+  // row batch of every schema (reused)
+  private List<RowBatch> batches = new ArrayList<RowBatch>();
+
+  // entries sorted by query and database, and their indexes
+  private List<Entry> entries = new ArrayList<Entry>();
+  private Map<Integer, List<Entry>> byDatabase = new HashMap<Integer, List<Entry>>();
+  private Map<Integer, List<Entry>> byExternalId = new HashMap<Integer, List<Entry>>();
+  private Map<Integer, List<Entry>> byQuery = new HashMap<Integer, List<Entry>>();
+
+  // status messages ("dbID/queryID" -> status, queryID null = database)
+  private Map<String, String> statuses = new HashMap<String, String>();
+
+  // store: base name of the output file (with or without .jsto)
+  public StoreReader(String store) throws IOException {
+    if (store.endsWith(OutputStore.SUFFIX_DATA)) {
+      store = store.substring(0, store.length() - OutputStore.SUFFIX_DATA.length());
+    }
+
+    readIndex(store + OutputStore.SUFFIX_INDEX);
+    channel = FileChannel.open(Paths.get(store + OutputStore.SUFFIX_DATA), StandardOpenOption.READ);
+  }
+
+  private void readIndex(String file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), BUFFER));
+    try {
+      if (in.readInt() != OutputStore.MAGIC_INDEX || in.readInt() != OutputStore.VERSION) {
+        throw new IOException("No store index of version " + OutputStore.VERSION);
+      }
+      compression = in.readByte();
+
+      int schemas = in.readInt();
+      int[][] types = new int[schemas][];
+      for (int schema = 0; schema < schemas; schema++) {
+        int columns = in.readInt();
+        names.add(new String[columns]);
+        jdbcTypes.add(new int[columns]);
+        types[schema] = new int[columns];
+        for (int i = 0; i < columns; i++) {
+          names.get(schema)[i] = in.readUTF();
+          jdbcTypes.get(schema)[i] = in.readInt();
+          types[schema][i] = in.readByte();
+        }
+      }
+
+      int[] capacity = new int[schemas];
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        int queryID = in.readInt();
+        int dbID = in.readInt();
+        Integer externalId = readNullable(in);
+        Entry entry = new Entry(queryID, dbID, externalId, in.readInt(), in.readLong(),
+            in.readInt());
+
+        entries.add(entry);
+        addIndex(byQuery, queryID, entry);
+        addIndex(byDatabase, dbID, entry);
+        if (externalId != null) {
+          addIndex(byExternalId, externalId, entry);
+        }
+        capacity[entry.schema] = Math.max(capacity[entry.schema], entry.rows);
+      }
+
+      int statusCount = in.readInt();
+      for (int i = 0; i < statusCount; i++) {
+        int dbID = in.readInt();
+        readNullable(in);
+        Integer queryID = readNullable(in);
+        statuses.put(dbID + "/" + queryID, in.readUTF());
+      }
+
+      // result columns without DATABASE_NAME_JCDBE
+      for (int schema = 0; schema < schemas; schema++) {
+        int columns = types[schema].length - 1;
+        int[] resultJdbcTypes = new int[columns];
+        int[] resultTypes = new int[columns];
+        System.arraycopy(jdbcTypes.get(schema), 1, resultJdbcTypes, 0, columns);
+        System.arraycopy(types[schema], 1, resultTypes, 0, columns);
+        batches.add(new RowBatch(resultJdbcTypes, resultTypes, null,
+            Math.max(1, capacity[schema])));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static Integer readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readInt() : null;
+  }
+
+  private static void addIndex(Map<Integer, List<Entry>> index, Integer key, Entry entry) {
+    List<Entry> list = index.get(key);
+    if (list == null) {
+      list = new ArrayList<Entry>();
+      index.put(key, list);
+    }
+    list.add(entry);
+  }
+
+  // entries of the database, external and query ID (null = any), sorted by query and database
+  public List<Entry> find(Integer dbID, Integer externalId, Integer queryID) {
+    // smallest list of the given keys
+    List<Entry> candidates = entries;
+    if (dbID != null) {
+      candidates = smaller(candidates, byDatabase.get(dbID));
+    }
+    if (externalId != null) {
+      candidates = smaller(candidates, byExternalId.get(externalId));
+    }
+    if (queryID != null) {
+      candidates = smaller(candidates, byQuery.get(queryID));
+    }
+
+    List<Entry> result = new ArrayList<Entry>();
+    for (Entry entry : candidates) {
+      if ((dbID == null || entry.dbID == dbID)
+          && (externalId == null || externalId.equals(entry.externalId))
+          && (queryID == null || entry.queryID == queryID)) {
+        result.add(entry);
+      }
+    }
+
+    return result;
+  }
+
+  private static List<Entry> smaller(List<Entry> list1, List<Entry> list2) {
+    if (list2 == null) {
+      return Collections.emptyList();
+    }
+    return list2.size() < list1.size() ? list2 : list1;
+  }
+
+  // rows of the database, external and query ID (null = any) without reading the data file
+  public long count(Integer dbID, Integer externalId, Integer queryID) {
+    long sum = 0;
+    for (Entry entry : find(dbID, externalId, queryID)) {
+      sum += entry.rows;
+    }
+    return sum;
+  }
+
+  // rows of the entry (the returned batch is reused by the next read of the same schema)
+  public RowBatch read(Entry entry) throws IOException {
+    RowBatch batch = batches.get(entry.schema);
+    ColumnarReader.readRowGroup(channel, entry.offset, compression, batch);
+    return batch;
+  }
+
+  // amount of columns of the entry including DATABASE_NAME_JCDBE
+  public int getColumnCount(Entry entry) {
+    return names.get(entry.schema).length;
+  }
+
+  // column: 1...n like in JDBC
+  public String getColumnName(Entry entry, int column) {
+    return names.get(entry.schema)[column - 1];
+  }
+
+  public int getColumnType(Entry entry, int column) {
+    return jdbcTypes.get(entry.schema)[column - 1];
+  }
+
+  // status of the query (queryID null = status of the database) or null
+  public String getStatus(Integer dbID, Integer queryID) {
+    return statuses.get(dbID + "/" + queryID);
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -24,8 +24,12 @@ package net.tjado.jcdbe;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -54,18 +58,43 @@ import org.ini4j.InvalidFileFormatException;
  *  
  *  DatabaseOracle.java         -> Oracle Database Layer
  *  DatabaseList.java           -> synchronized access to HashMap with all DB infos
+ *  DatabaseStatistics.java     -> timings of the previous runs (longest first order)
+ *  ResultFingerprints.java     -> result fingerprints of the previous run (incremental output)
+ *  DatabaseWatchdog.java       -> aborts database threads without progress
+ *  DatabasePipeline.java       -> execute/output stage after the connect
+ *  ResultMemory.java           -> memory budget of the results in flight
+ *  ResultSpill.java            -> spill file of a result which is too large for the memory
+ *  ConnectionLimiter.java      -> limit of parallel database connections
+ *  ConcurrencyController.java  -> adaptive limit of parallel database connections
  *  
  *  Input.java                  -> Interface specification for input
  *      InputCSV.java                   -> CSV input
  *      InputDatabase.java              -> DB input
  *  
  *  Output.java                 -> Interface specification for output
+ *  OutputStreaming.java        -> Interface specification for streaming output (row batches)
+ *  OutputRowSetAdapter.java    -> CachedRowSet of streamed rows for outputs without streaming
+ *  RowBatch.java               -> columnar batch of result rows for streaming
  *      OutputCSV.java                  -> CSV output
+ *      OutputCSVPartitions.java        -> partition files of the CSV output
+ *      OutputCompression.java          -> parallel gzip compression of output files
  *      OutputDatabase.java             -> DB output
+ *      OutputColumnar.java             -> typed columnar files (JCDBE format, not Parquet)
+ *      ColumnarReader.java             -> reader of the columnar files
+ *      OutputStore.java                -> indexed store (data file and index)
+ *      StoreReader.java                -> lookups in the store
+ *      OutputJsonLines.java            -> JSON Lines file (typed values, one row per line)
+ *      OutputTee.java                  -> several outputs in the same run (queue per output)
+ *      OutputIncremental.java          -> only changed results/rows (wraps the output)
  *      OutputDummy.java                -> Dummy output
  *  
  *  Log.java                    -> Logging Helper Class for log4j (from apache)
  *  
+ *  Bench*.java                 -> benchmarks without a database (one class per benchmark)
+ *      BenchUtil.java                  -> shared parts (generated results, peak memory)
+ *      BenchDriver.java                -> stand-in JDBC driver with simulated latency
+ *      BenchRun.java                   -> JCDBE run against the stand-in driver
+ *  
  * </pre>
  * 
  * @author  Tjado Mcke <tjado@maecke.de>
@@ -91,6 +120,9 @@ public class jcdbe {
   // output class of results (OutputDatabase, OutputCSV)
   private static String outputClass = null;
 
+  // names of the outputs of the OutputTee (output = CSV, Database), otherwise null
+  private static String[] teeOutputs = null;
+
   // working directory
   private static String workingDir = System.getProperty("user.dir");
 
@@ -103,12 +135,81 @@ public class jcdbe {
   // default thread keep alive time
   private static int threadTTL = 10;
 
+  // default thread executor (pool, virtual)
+  private static String executorType = "pool";
+
+  // maximum parallel database connections (default: threadRun)
+  private static Integer connectionMax = null;
+
+  // connection limit (static, adaptive)
+  private static String concurrency = "static";
+
+  // adaptive connection limit: start/minimum of parallel database connections
+  private static int connectionMin = 10;
+
+  // maximum parallel database connections per listener host and per CMAN (0 = unlimited)
+  private static int hostConnectionMax = 0;
+  private static int cmanConnectionMax = 0;
+
   // default log4j path to property file
   private static String log4jPropertyFile = "config/log4j.properties";
 
   // default log4j path to property file
   private static String jdbcPropertyeFile = "config/jdbc.properties";
 
+  // rows per fetch round trip (0 = adaptive), bytes per round trip of the adaptive fetch size
+  private static int fetchSize = 0;
+  private static int fetchBytes = 524288;
+
+  // LOB prefetch in bytes (null = driver default)
+  private static Integer lobPrefetchSize = null;
+
+  // query execution (statement: one statement per query, block: all queries in one execute call)
+  private static String queryMode = "statement";
+
+  // threads of the execute/output stage (executeThreads 0 = no pipeline)
+  private static int executeThreads = 0;
+  private static int outputThreads = Runtime.getRuntime().availableProcessors();
+
+  // results waiting for the output stage (default: outputThreads)
+  private static Integer outputQueue = null;
+
+  // interval in seconds of the queue status (0 = disabled)
+  private static int statusInterval = 30;
+
+  // memory of the results in flight in MB (-1 = off, 0 = unlimited)
+  private static long resultMemory = -1;
+
+  // results larger than spillSize MB are written into a spill file (0 = never)
+  private static long spillSize = 0;
+  private static String spillDirectory = null;
+
+  // timeout in seconds per reporting query and per database (0 = unlimited)
+  private static int queryTimeout = 0;
+  private static int databaseTimeout = 0;
+
+  // retries of transient connect errors: per database, whole run, first/max backoff in ms
+  private static int retryMax = 0;
+  private static int retryBudget = 1000;
+  private static int retryDelay = 2000;
+  private static int retryDelayMax = 60000;
+
+  // ORA error codes of transient connect errors
+  private static String retryErrors = "12516,12518,12519,12520,12528,18,20";
+
+  // timeout in seconds without progress of a database until the watchdog aborts it (0 = disabled)
+  private static int watchdogTimeout = 0;
+
+  // timings of the previous runs (null = disabled)
+  private static String statisticsFile = null;
+
+  // databases without timings are started before (first) or after (last) the known ones
+  private static String statisticsUnknown = "last";
+
+  // incremental output (none, result or row) and the fingerprints of the previous run
+  private static String incremental = "none";
+  private static String fingerprintFile = null;
+
   // default jdbc prefix
   private static String jdbcPrefix = "jdbc:oracle:thin:@";
 
@@ -148,6 +249,26 @@ public class jcdbe {
     // setting jdbc property file
     DatabaseOracle.setPropertyFile(jdbcPropertyeFile);
 
+    // setting timeouts
+    DatabaseOracle.setQueryTimeout(queryTimeout);
+    DatabaseThreadSlave.setDatabaseTimeout(databaseTimeout);
+
+    // setting fetch size/LOB prefetch of all queries
+    DatabaseOracle.setFetchSize(null, fetchSize);
+    DatabaseOracle.setFetchBytes(fetchBytes);
+    if (lobPrefetchSize != null) {
+      DatabaseOracle.setLobPrefetchSize(null, lobPrefetchSize);
+    }
+
+    // setting spill files of large results
+    DatabaseOracle.setSpill(spillSize * 1048576, spillDirectory);
+
+    // setting query execution per database
+    DatabaseThreadSlave.setQueryMode(queryMode);
+
+    // setting transient connect errors for the retry lane
+    DatabaseOracle.setTransientErrors(retryErrors);
+
     // declare the input/output classes
     Input input =
         (Input) Class.forName(inputClass).getDeclaredMethod("getInstance")
@@ -156,6 +277,14 @@ public class jcdbe {
         (Output) Class.forName(outputClass).getDeclaredMethod("getInstance")
             .invoke(null, (Object[]) null);
 
+    // several outputs are written by the tee in the same run
+    if (teeOutputs != null) {
+      for (String teeOutput : teeOutputs) {
+        ((OutputTee) output).addSink(teeOutput, (Output) Class.forName(getOutputClass(teeOutput))
+            .getDeclaredMethod("getInstance").invoke(null, (Object[]) null));
+      }
+    }
+
     // declare options and parser for the CLI arguments
     Options options = new Options();
     CommandLineParser parser = new PosixParser();
@@ -190,12 +319,42 @@ public class jcdbe {
     log.debug("[CONFIG] Working Directory: " + workingDir);
     log.debug("[CONFIG] Input class:  " + inputClass);
     log.debug("[CONFIG] Output class: " + outputClass);
+    if (teeOutputs != null) {
+      log.debug("[CONFIG] Tee outputs:  " + Arrays.toString(teeOutputs));
+    }
     log.debug("[CONFIG] JDBC URL prefix: " + jdbcPrefix);
     log.debug("[CONFIG] Java Library Path: " + System.getProperty("java.library.path"));
     log.debug("[CONFIG] Oracle SDU size: " + sduSize);
     log.debug("[CONFIG] Max. threads: " + threadMax);
     log.debug("[CONFIG] Max. running threads: " + threadRun);
     log.debug("[CONFIG] Thread idle timeout: " + threadTTL);
+    log.debug("[CONFIG] Thread executor: " + executorType);
+    log.debug("[CONFIG] Max. parallel connections: " + connectionMax);
+    log.debug("[CONFIG] Connection limit: " + concurrency);
+    log.debug("[CONFIG] Min. parallel connections: " + connectionMin);
+    log.debug("[CONFIG] Max. parallel connections per host: " + hostConnectionMax);
+    log.debug("[CONFIG] Max. parallel connections per CMAN: " + cmanConnectionMax);
+    log.debug("[CONFIG] Fetch size: " + (fetchSize > 0 ? fetchSize : "auto (" + fetchBytes
+        + " bytes per round trip)"));
+    log.debug("[CONFIG] LOB prefetch size: " + lobPrefetchSize);
+    log.debug("[CONFIG] Query mode: " + queryMode);
+    log.debug("[CONFIG] Execute stage threads: " + executeThreads);
+    log.debug("[CONFIG] Output stage threads: " + outputThreads);
+    log.debug("[CONFIG] Output stage queue: " + outputQueue);
+    log.debug("[CONFIG] Queue status interval: " + statusInterval);
+    log.debug("[CONFIG] Result memory: " + (resultMemory < 0 ? "off" : resultMemory + " MB"));
+    log.debug("[CONFIG] Spill size: " + spillSize + " MB");
+    log.debug("[CONFIG] Spill directory: " + spillDirectory);
+    log.debug("[CONFIG] Query timeout: " + queryTimeout);
+    log.debug("[CONFIG] Database timeout: " + databaseTimeout);
+    log.debug("[CONFIG] Retries per database: " + retryMax);
+    log.debug("[CONFIG] Retries per run: " + retryBudget);
+    log.debug("[CONFIG] Retry backoff: " + retryDelay + " - " + retryDelayMax + " ms");
+    log.debug("[CONFIG] Retry errors: " + retryErrors);
+    log.debug("[CONFIG] Watchdog timeout: " + watchdogTimeout);
+    log.debug("[CONFIG] Statistics file: " + statisticsFile);
+    log.debug("[CONFIG] Unknown databases: " + statisticsUnknown);
+    log.debug("[CONFIG] Incremental output: " + incremental + " (" + fingerprintFile + ")");
     log.debug("[CONFIG] Advanced Debugging: " + advDebugging);
 
     // validate Input arguments
@@ -219,14 +378,65 @@ public class jcdbe {
       System.exit(3);
     }
 
-    // init thread pool
-    workQueue = new ArrayBlockingQueue<Runnable>(99999);
-    ThreadPoolExecutor threads =
-        new ThreadPoolExecutor(threadRun, threadMax, threadTTL, TimeUnit.SECONDS, workQueue);
+    // init thread executor
+    ExecutorService threads = createExecutor(executorType, threadRun, threadMax, threadTTL);
 
     // get DatabaseList object which will manage all database infos (url, username, pw, status...)
     DatabaseList dbList = input.getDatabaseList();
 
+    // the store and the JSON lines contain the external database IDs (also as outputs of the tee)
+    List<Output> outputs = Collections.singletonList(output);
+    if (output instanceof OutputTee) {
+      outputs = ((OutputTee) output).getSinks();
+    }
+    for (Output target : outputs) {
+      if (target instanceof OutputStore) {
+        ((OutputStore) target).setDatabaseList(dbList);
+      } else if (target instanceof OutputJsonLines) {
+        ((OutputJsonLines) target).setDatabaseList(dbList);
+      }
+    }
+
+    // only changed results/rows are written, compared with the fingerprints of the previous run
+    if (!incremental.equals("none")) {
+      ResultFingerprints fingerprints =
+          new ResultFingerprints(fingerprintFile, incremental.equals("row"));
+      fingerprints.load();
+      output = new OutputIncremental(output, dbList, fingerprints, incremental.equals("row"),
+          spillDirectory);
+    }
+
+    // a database thread takes its slot before it is queued in the executor: a thread pool only runs
+    // threadRun of them, the other slots would be held by queued threads (the connect stage of the
+    // pipeline only holds its thread for the connect)
+    if (threads instanceof ThreadPoolExecutor && executeThreads == 0 && connectionMax > threadRun) {
+      log.warn("[QUEUE] connectionMax " + connectionMax + " is larger than the thread pool, "
+          + "limited to threadRun " + threadRun);
+      connectionMax = threadRun;
+      connectionMin = Math.min(connectionMin, connectionMax);
+    }
+
+    // the limiter hands over the database threads to the executor if a connection slot is free
+    ConnectionLimiter limiter =
+        new ConnectionLimiter(threads, dbList, connectionMax, hostConnectionMax, cmanConnectionMax);
+    if (concurrency.equals("adaptive")) {
+      limiter.setController(new ConcurrencyController(connectionMin, connectionMax));
+    }
+    limiter.setRetry(retryMax, retryBudget, retryDelay, retryDelayMax);
+
+    // with the pipeline the executor above is only the connect stage
+    DatabasePipeline pipeline = null;
+    if (executeThreads > 0) {
+      pipeline = new DatabasePipeline(executeThreads, outputThreads, outputQueue);
+    }
+
+    // budget of the fetched rows which are not written yet (null = off)
+    ResultMemory memory = null;
+    if (resultMemory >= 0) {
+      memory = new ResultMemory(resultMemory * 1048576);
+    }
+    ResultBuffer.setResultMemory(memory);
+
     if (dbList.size() == 0) {
       log.info("[QUEUE] database list is empty... nothing do to.");
       System.exit(1);
@@ -237,43 +447,97 @@ public class jcdbe {
     // String = SQL Text
     Map<Integer, String> queries = input.getQueries();
 
+    // fetch size/LOB prefetch per query ([query:<queryID>] sections)
+    initQueryConfig(config, queries);
+
+
+    // start order of the databases: longest first, if timings of previous runs are available
+    Iterable<Integer> schedule = dbList;
+    DatabaseStatistics statistics = null;
+    if (statisticsFile != null) {
+      statistics = new DatabaseStatistics(statisticsFile);
+      statistics.load();
+      schedule = statistics.getSchedule(dbList, statisticsUnknown.equals("first"));
+    }
+
 
     log.info("[QUEUE] Starting Threads");
 
-    // loop thru dbList to create & execute/queue all threads
-    for (Integer id : dbList) {
+    // loop thru the schedule to create & execute/queue all threads
+    for (Integer id : schedule) {
       try {
         // create new runnable instance
         DatabaseThreadSlave slaveThread =
-            new DatabaseThreadSlave(id, dbList, queries, output, jdbcPrefix, sduSize);
+            new DatabaseThreadSlave(id, dbList, queries, output, jdbcPrefix, sduSize, limiter);
+        slaveThread.setPipeline(pipeline);
+        if (memory != null) {
+          slaveThread.setResultMemory(memory);
+        }
         // insert runnable instance into dbList
         dbList.setThread(id, slaveThread);
 
-        // add runnable instance into thread pool queue
-        threads.execute(slaveThread);
+        // add runnable instance into connection queue
+        limiter.submit(id, slaveThread.getHost(), slaveThread.getRoute(), slaveThread);
       } catch (Exception e) {
         advDebug(e);
         log.warn("Exception in thread-starter loop (DBID: " + id + "): " + e.getMessage());
+        output.setDatabaseStatus(id, "QUEUE_ERROR: " + e.getMessage());
+
+        // this database will never be processed, so it must not block the end of the run
+        dbList.setFinish(id);
       }
     }
 
 
+    // the watchdog aborts database threads without progress (e.g. stuck TCP sessions)
+    if (watchdogTimeout > 0) {
+      new DatabaseWatchdog(dbList, watchdogTimeout).start();
+    }
+
+
     //
     // waiting for all threads to complete
     //
-    // the timeout handling will be done completely over JDBC
-    // see docs for more information
+    // the timeout handling will be done over JDBC (connect/read timeout, query timeout)
+    // and the database timeout of DatabaseThreadSlave/the DatabaseWatchdog
+    //
+    // every thread sets its database to finished after the disconnect (pipeline: after the last
+    // result), the last one wakes up the main thread
     //
 
-    while (!dbList.isFinished() || threads.getActiveCount() > 0) {
-      Thread.sleep(500);
+    if (statusInterval > 0) {
+      while (!dbList.awaitFinished(statusInterval * 1000L)) {
+        logStatus(dbList, limiter, pipeline, memory);
+      }
+    } else {
+      dbList.awaitFinished();
     }
 
 
     log.info("[QUEUE] Shutting down all threads");
     threads.shutdown();
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
 
-    Thread.sleep(2000);
+    DatabaseOracle.logFetchStatistics();
+    if (memory != null) {
+      log.info("[MEMORY] Peak: " + memory.getPeak() / 1048576 + " MB of "
+          + (memory.getLimit() > 0 ? memory.getLimit() / 1048576 + " MB" : "unlimited")
+          + ", waits for memory: " + memory.getWaits() + " (" + memory.getWaitTime() + " ms)");
+    }
+
+    if (statistics != null) {
+      log.info("[STATS] save timings...");
+      for (Integer id : dbList) {
+        long[] timings = dbList.getTimings(id);
+        if (timings != null) {
+          statistics.update(DatabaseStatistics.getKey(dbList.getURL(id), dbList.getUsername(id)),
+              timings[0], timings[1], timings[2], timings[3]);
+        }
+      }
+      statistics.save();
+    }
 
     log.info("[INPUT] close input...");
     input.close();
@@ -327,18 +591,29 @@ public class jcdbe {
     }
 
 
-    // output class
+    // output class, a list of outputs is written by the OutputTee
     try {
-      outputClass = packageName + ".Output" + ini.get("main", "output").trim();
+      String[] outputNames = ini.get("main", "output").trim().split("\\s*,\\s*");
+      if (outputNames.length > 1) {
+        teeOutputs = outputNames;
+        outputClass = getOutputClass("Tee");
+      } else {
+        outputClass = getOutputClass(outputNames[0]);
+      }
     } catch (NullPointerException e) {
       System.out.println("Error: engine output parameter not found!");
       System.exit(1);
     }
-    // check if class exists
+    // check if classes exist
+    String checkClass = outputClass;
     try {
-      Class.forName(outputClass);
+      Class.forName(checkClass);
+      for (int i = 0; teeOutputs != null && i < teeOutputs.length; i++) {
+        checkClass = getOutputClass(teeOutputs[i]);
+        Class.forName(checkClass);
+      }
     } catch (ClassNotFoundException e) {
-      System.out.printf("Error: %s class not found!\n", outputClass);
+      System.out.printf("Error: %s class not found!\n", checkClass);
       System.exit(1);
     }
 
@@ -355,6 +630,148 @@ public class jcdbe {
       jdbcPropertyeFile = checkParam;
     }
 
+    // queryTimeout
+    checkParam = ini.get("main", "queryTimeout");
+    if (checkParam != null) {
+      queryTimeout = Integer.parseInt(checkParam);
+    }
+
+    // databaseTimeout
+    checkParam = ini.get("main", "databaseTimeout");
+    if (checkParam != null) {
+      databaseTimeout = Integer.parseInt(checkParam);
+    }
+
+    // retries
+    checkParam = ini.get("main", "retryMax");
+    if (checkParam != null) {
+      retryMax = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "retryBudget");
+    if (checkParam != null) {
+      retryBudget = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "retryDelay");
+    if (checkParam != null) {
+      retryDelay = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "retryDelayMax");
+    if (checkParam != null) {
+      retryDelayMax = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "retryErrors");
+    if (checkParam != null) {
+      retryErrors = checkParam;
+    }
+
+    // fetchSize: auto or rows
+    checkParam = ini.get("main", "fetchSize");
+    if (checkParam != null) {
+      fetchSize = checkParam.equals("auto") ? 0 : Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "fetchBytes");
+    if (checkParam != null) {
+      fetchBytes = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "lobPrefetchSize");
+    if (checkParam != null) {
+      lobPrefetchSize = Integer.parseInt(checkParam);
+    }
+
+    // queryMode
+    checkParam = ini.get("main", "queryMode");
+    if (checkParam != null) {
+      queryMode = checkParam;
+    }
+
+    // pipeline
+    checkParam = ini.get("main", "executeThreads");
+    if (checkParam != null) {
+      executeThreads = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "outputThreads");
+    if (checkParam != null) {
+      outputThreads = Integer.parseInt(checkParam);
+    }
+
+    checkParam = ini.get("main", "outputQueue");
+    if (checkParam != null) {
+      outputQueue = Integer.parseInt(checkParam);
+    } else {
+      outputQueue = outputThreads;
+    }
+
+    checkParam = ini.get("main", "statusInterval");
+    if (checkParam != null) {
+      statusInterval = Integer.parseInt(checkParam);
+    }
+
+    // resultMemory: off, auto (half of the heap) or MB
+    checkParam = ini.get("main", "resultMemory");
+    if (checkParam != null && checkParam.equals("off")) {
+      resultMemory = -1;
+    } else if (checkParam != null && checkParam.equals("auto")) {
+      resultMemory = Runtime.getRuntime().maxMemory() / 2 / 1048576;
+    } else if (checkParam != null) {
+      resultMemory = Long.parseLong(checkParam);
+    }
+
+    checkParam = ini.get("main", "spillSize");
+    if (checkParam != null) {
+      spillSize = Long.parseLong(checkParam);
+    }
+
+    checkParam = ini.get("main", "spillDirectory");
+    if (checkParam != null) {
+      spillDirectory = checkParam;
+    }
+
+    // watchdogTimeout
+    checkParam = ini.get("main", "watchdogTimeout");
+    if (checkParam != null) {
+      watchdogTimeout = Integer.parseInt(checkParam);
+    }
+
+    // statistics file
+    checkParam = ini.get("main", "statisticsFile");
+    if (checkParam != null) {
+      statisticsFile = checkParam;
+    }
+
+    // start position of databases without timings
+    checkParam = ini.get("main", "statisticsUnknown");
+    if (checkParam != null && checkParam.matches("first|last")) {
+      statisticsUnknown = checkParam;
+    } else if (checkParam != null) {
+      System.out.println("Error: statisticsUnknown parameter should only be set to first/last!");
+      System.exit(1);
+    }
+
+    // incremental output
+    checkParam = ini.get("main", "incremental");
+    if (checkParam != null && checkParam.matches("none|result|row")) {
+      incremental = checkParam;
+    } else if (checkParam != null) {
+      System.out.println("Error: incremental parameter should only be set to none/result/row!");
+      System.exit(1);
+    }
+
+    // fingerprint file
+    checkParam = ini.get("main", "fingerprintFile");
+    if (checkParam != null) {
+      fingerprintFile = checkParam;
+    } else if (!incremental.equals("none")) {
+      System.out.println("Error: fingerprintFile parameter is required for incremental output!");
+      System.exit(1);
+    }
+
     // threadMax
     checkParam = ini.get("main", "threadMax");
     if (checkParam != null) {
@@ -373,6 +790,52 @@ public class jcdbe {
       threadTTL = Integer.parseInt(checkParam);
     }
 
+    // executor
+    checkParam = ini.get("main", "executor");
+    if (checkParam != null) {
+      executorType = checkParam.trim().toLowerCase();
+      if (!executorType.equals("pool") && !executorType.equals("virtual")) {
+        System.out.printf("Error: unknown executor %s (pool, virtual)!\n", executorType);
+        System.exit(1);
+      }
+    }
+
+    // connectionMax
+    checkParam = ini.get("main", "connectionMax");
+    if (checkParam != null) {
+      connectionMax = Integer.parseInt(checkParam);
+    } else {
+      connectionMax = threadRun;
+    }
+
+    // concurrency
+    checkParam = ini.get("main", "concurrency");
+    if (checkParam != null) {
+      concurrency = checkParam.trim().toLowerCase();
+      if (!concurrency.equals("static") && !concurrency.equals("adaptive")) {
+        System.out.printf("Error: unknown concurrency %s (static, adaptive)!\n", concurrency);
+        System.exit(1);
+      }
+    }
+
+    // connectionMin
+    checkParam = ini.get("main", "connectionMin");
+    if (checkParam != null) {
+      connectionMin = Integer.parseInt(checkParam);
+    }
+
+    // hostConnectionMax
+    checkParam = ini.get("main", "hostConnectionMax");
+    if (checkParam != null) {
+      hostConnectionMax = Integer.parseInt(checkParam);
+    }
+
+    // cmanConnectionMax
+    checkParam = ini.get("main", "cmanConnectionMax");
+    if (checkParam != null) {
+      cmanConnectionMax = Integer.parseInt(checkParam);
+    }
+
 
     // oracleHome
     String oracleHome = ini.get("main", "oracleHome");
@@ -434,6 +897,67 @@ public class jcdbe {
     return ini;
   }
 
+  // class of an output name in the config file (CSV -> net.tjado.jcdbe.OutputCSV)
+  private static String getOutputClass(String name) {
+    return jcdbe.class.getPackage().getName() + ".Output" + name;
+  }
+
+  // settings of single queries
+  private static void initQueryConfig(Ini ini, Map<Integer, String> queries) {
+    for (Integer queryID : queries.keySet()) {
+      String sectionName = "query:" + queryID;
+
+      String checkParam = ini.get(sectionName, "fetchSize");
+      if (checkParam != null) {
+        DatabaseOracle.setFetchSize(queryID, checkParam.equals("auto") ? 0
+            : Integer.parseInt(checkParam));
+        log.debug("[CONFIG] Fetch size of query " + queryID + ": " + checkParam);
+      }
+
+      checkParam = ini.get(sectionName, "lobPrefetchSize");
+      if (checkParam != null) {
+        DatabaseOracle.setLobPrefetchSize(queryID, Integer.parseInt(checkParam));
+        log.debug("[CONFIG] LOB prefetch size of query " + queryID + ": " + checkParam);
+      }
+    }
+  }
+
+  // creates the executor for the database threads
+  // pool: ThreadPoolExecutor with threadRun/threadMax platform threads
+  // virtual: one virtual thread per database, only limited by connectionMax
+  static ExecutorService createExecutor(String type, int run, int max, int ttl) {
+    if (type.equals("virtual")) {
+      try {
+        // over reflection, so jcdbe still runs on JVMs without virtual threads (java < 21)
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+            .invoke(null);
+      } catch (Exception e) {
+        advDebug(e);
+        log.warn("[QUEUE] Virtual threads not supported by this JVM (java >= 21), using thread pool");
+      }
+    }
+
+    workQueue = new ArrayBlockingQueue<Runnable>(99999);
+    return new ThreadPoolExecutor(run, max, ttl, TimeUnit.SECONDS, workQueue);
+  }
+
+  // queue depth of every stage
+  private static void logStatus(DatabaseList dbList, ConnectionLimiter limiter,
+      DatabasePipeline pipeline, ResultMemory memory) {
+    String status = "[QUEUE] Finished: " + dbList.getFinishedCount() + "/" + dbList.size()
+        + "; connect: " + limiter.getActive() + " connections, " + limiter.getQueued() + " queued";
+    if (pipeline != null) {
+      status += "; execute: " + pipeline.getExecuteActive() + " active, "
+          + pipeline.getExecuteQueued() + " queued; output: " + pipeline.getOutputActive()
+          + " active, " + pipeline.getOutputQueued() + " queued";
+    }
+    if (memory != null) {
+      status += "; memory: " + memory.getUsed() / 1048576 + " MB (peak "
+          + memory.getPeak() / 1048576 + " MB), " + memory.getWaiting() + " waiting";
+    }
+    log.info(status);
+  }
+
   private static void measureTimeStart() {
     measureTimeStart = System.currentTimeMillis();
     log.info("[BENCH] Start: " + measureTimeStart);